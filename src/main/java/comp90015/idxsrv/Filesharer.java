@@ -17,7 +17,11 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.filemgr.FileMgr;
+import comp90015.idxsrv.peer.BlockCache;
 import comp90015.idxsrv.peer.Peer;
+import comp90015.idxsrv.peer.Upload;
 import comp90015.idxsrv.textgui.PeerGUI;
 
 /**
@@ -34,7 +38,7 @@ public class Filesharer {
 	private static void help() {
 		final PrintWriter writer = new PrintWriter(System.out);
 		HelpFormatter formatter = new HelpFormatter();
-	    formatter.printHelp("[-h] [-p <LOCALPORT>] [-sp <IDXSRVPORT>] [-a <LOCALHOSTIP>] [-sa <IDXSRVHOSTIP>] [-d <SHAREDIR>] [-w <WELCOME>] [-s <SHARERSECRET>] [-ss <SERVERSECRET>] [-t <TIMEOUTMS>]", options);
+	    formatter.printHelp("[-h] [-p <LOCALPORT>] [-sp <IDXSRVPORT>] [-a <LOCALHOSTIP>] [-sa <IDXSRVHOSTIP>] [-d <SHAREDIR>] [-w <WELCOME>] [-s <SHARERSECRET>] [-ss <SERVERSECRET>] [-t <TIMEOUTMS>] [-u <UPLOADMODE>] [-v <VERIFYPOLICY>] [-m <HASHMODE>] [-g <HASHALGORITHM>] [-i <IOMODE>] [-x <HASHTHREADS>] [-c <CACHEMB>]", options);
 	    writer.flush();
 	    System.exit(0);
 	}
@@ -67,6 +71,13 @@ public class Filesharer {
     	int idxSrvPort = 3200; // the port of the index server
 		int port = 3201; // the port this peer uses for other peers to connect to
 		int timeout = 1000; // the default socket timeout in milliseconds for idle sockets
+		Upload.UPLOADMODE uploadMode = Upload.UPLOADMODE.ZEROCOPY; // how the bytes of blocks are sent to other peers
+		FileMgr.VERIFYPOLICY verifyPolicy = FileMgr.VERIFYPOLICY.INCREMENTAL; // how a downloaded file's hash is checked
+		FileDescr.HASHMODE hashMode = FileDescr.HASHMODE.FLAT; // how shared files are described
+		FileDescr.HASHALGORITHM hashAlgorithm = null; // what shared files are hashed with, null for the default of the hash mode
+		FileMgr.IOMODE ioMode = FileMgr.IOMODE.POSITIONAL; // how blocks are read from and written to files
+		int hashThreads = 1; // the number of blocks of a shared file to hash at once
+		long blockCacheMb = BlockCache.DEFAULT_CAPACITY/(1024*1024); // the size of the cache of popular blocks to upload, in megabytes
     	
     	/*
     	 * Specify command line options to override the defaults.
@@ -101,6 +112,27 @@ public class Filesharer {
     	Option timeoutOption = new Option("t","timeout",true,"the default socket timeout in milliseconds; default ["+timeout+"]");
     	timeoutOption.setRequired(false);
     	options.addOption(timeoutOption);
+    	Option uploadModeOption = new Option("u","upload",true,"how block bytes are uploaded, copy or zerocopy; default ["+uploadMode.name().toLowerCase()+"]");
+    	uploadModeOption.setRequired(false);
+    	options.addOption(uploadModeOption);
+    	Option verifyOption = new Option("v","verify",true,"how a downloaded file's hash is checked, full, incremental or trust_blocks; default ["+verifyPolicy.name().toLowerCase()+"]");
+    	verifyOption.setRequired(false);
+    	options.addOption(verifyOption);
+    	Option hashModeOption = new Option("m","hashmode",true,"how shared files are described, flat (block MD5 hashes) or merkle (hash tree root); default ["+hashMode.name().toLowerCase()+"]");
+    	hashModeOption.setRequired(false);
+    	options.addOption(hashModeOption);
+    	Option hashAlgorithmOption = new Option("g","hash",true,"what shared files are hashed with, md5, sha256 or crc32c (only detects corruption); default [md5] or [sha256] for merkle");
+    	hashAlgorithmOption.setRequired(false);
+    	options.addOption(hashAlgorithmOption);
+    	Option ioModeOption = new Option("i","io",true,"how blocks are read from and written to files, positional or mapped; default ["+ioMode.name().toLowerCase()+"]");
+    	ioModeOption.setRequired(false);
+    	options.addOption(ioModeOption);
+    	Option hashThreadsOption = new Option("x","hashthreads",true,"the number of blocks of a file being shared to hash at once, in flat mode; default ["+hashThreads+"]");
+    	hashThreadsOption.setRequired(false);
+    	options.addOption(hashThreadsOption);
+    	Option cacheOption = new Option("c","cache",true,"the size of the cache of popular blocks to upload in megabytes, 0 for none; default ["+blockCacheMb+"]");
+    	cacheOption.setRequired(false);
+    	options.addOption(cacheOption);
     	
     	/*
     	 * Parse the command line options. This will override the default values when
@@ -170,6 +202,64 @@ public class Filesharer {
 	    			System.out.println("Warning: The socket timeout (in milliseconds) should be an integer greater than zero ["+cmd.getOptionValue("p")+"]");
 	    		}
 	    	}
+	    	if(cmd.hasOption("u")) {
+	    		try {
+	    			uploadMode = Upload.UPLOADMODE.valueOf(cmd.getOptionValue("u").toUpperCase());
+	    		} catch (IllegalArgumentException e) {
+	    			System.out.println("Warning: The upload mode should be either copy or zerocopy ["+cmd.getOptionValue("u")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("v")) {
+	    		try {
+	    			verifyPolicy = FileMgr.VERIFYPOLICY.valueOf(cmd.getOptionValue("v").toUpperCase());
+	    		} catch (IllegalArgumentException e) {
+	    			System.out.println("Warning: The verify policy should be full, incremental or trust_blocks ["+cmd.getOptionValue("v")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("m")) {
+	    		try {
+	    			hashMode = FileDescr.HASHMODE.valueOf(cmd.getOptionValue("m").toUpperCase());
+	    		} catch (IllegalArgumentException e) {
+	    			System.out.println("Warning: The hash mode should be flat or merkle ["+cmd.getOptionValue("m")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("g")) {
+	    		try {
+	    			hashAlgorithm = FileDescr.HASHALGORITHM.valueOf(cmd.getOptionValue("g").toUpperCase());
+	    		} catch (IllegalArgumentException e) {
+	    			System.out.println("Warning: The hash algorithm should be md5, sha256 or crc32c ["+cmd.getOptionValue("g")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("i")) {
+	    		try {
+	    			ioMode = FileMgr.IOMODE.valueOf(cmd.getOptionValue("i").toUpperCase());
+	    		} catch (IllegalArgumentException e) {
+	    			System.out.println("Warning: The io mode should be positional or mapped ["+cmd.getOptionValue("i")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("x")) {
+	    		try {
+	    			hashThreads = Integer.parseInt(cmd.getOptionValue("x"));
+	    			if(hashThreads<1) {
+	    				hashThreads=1;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			System.out.println("Warning: The number of hash threads should be an integer of at least one ["+cmd.getOptionValue("x")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("c")) {
+	    		try {
+	    			blockCacheMb = Long.parseLong(cmd.getOptionValue("c"));
+	    			if(blockCacheMb<0) {
+	    				blockCacheMb=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			System.out.println("Warning: The block cache size (in megabytes) should be an integer of at least zero ["+cmd.getOptionValue("c")+"]");
+	    		}
+	    	}
+	    	if(hashAlgorithm==null) {
+	    		hashAlgorithm = hashMode==FileDescr.HASHMODE.MERKLE ? FileDescr.HASHALGORITHM.SHA256 : FileDescr.HASHALGORITHM.MD5;
+	    	}
 		} catch (ParseException e1) {
 			help();
 		}
@@ -190,11 +280,18 @@ public class Filesharer {
     	textGUI.logInfo("using basedir ["+dir+"] - all filenames will be relative to this basedir");
     	textGUI.logInfo("using sharer secret ["+secret+"]");
     	textGUI.logInfo("socket timeout ["+timeout+"]");
+    	textGUI.logInfo("upload mode ["+uploadMode.name().toLowerCase()+"]");
+    	textGUI.logInfo("verify policy ["+verifyPolicy.name().toLowerCase()+"]");
+    	textGUI.logInfo("hash mode ["+hashMode.name().toLowerCase()+"]");
+    	textGUI.logInfo("hash algorithm ["+hashAlgorithm.name().toLowerCase()+"]");
+    	textGUI.logInfo("io mode ["+ioMode.name().toLowerCase()+"]");
+    	textGUI.logInfo("hash threads ["+hashThreads+"]");
+    	textGUI.logInfo("block cache ["+blockCacheMb+"MB]");
     	
     	/*
     	 * Start up a peer.
     	 */
-		Peer peer = new Peer(port,dir,timeout,textGUI);
+		Peer peer = new Peer(port,dir,timeout,uploadMode,verifyPolicy,hashMode,hashAlgorithm,ioMode,hashThreads,blockCacheMb*1024*1024,textGUI);
 		
 		/*
 		 * Tell the gui about the peer.
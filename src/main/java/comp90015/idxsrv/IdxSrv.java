@@ -7,6 +7,7 @@ import java.net.UnknownHostException;
 
 import org.apache.commons.cli.*;
 
+import comp90015.idxsrv.server.IndexMgr;
 import comp90015.idxsrv.server.Server;
 import comp90015.idxsrv.server.ServerTextGUI;
 
@@ -22,7 +23,7 @@ public class IdxSrv
 	private static void help() {
 		final PrintWriter writer = new PrintWriter(System.out);
 		HelpFormatter formatter = new HelpFormatter();
-	    formatter.printHelp("[-h] [-p <PORT>] [-a <HOSTIP>] [-w <WELCOME>] [-s <SECRET>] [-t <TIMEOUTMS>]", options);
+	    formatter.printHelp("[-h] [-p <PORT>] [-a <HOSTIP>] [-w <WELCOME>] [-s <SECRET>] [-t <TIMEOUTMS>] [-m <SEARCHMODE>] [-r] [-c <CACHESIZE>] [-n <WORKERS>] [-io <TRANSPORT>] [-d <DATADIR>] [-l <LEASESECS>]", options);
 	    writer.flush();
 	    System.exit(0);
 	}
@@ -34,6 +35,13 @@ public class IdxSrv
     	String dir = System.getProperty("user.dir");
     	String secret = "server123";
     	int timeout = 1000;
+    	IndexMgr.SEARCHMODE searchMode = IndexMgr.SEARCHMODE.SUBSTRING;
+    	boolean rankedSearch = false;
+    	int searchCacheSize = 0;
+    	int workers = 0;
+    	Server.TRANSPORT transport = Server.TRANSPORT.BLOCKING;
+    	String dataDir = null;
+    	int leaseTime = 0;
     	InetAddress address = InetAddress.getByName("localhost");
     	Option helpOption = new Option("h","help",false,"help");
     	helpOption.setRequired(false);
@@ -53,6 +61,27 @@ public class IdxSrv
     	Option timeoutOption = new Option("t","timeout",true,"the default socket timeout in milliseconds; default ["+timeout+"]");
     	timeoutOption.setRequired(false);
     	options.addOption(timeoutOption);
+    	Option searchModeOption = new Option("m","mode",true,"the keyword search mode, token or substring; default ["+searchMode.name().toLowerCase()+"]");
+    	searchModeOption.setRequired(false);
+    	options.addOption(searchModeOption);
+    	Option rankedOption = new Option("r","ranked",false,"rank search results by keyword match and number of sharers, best first");
+    	rankedOption.setRequired(false);
+    	options.addOption(rankedOption);
+    	Option cacheOption = new Option("c","cache",true,"the number of search replies to cache, 0 for none; default ["+searchCacheSize+"]");
+    	cacheOption.setRequired(false);
+    	options.addOption(cacheOption);
+    	Option workersOption = new Option("n","workers",true,"the number of worker threads processing requests, 0 for none; default ["+workers+"]");
+    	workersOption.setRequired(false);
+    	options.addOption(workersOption);
+    	Option transportOption = new Option("io","transport",true,"the connection transport, blocking or nio; default ["+transport.name().toLowerCase()+"]");
+    	transportOption.setRequired(false);
+    	options.addOption(transportOption);
+    	Option dataDirOption = new Option("d","datadir",true,"the directory to persist the index in; default [none, the index is kept in memory only]");
+    	dataDirOption.setRequired(false);
+    	options.addOption(dataDirOption);
+    	Option leaseOption = new Option("l","lease",true,"the time in seconds after which a share expires unless the peer renews it, 0 for never; default ["+leaseTime+"]");
+    	leaseOption.setRequired(false);
+    	options.addOption(leaseOption);
     	CommandLineParser parser = new DefaultParser();
     	CommandLine cmd;
     	ServerTextGUI stg = new ServerTextGUI();
@@ -94,6 +123,56 @@ public class IdxSrv
 	    			stg.logWarn("The socket timeout (in milliseconds) should be an integer greater than zero ["+cmd.getOptionValue("p")+"]");
 	    		}
 	    	}
+	    	if(cmd.hasOption("m")) {
+	    		try {
+	    			searchMode = IndexMgr.SEARCHMODE.valueOf(cmd.getOptionValue("m").toUpperCase());
+	    		} catch (IllegalArgumentException e) {
+	    			stg.logWarn("The search mode should be either token or substring ["+cmd.getOptionValue("m")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("r")) {
+	    		rankedSearch=true;
+	    	}
+	    	if(cmd.hasOption("c")) {
+	    		try {
+	    			searchCacheSize = Integer.parseInt(cmd.getOptionValue("c"));
+	    			if(searchCacheSize<0) {
+	    				searchCacheSize=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The search cache size should be an integer greater than or equal to zero ["+cmd.getOptionValue("c")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("n")) {
+	    		try {
+	    			workers = Integer.parseInt(cmd.getOptionValue("n"));
+	    			if(workers<0) {
+	    				workers=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The number of workers should be an integer greater than or equal to zero ["+cmd.getOptionValue("n")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("io")) {
+	    		try {
+	    			transport = Server.TRANSPORT.valueOf(cmd.getOptionValue("io").toUpperCase());
+	    		} catch (IllegalArgumentException e) {
+	    			stg.logWarn("The transport should be either blocking or nio ["+cmd.getOptionValue("io")+"]");
+	    		}
+	    	}
+	    	if(cmd.hasOption("d")) {
+	    		dataDir=cmd.getOptionValue("d");
+	    	}
+	    	if(cmd.hasOption("l")) {
+	    		try {
+	    			leaseTime = Integer.parseInt(cmd.getOptionValue("l"));
+	    			if(leaseTime<0) {
+	    				leaseTime=0;
+	    			}
+	    		} catch (NumberFormatException e) {
+	    			stg.logWarn("The lease time (in seconds) should be an integer greater than or equal to zero ["+cmd.getOptionValue("l")+"]");
+	    		}
+	    	}
 		} catch (ParseException e1) {
 			help();
 		}
@@ -102,8 +181,15 @@ public class IdxSrv
     	stg.logInfo("using internet address ["+address.getHostName()+":"+port+"]");
     	stg.logInfo("server secret ["+secret+"]");
     	stg.logInfo("socket timeout ["+timeout+"]");
+    	stg.logInfo("search mode ["+searchMode.name().toLowerCase()+"]");
+    	stg.logInfo("ranked search ["+rankedSearch+"]");
+    	stg.logInfo("search cache size ["+searchCacheSize+"]");
+    	stg.logInfo("worker threads ["+workers+"]");
+    	stg.logInfo("transport ["+transport.name().toLowerCase()+"]");
+    	stg.logInfo("lease time ["+leaseTime+"]");
+    	stg.logInfo("data directory ["+(dataDir!=null ? dataDir : "none")+"]");
     	
-    	Server server = new Server(port,address,welcome,dir,secret,timeout,stg);
+    	Server server = new Server(port,address,welcome,dir,secret,timeout,searchMode,rankedSearch,searchCacheSize,workers,transport,dataDir,leaseTime,stg);
     	server.start();
     	try {
 			server.join();
@@ -0,0 +1,167 @@
+package comp90015.idxsrv.filemgr;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size set of block indices, one bit per block in an atomic array of longs, so
+ * that any number of threads can set, clear and test blocks without locking.
+ * @author aaron
+ *
+ */
+public class BlockBitmap {
+
+	private final int numBlocks;
+
+	private final AtomicLongArray words;
+
+	private final AtomicInteger count;
+
+	/**
+	 * Create an empty bitmap.
+	 * @param numBlocks the number of blocks
+	 */
+	public BlockBitmap(int numBlocks) {
+		this.numBlocks=numBlocks;
+		words=new AtomicLongArray((numBlocks+63)>>>6);
+		count=new AtomicInteger();
+	}
+
+	/**
+	 * Create a bitmap from a snapshot, as returned by {@link #snapshot}.
+	 * @param numBlocks the number of blocks
+	 * @param snapshot the words of the bitmap, bits beyond the number of blocks are ignored
+	 */
+	public BlockBitmap(int numBlocks, long[] snapshot) {
+		this(numBlocks);
+		for(int w=0;w<words.length() && w<snapshot.length;w++) {
+			long word = snapshot[w];
+			if(w==words.length()-1 && (numBlocks&63)!=0) {
+				word&=(1L<<(numBlocks&63))-1;
+			}
+			words.set(w, word);
+			count.addAndGet(Long.bitCount(word));
+		}
+	}
+
+	/**
+	 * @return the number of blocks
+	 */
+	public int size() {
+		return numBlocks;
+	}
+
+	/**
+	 * @param blockIdx the index of the block
+	 * @return true if the block is in the set, false otherwise or if the index is out of range
+	 */
+	public boolean get(int blockIdx) {
+		if(blockIdx<0 || blockIdx>=numBlocks) {
+			return false;
+		}
+		return (words.get(blockIdx>>>6) & (1L<<blockIdx))!=0;
+	}
+
+	/**
+	 * Add a block to the set.
+	 * @param blockIdx the index of the block, which must be less than the number of blocks
+	 * @throws InvalidBlockIndexException if the index is out of range
+	 * @return true if this call added the block, false if it was already in the set
+	 */
+	public boolean set(int blockIdx) {
+		checkIndex(blockIdx);
+		int w = blockIdx>>>6;
+		long bit = 1L<<blockIdx;
+		while(true) {
+			long word = words.get(w);
+			if((word&bit)!=0) {
+				return false;
+			}
+			if(words.compareAndSet(w, word, word|bit)) {
+				count.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Remove a block from the set.
+	 * @param blockIdx the index of the block, which must be less than the number of blocks
+	 * @throws InvalidBlockIndexException if the index is out of range
+	 * @return true if this call removed the block, false if it was not in the set
+	 */
+	public boolean clear(int blockIdx) {
+		checkIndex(blockIdx);
+		int w = blockIdx>>>6;
+		long bit = 1L<<blockIdx;
+		while(true) {
+			long word = words.get(w);
+			if((word&bit)==0) {
+				return false;
+			}
+			if(words.compareAndSet(w, word, word&~bit)) {
+				count.decrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of blocks in the set
+	 */
+	public int count() {
+		return count.get();
+	}
+
+	/**
+	 * @return the number of blocks not in the set
+	 */
+	public int countMissing() {
+		return numBlocks-count.get();
+	}
+
+	/**
+	 * Find the first block, at or after the given index, that is not in the set.
+	 * @param fromIdx the index to start from
+	 * @return the index of the block, or -1 if every block from the index on is in the set
+	 */
+	public int nextMissing(int fromIdx) {
+		if(fromIdx<0) {
+			fromIdx=0;
+		}
+		if(fromIdx>=numBlocks) {
+			return -1;
+		}
+		int w = fromIdx>>>6;
+		long missing = ~words.get(w) & (-1L<<fromIdx);
+		while(true) {
+			if(missing!=0) {
+				int blockIdx = (w<<6)+Long.numberOfTrailingZeros(missing);
+				return blockIdx<numBlocks ? blockIdx : -1;
+			}
+			if(++w==words.length()) {
+				return -1;
+			}
+			missing = ~words.get(w);
+		}
+	}
+
+	/**
+	 * Copy the bitmap, e.g. to send or store it. Block i is bit (i % 64) of word (i / 64).
+	 * Concurrent changes may or may not be seen.
+	 * @return the words of the bitmap
+	 */
+	public long[] snapshot() {
+		long[] snapshot = new long[words.length()];
+		for(int w=0;w<snapshot.length;w++) {
+			snapshot[w]=words.get(w);
+		}
+		return snapshot;
+	}
+
+	private void checkIndex(int blockIdx) {
+		if(blockIdx<0 || blockIdx>=numBlocks) {
+			throw new InvalidBlockIndexException();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package comp90015.idxsrv.filemgr;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+/**
+ * A {@link MessageDigest} over {@link CRC32C}, which the JVM computes with CPU instructions
+ * where they exist, so that a file can be hashed about as fast as it can be read. The
+ * digest is the 4 byte checksum, big endian. It detects corrupted blocks, but not blocks
+ * that were changed on purpose.
+ * @author aaron
+ *
+ */
+class Crc32cDigest extends MessageDigest {
+
+	private final CRC32C crc = new CRC32C();
+
+	Crc32cDigest() {
+		super("CRC32C");
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 4;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		crc.update(input);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		crc.update(input, offset, len);
+	}
+
+	@Override
+	protected void engineUpdate(ByteBuffer input) {
+		crc.update(input);
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		int value = (int) crc.getValue();
+		crc.reset();
+		return new byte[] {(byte)(value>>>24), (byte)(value>>>16), (byte)(value>>>8), (byte)value};
+	}
+
+	@Override
+	protected void engineReset() {
+		crc.reset();
+	}
+}
@@ -1,22 +1,115 @@
 package comp90015.idxsrv.filemgr;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import comp90015.idxsrv.message.JsonElement;
 import comp90015.idxsrv.message.JsonSerializable;
 
 /**
  * A descriptor of a file, containing MD5 hash information for
- * all blocks of the file.
+ * all blocks of the file, or in {@link HASHMODE#MERKLE} mode only
+ * the root of a hash tree over the file. Another {@link HASHALGORITHM}
+ * may be used in place of MD5; the fields keep their names.
  * @author aaron
  *
  */
 @JsonSerializable
 public class FileDescr {
 	
+	/**
+	 * How the blocks of the file are described.
+	 * <ul>
+	 * <li>{@link HASHMODE#FLAT} lists the MD5 hash of every block, and the file
+	 * is identified by its MD5 hash.</li>
+	 * <li>{@link HASHMODE#MERKLE} gives only the root of a {@link MerkleTree} over
+	 * the file's leaves, which identifies the file in place of its MD5 hash. A block
+	 * is checked with the hashes of its leaves and a proof that the block is in the
+	 * tree, which a peer sharing the file provides, so the descriptor stays small however
+	 * many blocks the file has, and each leaf can be checked as it arrives.</li>
+	 * </ul>
+	 * Peers that do not know the Merkle mode see its descriptors as having no block hashes.
+	 */
+	public enum HASHMODE {
+		FLAT,
+		MERKLE
+	}
+	
+	/**
+	 * The algorithm that blocks and the file are hashed with.
+	 * <ul>
+	 * <li>{@link HASHALGORITHM#MD5}, the default in flat mode.</li>
+	 * <li>{@link HASHALGORITHM#SHA256}, the default in Merkle mode, which the JVM computes
+	 * with CPU instructions where they exist.</li>
+	 * <li>{@link HASHALGORITHM#CRC32C}, a 4 byte checksum that is much faster again, but
+	 * only detects corruption, so should only be used between trusted peers.</li>
+	 * </ul>
+	 */
+	public enum HASHALGORITHM {
+		MD5,
+		SHA256,
+		CRC32C;
+		
+		/**
+		 * @return a new digest for the algorithm
+		 * @throws NoSuchAlgorithmException if the algorithm is unavailable
+		 */
+		public MessageDigest newDigest() throws NoSuchAlgorithmException {
+			switch(this) {
+			case SHA256:
+				return MessageDigest.getInstance("SHA-256");
+			case CRC32C:
+				return new Crc32cDigest();
+			default:
+				return MessageDigest.getInstance("MD5");
+			}
+		}
+	}
+	
+	/**
+	 * The default block length, 16MB.
+	 */
+	public static final int DEFAULT_BLOCK_LENGTH = 16*1024*1024;
+	
+	/**
+	 * The size of the chunks that blocks are hashed in, small enough that a chunk's buffer
+	 * is an ordinary young generation allocation rather than a humongous one.
+	 */
+	static final int HASH_CHUNK = 256*1024;
+	
+	/**
+	 * The number of chunks that a thread hashing a block in parallel may have read ahead of
+	 * the hash of the whole file.
+	 */
+	private static final int PIPELINE_CHUNKS = 4;
+	
+	/**
+	 * Passed on by a thread hashing a block in parallel after the chunks it read before
+	 * failing, so that the calling thread stops waiting for more.
+	 */
+	private static final ByteBuffer HASH_FAILED = ByteBuffer.allocate(0);
+	
+	/**
+	 * The threads that blocks are hashed with in parallel, shared by all descriptors and
+	 * created when first needed. They take blocks in the order they were submitted, which
+	 * {@link #initParallel} relies on.
+	 */
+	private static ExecutorService hashPool;
+	
 	@JsonElement
 	private Long fileLength;
 	
@@ -32,6 +125,24 @@ public class FileDescr {
 	@JsonElement
 	private String[] blockMd5;
 	
+	/**
+	 * The leaf length of the hash tree, or null if the file is described by block MD5 hashes.
+	 */
+	@JsonElement(optional=true)
+	private Integer leafLength;
+	
+	/**
+	 * The name of the {@link HASHALGORITHM}, or null for the default of the hash mode, so that
+	 * descriptors with the default are the same as before there was a choice.
+	 */
+	@JsonElement(optional=true)
+	private String hashAlgorithm;
+	
+	/**
+	 * The roots of the blocks' subtrees, when the file was hashed in Merkle mode; not sent.
+	 */
+	private byte[][] blockRoots;
+	
 	/**
 	 * A blank object to support json serialization.
 	 */
@@ -48,7 +159,7 @@ public class FileDescr {
 	 */
 	public FileDescr(RandomAccessFile file) throws IOException, NoSuchAlgorithmException {
 		fileLength = file.length();
-		blockLength=16*1024*1024;
+		blockLength=DEFAULT_BLOCK_LENGTH;
 		numBlocks = (int)(fileLength/blockLength + (fileLength%blockLength>0?1:0));
 		if(fileLength==0) return;
 		init(file);
@@ -70,24 +181,269 @@ public class FileDescr {
 		init(file);
 	}
 	
+	/**
+	 * Create a file descriptor for a given file, using a given block length, hashing
+	 * up to the given number of blocks at once on a pool of threads shared by all descriptors,
+	 * while the calling thread computes the MD5 hash of the whole file. Each block is read
+	 * once, a chunk at a time with positional reads, by the thread hashing it, which then
+	 * hands each chunk to the calling thread, and the calling thread hashes the chunks in
+	 * the order of the file. A thread reads at most a few chunks ahead of the calling thread,
+	 * so a bounded number of chunks are held in memory at once, however long the blocks are.
+	 * The descriptor is the same as one created by
+	 * {@link #FileDescr(RandomAccessFile, int)}.
+	 * If the file is empty, all MD5 hashes will be the empty string.
+	 * @param file the file to create the file descriptor for
+	 * @param blockLength the block length to use
+	 * @param parallelism the number of blocks to hash at once, 1 or less to hash on the calling thread only
+	 * @throws IOException if the file cannot be accessed
+	 * @throws NoSuchAlgorithmException if the MD5 algorithm is unavailable
+	 */
+	public FileDescr(RandomAccessFile file, int blockLength, int parallelism) throws NoSuchAlgorithmException, IOException {
+		fileLength = file.length();
+		this.blockLength=blockLength;
+		numBlocks = (int)(fileLength/blockLength + (fileLength%blockLength>0?1:0));
+		if(fileLength==0) return;
+		if(parallelism<=1 || numBlocks==1) {
+			init(file);
+		} else {
+			initParallel(file, parallelism);
+		}
+	}
+	
+	/**
+	 * Create a file descriptor for a given file, using a given block length and hash mode.
+	 * In {@link HASHMODE#MERKLE} mode the leaf length is {@link MerkleTree#DEFAULT_LEAF_LENGTH},
+	 * and the block length must be a power of two multiple of it.
+	 * If the file is empty, all hashes will be the empty string.
+	 * @param file the file to create the file descriptor for
+	 * @param blockLength the block length to use
+	 * @param hashMode how the blocks are described
+	 * @throws IOException if the file cannot be accessed
+	 * @throws NoSuchAlgorithmException if the hash algorithm is unavailable
+	 */
+	public FileDescr(RandomAccessFile file, int blockLength, HASHMODE hashMode) throws NoSuchAlgorithmException, IOException {
+		this(file, blockLength, hashMode, hashMode==HASHMODE.MERKLE ? HASHALGORITHM.SHA256 : HASHALGORITHM.MD5, 1);
+	}
+	
+	/**
+	 * Create a file descriptor for a given file, using a given block length, hash mode and
+	 * hash algorithm. In flat mode the blocks are hashed with up to the given number of threads,
+	 * as for {@link #FileDescr(RandomAccessFile, int, int)}; in Merkle mode, as for
+	 * {@link #FileDescr(RandomAccessFile, int, HASHMODE)}, on the calling thread.
+	 * If the file is empty, all hashes will be the empty string.
+	 * @param file the file to create the file descriptor for
+	 * @param blockLength the block length to use
+	 * @param hashMode how the blocks are described
+	 * @param hashAlgorithm the algorithm to hash with
+	 * @param parallelism the number of blocks to hash at once, 1 or less to hash on the calling thread only
+	 * @throws IOException if the file cannot be accessed
+	 * @throws NoSuchAlgorithmException if the hash algorithm is unavailable
+	 */
+	public FileDescr(RandomAccessFile file, int blockLength, HASHMODE hashMode, HASHALGORITHM hashAlgorithm,
+			int parallelism) throws NoSuchAlgorithmException, IOException {
+		fileLength = file.length();
+		this.blockLength=blockLength;
+		numBlocks = (int)(fileLength/blockLength + (fileLength%blockLength>0?1:0));
+		if(hashMode==HASHMODE.MERKLE) {
+			leafLength = MerkleTree.DEFAULT_LEAF_LENGTH;
+			if(blockLength%leafLength!=0 || Integer.bitCount(blockLength/leafLength)!=1) {
+				throw new IllegalArgumentException("The block length must be a power of two multiple of "+leafLength);
+			}
+			blockMd5 = new String[0];
+		}
+		if(hashAlgorithm!=getHashAlgorithm()) {
+			this.hashAlgorithm=hashAlgorithm.name();
+		}
+		if(fileLength==0) {
+			return;
+		}
+		if(hashMode==HASHMODE.MERKLE) {
+			initMerkle(file);
+		} else if(parallelism<=1 || numBlocks==1) {
+			init(file);
+		} else {
+			initParallel(file, parallelism);
+		}
+	}
+	
+	private void initMerkle(RandomAccessFile file) throws IOException, NoSuchAlgorithmException {
+		blockRoots = new byte[numBlocks][];
+		MessageDigest digest = getHashAlgorithm().newDigest();
+		FileChannel channel = file.getChannel();
+		int chunkLength = Math.max(leafLength, HASH_CHUNK/leafLength*leafLength);
+		ByteBuffer chunk = ByteBuffer.allocate((int)Math.min(chunkLength, fileLength));
+		for(int b = 0; b < numBlocks; b+=1) {
+			byte[][] leafHashes = MerkleTree.leafHashes(digest, channel, getBlockOffset(b), getNumBlockBytes(b),
+					leafLength, chunk);
+			blockRoots[b]=MerkleTree.root(digest, leafHashes);
+		}
+		fileMd5=bytesToHex(MerkleTree.root(digest, blockRoots));
+	}
+	
+	private void initParallel(RandomAccessFile file, int parallelism) throws IOException, NoSuchAlgorithmException {
+		blockMd5 = new String[numBlocks];
+		MessageDigest fileDigest = getHashAlgorithm().newDigest();
+		FileChannel channel = file.getChannel();
+		ConcurrentLinkedQueue<ByteBuffer> freeChunks = new ConcurrentLinkedQueue<ByteBuffer>();
+		ExecutorService pool = hashPool();
+		ArrayDeque<BlockHasher> hashers = new ArrayDeque<BlockHasher>();
+		try {
+			int next = 0;
+			for(int b = 0; b < numBlocks; b+=1) {
+				while(next < numBlocks && next-b < parallelism) {
+					BlockHasher hasher = new BlockHasher(channel, next++, freeChunks);
+					hasher.future = pool.submit(hasher);
+					hashers.add(hasher);
+				}
+				BlockHasher hasher = hashers.peek();
+				for(int c = 0; c < hasher.numChunks; c++) {
+					ByteBuffer chunk = hasher.chunks.take();
+					if(chunk==HASH_FAILED) {
+						break;
+					}
+					fileDigest.update(chunk);
+					freeChunks.add(chunk);
+				}
+				hasher.future.get();
+				hashers.remove();
+			}
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof Error) throw (Error) e.getCause();
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if(e.getCause() instanceof NoSuchAlgorithmException) throw (NoSuchAlgorithmException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			// a hasher may be waiting for the calling thread to take its chunks
+			for(BlockHasher hasher : hashers) {
+				hasher.future.cancel(true);
+			}
+		}
+		fileMd5=bytesToHex(fileDigest.digest());
+	}
+	
+	/**
+	 * @return the pool that blocks are hashed on in parallel, with a thread per processor
+	 */
+	private static synchronized ExecutorService hashPool() {
+		if(hashPool==null) {
+			hashPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+				Thread thread = new Thread(r, "FileDescr hasher");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return hashPool;
+	}
+	
+	/**
+	 * Reads a block a chunk at a time with positional reads, sets its hash, and passes each
+	 * chunk on for the hash of the whole file.
+	 */
+	private final class BlockHasher implements Callable<Void> {
+		
+		final int blockIdx;
+		
+		final int numChunks;
+		
+		/**
+		 * The chunks read and not yet taken for the hash of the whole file.
+		 */
+		final ArrayBlockingQueue<ByteBuffer> chunks = new ArrayBlockingQueue<ByteBuffer>(PIPELINE_CHUNKS);
+		
+		private final FileChannel channel;
+		
+		private final ConcurrentLinkedQueue<ByteBuffer> freeChunks;
+		
+		Future<Void> future;
+		
+		BlockHasher(FileChannel channel, int blockIdx, ConcurrentLinkedQueue<ByteBuffer> freeChunks) {
+			this.channel = channel;
+			this.blockIdx = blockIdx;
+			this.freeChunks = freeChunks;
+			numChunks = (getNumBlockBytes(blockIdx)+HASH_CHUNK-1)/HASH_CHUNK;
+		}
+		
+		@Override
+		public Void call() throws IOException, NoSuchAlgorithmException, InterruptedException {
+			try {
+				MessageDigest blockDigest = getHashAlgorithm().newDigest();
+				long offset = getBlockOffset(blockIdx);
+				long end = offset+getNumBlockBytes(blockIdx);
+				while(offset<end) {
+					ByteBuffer chunk = freeChunks.poll();
+					if(chunk==null) {
+						chunk = ByteBuffer.allocate(HASH_CHUNK);
+					}
+					chunk.clear();
+					chunk.limit((int)Math.min(HASH_CHUNK, end-offset));
+					while(chunk.hasRemaining()) {
+						if(channel.read(chunk, offset+chunk.position())<0) {
+							throw new EOFException();
+						}
+					}
+					chunk.flip();
+					blockDigest.update(chunk);
+					chunk.rewind();
+					offset+=chunk.limit();
+					chunks.put(chunk);
+				}
+				blockMd5[blockIdx]=bytesToHex(blockDigest.digest());
+				return null;
+			} catch(InterruptedException e) {
+				throw e; // cancelled, so the calling thread is not waiting
+			} catch(Throwable e) {
+				chunks.put(HASH_FAILED);
+				throw e;
+			}
+		}
+	}
+	
 	private void init(RandomAccessFile file) throws IOException, NoSuchAlgorithmException {
 		blockMd5 = new String[numBlocks];
-		MessageDigest fileDigest = MessageDigest.getInstance("MD5");
-		MessageDigest blockDigest = MessageDigest.getInstance("MD5");
+		MessageDigest fileDigest = getHashAlgorithm().newDigest();
+		MessageDigest blockDigest = getHashAlgorithm().newDigest();
+		FileChannel channel = file.getChannel();
+		ByteBuffer chunk = ByteBuffer.allocate((int)Math.min(HASH_CHUNK, fileLength));
 		for(int b = 0; b < numBlocks; b+=1) {
-			int numBytes = getNumBlockBytes(b);
-			long blockOffset = getBlockOffset(b);
-			byte[] blockBytes = new byte[(int)numBytes];
-			file.seek(blockOffset);
-			file.readFully(blockBytes,0,numBytes);
-			fileDigest.update(blockBytes);
-			blockDigest.update(blockBytes);
+			digest(channel, getBlockOffset(b), getNumBlockBytes(b), chunk, fileDigest, blockDigest);
 			blockMd5[b]=bytesToHex(blockDigest.digest());
-			blockDigest.reset();
 		}
 		fileMd5=bytesToHex(fileDigest.digest());
 	}
 	
+	/**
+	 * Feed the bytes of a region of a file to the digests, a chunk at a time through the
+	 * given buffer, so that no more than a chunk of the file is in memory however long the
+	 * region is. The reads are positional, so the file position is not changed.
+	 * @param channel the channel of the file
+	 * @param offset the offset of the region
+	 * @param length the length of the region
+	 * @param chunk the buffer to read through, of any capacity
+	 * @param digests the digests to update
+	 * @throws IOException if the file cannot be accessed, or ends before the region does
+	 */
+	static void digest(FileChannel channel, long offset, long length, ByteBuffer chunk,
+			MessageDigest... digests) throws IOException {
+		long end = offset+length;
+		while(offset<end) {
+			chunk.clear();
+			chunk.limit((int)Math.min(chunk.capacity(), end-offset));
+			while(chunk.hasRemaining()) {
+				if(channel.read(chunk, offset+chunk.position())<0) {
+					throw new EOFException();
+				}
+			}
+			for(MessageDigest digest : digests) {
+				chunk.flip();
+				digest.update(chunk);
+			}
+			offset+=chunk.limit();
+		}
+	}
+	
 	/**
 	 * 
 	 * @return the block length in bytes
@@ -140,7 +496,47 @@ public class FileDescr {
 	
 	/**
 	 * 
-	 * @return the MD5 hash of the file's content, or the empty string if the file has length 0
+	 * @return how the blocks of the file are described
+	 */
+	public HASHMODE getHashMode() {
+		return leafLength==null ? HASHMODE.FLAT : HASHMODE.MERKLE;
+	}
+	
+	/**
+	 * 
+	 * @return the leaf length of the hash tree, or 0 if the file is described by block MD5 hashes
+	 */
+	public int getLeafLength() {
+		return leafLength==null ? 0 : leafLength;
+	}
+	
+	/**
+	 * 
+	 * @return the algorithm that the blocks and the file are hashed with
+	 * @throws NoSuchAlgorithmException if the descriptor names an algorithm that is not known
+	 */
+	public HASHALGORITHM getHashAlgorithm() throws NoSuchAlgorithmException {
+		if(hashAlgorithm==null) {
+			return getHashMode()==HASHMODE.MERKLE ? HASHALGORITHM.SHA256 : HASHALGORITHM.MD5;
+		}
+		try {
+			return HASHALGORITHM.valueOf(hashAlgorithm);
+		} catch (IllegalArgumentException e) {
+			throw new NoSuchAlgorithmException(hashAlgorithm);
+		}
+	}
+	
+	/**
+	 * @return the roots of the blocks if this descriptor hashed the file in Merkle mode, null otherwise
+	 */
+	byte[][] getBlockRoots() {
+		return blockRoots;
+	}
+	
+	/**
+	 * 
+	 * @return the hash of the file's content, MD5 by default, or in Merkle mode the root of the hash tree,
+	 * or the empty string if the file has length 0
 	 */
 	public String getFileMd5() {
 		if(fileLength>0) {
@@ -153,9 +549,13 @@ public class FileDescr {
 	/**
 	 * 
 	 * @param blockIdx
-	 * @return the MD5 hash of the block at the given blockIdx, or the empty string if the file has length 0
+	 * @return the hash of the block at the given blockIdx, MD5 by default, or the empty string if the file has length 0,
+	 * or null in Merkle mode
 	 */
 	public String getBlockMd5(int blockIdx) {
+		if(getHashMode()==HASHMODE.MERKLE) {
+			return null;
+		}
 		if(fileLength>0) {
 			return blockMd5[blockIdx];
 		} else {
@@ -174,5 +574,25 @@ public class FileDescr {
 	    }
 	    return new String(hexChars);
 	}
+	
+	/**
+	 * The inverse of {@link #bytesToHex}, in either case.
+	 * @throws IllegalArgumentException if the string is not hexadecimal
+	 */
+	public static byte[] hexToBytes(String hex) {
+		if(hex.length()%2!=0) {
+			throw new IllegalArgumentException("Odd length hex string");
+		}
+		byte[] bytes = new byte[hex.length()/2];
+		for(int j = 0; j < bytes.length; j++) {
+			int hi = Character.digit(hex.charAt(j*2), 16);
+			int lo = Character.digit(hex.charAt(j*2+1), 16);
+			if(hi<0 || lo<0) {
+				throw new IllegalArgumentException("Not a hex string");
+			}
+			bytes[j] = (byte)((hi<<4)|lo);
+		}
+		return bytes;
+	}
 
 }
@@ -1,29 +1,239 @@
 package comp90015.idxsrv.filemgr;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.MessageFactory;
 
 /**
- * Manage random access to the blocks in a file.
+ * Manage random access to the blocks in a file. Blocks are read and written with positional
+ * {@link FileChannel} I/O, or through mapped windows of the file (see {@link IOMODE}), each thread hashes with its own digest, and the available blocks
+ * are kept in a {@link BlockBitmap}, so any number of threads may read and write blocks of the same file at once.
  * @author aaron
  *
  */
 public class FileMgr {
 	
+	/**
+	 * How {@link FileMgr#checkFileHash} checks the hash of the whole file.
+	 * <ul>
+	 * <li>{@link VERIFYPOLICY#FULL} reads and hashes the whole file when it is called.</li>
+	 * <li>{@link VERIFYPOLICY#INCREMENTAL} hashes blocks as the run of available blocks from
+	 * the start of the file grows, so that when it is called only the blocks after that run
+	 * are left to hash.</li>
+	 * <li>{@link VERIFYPOLICY#TRUST_BLOCKS} does not hash the whole file at all, since every
+	 * block's hash has already been checked as it was written.</li>
+	 * </ul>
+	 */
+	public enum VERIFYPOLICY {
+		FULL,
+		INCREMENTAL,
+		TRUST_BLOCKS
+	}
+	
+	/**
+	 * How blocks are read and written.
+	 * <ul>
+	 * <li>{@link IOMODE#POSITIONAL} uses positional {@link FileChannel} reads and writes,
+	 * a system call per block.</li>
+	 * <li>{@link IOMODE#MAPPED} maps windows of the file into memory, so that a block is
+	 * copied straight between the page cache and the caller's bytes, with no system call
+	 * once its window is mapped. The most recently used windows are kept mapped, up to
+	 * {@link #MAX_WINDOWS}; the others are unmapped when they are garbage collected. The
+	 * file must not be truncated by another process while it is mapped.</li>
+	 * </ul>
+	 * {@link #transferBlock} uses {@link FileChannel#transferTo} in either mode.
+	 */
+	public enum IOMODE {
+		POSITIONAL,
+		MAPPED
+	}
+	
+	/**
+	 * The length of a mapped window, rounded down to a multiple of the block length so that no
+	 * block spans two windows.
+	 */
+	private static final int WINDOW_LENGTH = 64*1024*1024;
+	
+	/**
+	 * The number of windows to keep mapped.
+	 */
+	private static final int MAX_WINDOWS = 16;
+	
+	/**
+	 * The size of the chunks that {@link #readBlock(int, OutputStream)} copies a block in.
+	 */
+	private static final int COPY_CHUNK = 64*1024;
+	
+	/**
+	 * The suffix of the name of the resume state file kept next to an incomplete file.
+	 */
+	public static final String STATE_SUFFIX = ".fmstate";
+	
+	private static final int STATE_MAGIC = 0x464d5333; // "FMS3", which records the descriptor's hash and the known block roots
+	
+	/**
+	 * The longest time, in milliseconds, that a written block is left out of the resume state.
+	 */
+	private static final long SAVE_INTERVAL = 1000;
+	
+	/**
+	 * The number of written blocks after which the resume state is saved without waiting for {@link #SAVE_INTERVAL}.
+	 */
+	private static final int SAVE_BLOCKS = 16;
+	
+	/**
+	 * The thread that saves the resume states of all files, created when first needed.
+	 */
+	private static ScheduledExecutorService stateSaver;
+	
+	private Path path;
+	
 	private RandomAccessFile file;
 	
+	private FileChannel channel;
+	
 	private FileDescr fileDescr;
 	
-	private MessageDigest blockDigest;
+	private FileDescr.HASHALGORITHM hashAlgorithm;
+	
+	private ThreadLocal<MessageDigest> blockDigest;
+	
+	/**
+	 * The hash of the file, and in flat mode of each block, decoded from the descriptor.
+	 */
+	private byte[] fileHash;
+	
+	private byte[][] blockHashes;
+	
+	private BlockBitmap blocksDone;
+	
+	/**
+	 * The blocks that a thread is writing, so that no other thread writes them at the same time.
+	 */
+	private BlockBitmap blocksWriting;
+	
+	/**
+	 * The resume state file, or null if no state is kept.
+	 */
+	private Path statePath;
+	
+	/**
+	 * The SHA-256 hash of the descriptor, as written to the resume state file.
+	 */
+	private byte[] stateDescrHash;
+	
+	private final Object stateLock = new Object();
+	
+	/**
+	 * The number of blocks written since the resume state was last saved.
+	 */
+	private final AtomicInteger unsavedBlocks = new AtomicInteger();
+	
+	/**
+	 * Set while a save of the resume state is scheduled and has not yet started.
+	 */
+	private final AtomicBoolean saveScheduled = new AtomicBoolean();
+	
+	private volatile VERIFYPOLICY verifyPolicy = VERIFYPOLICY.INCREMENTAL;
+	
+	private volatile IOMODE ioMode = IOMODE.POSITIONAL;
+	
+	/**
+	 * The mapped windows by offset, least recently used first. Guarded by itself.
+	 */
+	private final LinkedHashMap<Long,MappedByteBuffer> windows = new LinkedHashMap<Long,MappedByteBuffer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long,MappedByteBuffer> eldest) {
+			return size()>MAX_WINDOWS;
+		}
+	};
+	
+	/**
+	 * The windows written since they were last forced, including evicted ones, which are
+	 * forced with the next resume state rather than by the thread that evicts them. Guarded
+	 * by {@link #windows}.
+	 */
+	private final Set<MappedByteBuffer> dirtyWindows = Collections.newSetFromMap(new IdentityHashMap<>());
+	
+	/**
+	 * Guards the incremental hash of the whole file.
+	 */
+	private final ReentrantLock verifyLock = new ReentrantLock();
+	
+	/**
+	 * Held shared by a writer from writing a block until the block is counted for the resume
+	 * state and in the incremental hash, and by a background save of the state, and exclusively
+	 * by {@link #closeFile}, so that the file is not closed, and its state deleted, while a
+	 * writer or a save is still using them.
+	 */
+	private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+	
+	private boolean closed;
+	
+	/**
+	 * The hash of the first verifiedPrefix blocks, or null if it could not be kept.
+	 */
+	private MessageDigest fileDigest;
+	
+	private int verifiedPrefix;
 	
-	private Set<Integer> blocksRequired;
+	/**
+	 * The hash of the whole file once the incremental hash is complete.
+	 */
+	private byte[] incrementalHash;
+	
+	/**
+	 * In Merkle mode, the roots of the blocks that are known to be in the file's hash tree,
+	 * null for those not yet known; null in flat mode.
+	 */
+	private AtomicReferenceArray<byte[]> blockRoots;
 	
-	private Set<Integer> blocksDone;
+	/**
+	 * The number of block roots that are known.
+	 */
+	private final AtomicInteger knownRoots = new AtomicInteger();
+	
+	/**
+	 * The levels of the hash tree over the block roots, built once all roots are known, so
+	 * that a proof is read from them rather than hashed again; null until then.
+	 */
+	private volatile byte[][][] rootLevels;
 	
 	/**
 	 * Open the file and create a file descriptor for it. Only use this initializer when
@@ -33,8 +243,36 @@ public class FileMgr {
 	 * @throws IOException when the file cannot be accessed.
 	 */
 	public FileMgr(String filename) throws NoSuchAlgorithmException, IOException {
+		this(filename, FileDescr.HASHMODE.FLAT);
+	}
+	
+	/**
+	 * Open the file and create a file descriptor for it with the given hash mode and the
+	 * default block length. Only use this initializer when the file is known to be complete.
+	 * @param filename the name of the file to open.
+	 * @param hashMode how the blocks of the file are described.
+	 * @throws NoSuchAlgorithmException when the hash algorithm is unavailable.
+	 * @throws IOException when the file cannot be accessed.
+	 */
+	public FileMgr(String filename, FileDescr.HASHMODE hashMode) throws NoSuchAlgorithmException, IOException {
+		this(filename, hashMode, hashMode==FileDescr.HASHMODE.MERKLE ? FileDescr.HASHALGORITHM.SHA256
+				: FileDescr.HASHALGORITHM.MD5);
+	}
+	
+	/**
+	 * Open the file and create a file descriptor for it with the given hash mode and algorithm,
+	 * and the default block length. Only use this initializer when the file is known to be complete.
+	 * @param filename the name of the file to open.
+	 * @param hashMode how the blocks of the file are described.
+	 * @param hashAlgorithm the algorithm to hash the blocks and the file with.
+	 * @throws NoSuchAlgorithmException when the hash algorithm is unavailable.
+	 * @throws IOException when the file cannot be accessed.
+	 */
+	public FileMgr(String filename, FileDescr.HASHMODE hashMode, FileDescr.HASHALGORITHM hashAlgorithm)
+			throws NoSuchAlgorithmException, IOException {
 		init(filename);
-		fileDescr = new FileDescr(file);
+		fileDescr = new FileDescr(file, FileDescr.DEFAULT_BLOCK_LENGTH, hashMode, hashAlgorithm, 1);
+		initHashes();
 		checkBlocksRequired();
 		if(!isComplete()) { // sanity check
 			throw new IOException();
@@ -48,108 +286,682 @@ public class FileMgr {
 	 * blocks that are invalid then those blocks will be set as required, i.e. the initializer
 	 * can be called on a file with any content with the intention that the file's complete
 	 * content will eventually match the descriptor.
+	 * <p>
+	 * While the file is incomplete, the hash of the descriptor and the available blocks are
+	 * kept in a resume state file, named with {@link #STATE_SUFFIX}, together with the block
+	 * roots proven so far in Merkle mode. The state is saved in the background, at most
+	 * {@link #SAVE_INTERVAL} milliseconds or {@link #SAVE_BLOCKS} blocks after a block is
+	 * written, and when the file is closed, so the blocks written just before a crash may
+	 * have to be written again. When the file is opened again with the same descriptor,
+	 * and its size and modification time are as recorded, the available blocks and roots are
+	 * taken from the state file rather than by hashing every block.
 	 * @param filename the name of the file to open.
 	 * @param fileDescr the known descriptor of the file.
-	 * @throws IOException when the file cannot be accessed.
-	 * @throws NoSuchAlgorithmException when the MD5 hash algorithm is unavailable.
+	 * @throws IOException when the file cannot be accessed, or the descriptor is malformed.
+	 * @throws NoSuchAlgorithmException when the descriptor's hash algorithm is unavailable.
 	 */
 	public FileMgr(String filename, FileDescr fileDescr) throws IOException, NoSuchAlgorithmException {
+		this(filename, fileDescr, false);
+	}
+	
+	/**
+	 * Open the file and use the provided file descriptor, as for {@link #FileMgr(String, FileDescr)}.
+	 * @param filename the name of the file to open.
+	 * @param fileDescr the known descriptor of the file.
+	 * @param verify true to hash every block of the file even if the resume state file could be used.
+	 * @throws IOException when the file cannot be accessed, or the descriptor is malformed.
+	 * @throws NoSuchAlgorithmException when the descriptor's hash algorithm is unavailable.
+	 */
+	public FileMgr(String filename, FileDescr fileDescr, boolean verify) throws IOException, NoSuchAlgorithmException {
 		init(filename);
-		file.setLength(fileDescr.getFileLength());
 		this.fileDescr = fileDescr;
-		checkBlocksRequired();
+		initHashes();
+		statePath = Paths.get(filename+STATE_SUFFIX);
+		try {
+			stateDescrHash = MessageDigest.getInstance("SHA-256").digest(
+					MessageFactory.serialize(fileDescr).getBytes(StandardCharsets.UTF_8));
+		} catch (JsonSerializationException e) {
+			throw new IOException(e.getMessage());
+		}
+		if(verify || !loadState()) {
+			if(file.length()!=fileDescr.getFileLength()) {
+				file.setLength(fileDescr.getFileLength());
+			}
+			checkBlocksRequired();
+		}
+		if(isComplete()) {
+			deleteState();
+		} else {
+			saveState();
+		}
 	}
 	
-	private void init(String filename) throws FileNotFoundException, NoSuchAlgorithmException {
+	private void init(String filename) throws FileNotFoundException {
+		path = Paths.get(filename);
 		file = new RandomAccessFile(filename, "rw");
-		blockDigest = MessageDigest.getInstance("MD5");
-		blocksRequired = new HashSet<Integer>();
-		blocksDone = new HashSet<Integer>();
+		channel = file.getChannel();
+		blockDigest = ThreadLocal.withInitial(() -> {
+			try {
+				return hashAlgorithm.newDigest();
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+	
+	/**
+	 * Decode the hashes of the descriptor once, so that they are compared as bytes.
+	 */
+	private void initHashes() throws NoSuchAlgorithmException, IOException {
+		hashAlgorithm = fileDescr.getHashAlgorithm();
+		fileDigest = hashAlgorithm.newDigest(); // fails here if the algorithm is unavailable, rather than in a thread's block digest
+		try {
+			fileHash = FileDescr.hexToBytes(fileDescr.getFileMd5());
+			if(fileDescr.getHashMode()==FileDescr.HASHMODE.MERKLE) {
+				byte[][] roots = fileDescr.getBlockRoots();
+				blockRoots = new AtomicReferenceArray<byte[]>(fileDescr.getNumBlocks());
+				for(int b=0;roots!=null && b<roots.length;b++) {
+					addBlockRoot(b, roots[b]);
+				}
+			} else {
+				blockHashes = new byte[fileDescr.getNumBlocks()][];
+				for(int b=0;b<blockHashes.length;b++) {
+					blockHashes[b]=FileDescr.hexToBytes(fileDescr.getBlockMd5(b));
+				}
+			}
+		} catch(IllegalArgumentException | NullPointerException | ArrayIndexOutOfBoundsException e) {
+			// e.g. a descriptor from another peer with missing or malformed hashes
+			throw new IOException("Invalid file descriptor");
+		}
 	}
 	
 	private void checkBlocksRequired() throws IOException {
-		blocksRequired.clear();
-		blocksDone.clear();
+		blocksDone = new BlockBitmap(fileDescr.getNumBlocks());
+		blocksWriting = new BlockBitmap(fileDescr.getNumBlocks());
+		if(fileDescr.getNumBlocks()==0) {
+			return;
+		}
+		MessageDigest digest = blockDigest.get();
+		if(blockRoots!=null) {
+			// only blocks whose roots are known can be checked, the rest are required
+			int leafLength = fileDescr.getLeafLength();
+			ByteBuffer chunk = ByteBuffer.allocate((int)Math.min(Math.max(leafLength,
+					FileDescr.HASH_CHUNK/leafLength*leafLength), fileDescr.getFileLength()));
+			for(int b=0;b<fileDescr.getNumBlocks();b++) {
+				byte[] root = blockRoots.get(b);
+				if(root!=null && MessageDigest.isEqual(root, MerkleTree.root(digest, MerkleTree.leafHashes(digest,
+						channel, fileDescr.getBlockOffset(b), fileDescr.getNumBlockBytes(b), leafLength, chunk)))) {
+					blocksDone.set(b);
+				}
+			}
+			return;
+		}
+		ByteBuffer chunk = ByteBuffer.allocate((int)Math.min(FileDescr.HASH_CHUNK, fileDescr.getFileLength()));
 		for(int b=0;b<fileDescr.getNumBlocks();b++) {
-			byte[] blockBytes = _readBlock(b);
-			if(checkBlockHash(b,blockBytes)) {
-				blocksDone.add(b);
-			} else {
-				blocksRequired.add(b);
+			FileDescr.digest(channel, fileDescr.getBlockOffset(b), fileDescr.getNumBlockBytes(b), chunk, digest);
+			if(MessageDigest.isEqual(digest.digest(), blockHashes[b])) {
+				blocksDone.set(b);
 			}
 		}
 	}
 	
 	/**
-	 * Return true if the MD5 hash of the given block's bytes match the
-	 * MD5 hash of the descriptor at the given block index. Return false
+	 * Return true if the hash of the given block's bytes match the
+	 * hash of the descriptor at the given block index. Return false
 	 * otherwise. Use this method to test that the block is correct before
-	 * calling {@link writeBlock}.
+	 * calling {@link writeBlock}. In Merkle mode the block's root must match
+	 * one added with {@link #addBlockProof}.
 	 * @param blockIdx the index of the block, which must be less than the number of blocks
 	 * @param blockBytes the bytes of the block
 	 * @return true if matched, false otherwise
 	 */
 	public boolean checkBlockHash(int blockIdx, byte[] blockBytes) {
-		blockDigest.update(blockBytes);
-		String blockMd5 = FileDescr.bytesToHex(blockDigest.digest());
-		blockDigest.reset();
-		return blockMd5.equals(fileDescr.getBlockMd5(blockIdx));
+		MessageDigest digest = blockDigest.get();
+		if(blockRoots!=null) {
+			byte[] root = blockRoots.get(blockIdx);
+			return root!=null && MessageDigest.isEqual(root, MerkleTree.root(digest,
+					MerkleTree.leafHashes(digest, blockBytes, 0, blockBytes.length, fileDescr.getLeafLength())));
+		}
+		digest.update(blockBytes);
+		return MessageDigest.isEqual(digest.digest(), blockHashes[blockIdx]);
 	}
 	
 	/**
 	 * Write the block bytes to the file at the given block index. If the block
-	 * is not required (it is already present in the file) or the block's MD5 hash
+	 * is not required (it is already present in the file) or the block's hash
 	 * does not match the descriptor then the block is not written. Use {@link checkBlockHash}
-	 * before calling this function to check if the block is correct.
+	 * before calling this function to check if the block is correct. If threads write
+	 * the same block at once then only one of them writes it.
 	 * @param blockIdx the index of the block, which must be less than the number of blocks
 	 * @param blockBytes the bytes of the block
 	 * @return true if the block was written, false otherwise
 	 * @throws IOException if the file cannot be accessed
 	 */
 	public boolean writeBlock(int blockIdx, byte[] blockBytes) throws IOException {
-		if(blocksRequired.contains(blockIdx) && checkBlockHash(blockIdx,blockBytes)) {
-			long offset = fileDescr.getBlockOffset(blockIdx);
-			file.seek(offset);
-			file.write(blockBytes,0,blockBytes.length);
-			blocksRequired.remove(blockIdx);
-			blocksDone.add(blockIdx);
+		if(blockIdx<0 || blockIdx>=fileDescr.getNumBlocks() || blocksDone.get(blockIdx)
+				|| !checkBlockHash(blockIdx,blockBytes)) {
+			return false;
+		}
+		closeLock.readLock().lock();
+		try {
+			if(closed || !blocksWriting.set(blockIdx)) {
+				return false;
+			}
+			try {
+				if(blocksDone.get(blockIdx)) {
+					return false;
+				}
+				if(ioMode==IOMODE.MAPPED) {
+					writeMappedBlock(blockIdx, blockBytes);
+				} else {
+					long offset = fileDescr.getBlockOffset(blockIdx);
+					ByteBuffer buffer = ByteBuffer.wrap(blockBytes);
+					while(buffer.hasRemaining()) {
+						channel.write(buffer, offset+buffer.position());
+					}
+				}
+				blocksDone.set(blockIdx);
+			} finally {
+				blocksWriting.clear(blockIdx);
+			}
+			scheduleSave();
+			extendVerifiedPrefix(blockIdx, blockBytes);
 			return true;
-		} else {
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * In Merkle mode, learn the root of a block from the hashes of its leaves, if the proof
+	 * shows that the block is in the file's hash tree.
+	 * @param blockIdx the index of the block
+	 * @param leafHashes the hashes of the block's leaves
+	 * @param proof the proof that the block's root is in the tree, from {@link #getBlockProof}
+	 * @return true if the proof holds, false otherwise or if the file is not in Merkle mode
+	 */
+	public boolean addBlockProof(int blockIdx, byte[][] leafHashes, byte[][] proof) {
+		if(blockRoots==null || blockIdx<0 || blockIdx>=fileDescr.getNumBlocks() || leafHashes.length==0
+				|| leafHashes.length!=(fileDescr.getNumBlockBytes(blockIdx)+fileDescr.getLeafLength()-1)/fileDescr.getLeafLength()) {
+			return false;
+		}
+		MessageDigest digest = blockDigest.get();
+		byte[] root = MerkleTree.root(digest, leafHashes);
+		if(!MerkleTree.verify(digest, root, blockIdx, fileDescr.getNumBlocks(), proof, fileHash)) {
+			return false;
+		}
+		addBlockRoot(blockIdx, root);
+		return true;
+	}
+	
+	/**
+	 * Learn the root of a block, unless it is already known.
+	 */
+	private void addBlockRoot(int blockIdx, byte[] root) {
+		if(root!=null && blockRoots.compareAndSet(blockIdx, null, root)) {
+			knownRoots.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * @param blockIdx the index of the block
+	 * @return true if the block's root is known in Merkle mode, so the block can be checked
+	 */
+	public boolean isBlockRootKnown(int blockIdx) {
+		return blockRoots!=null && blockIdx>=0 && blockIdx<fileDescr.getNumBlocks() && blockRoots.get(blockIdx)!=null;
+	}
+	
+	/**
+	 * In Merkle mode, hash the leaves of an available block, to send with {@link #getBlockProof}.
+	 * @param blockIdx the index of the block, which must be less than the number of blocks
+	 * @return the hashes of the block's leaves
+	 * @throws IOException if the file cannot be accessed
+	 * @throws BlockUnavailableException if the block is not available, or the file is not in Merkle mode
+	 */
+	public byte[][] getLeafHashes(int blockIdx) throws IOException, BlockUnavailableException {
+		if(blockRoots==null || !blocksDone.get(blockIdx)) {
+			throw new BlockUnavailableException();
+		}
+		int leafLength = fileDescr.getLeafLength();
+		ByteBuffer chunk = ByteBuffer.allocate(Math.min(Math.max(leafLength, FileDescr.HASH_CHUNK/leafLength*leafLength),
+				fileDescr.getNumBlockBytes(blockIdx)));
+		return MerkleTree.leafHashes(blockDigest.get(), channel, fileDescr.getBlockOffset(blockIdx),
+				fileDescr.getNumBlockBytes(blockIdx), leafLength, chunk);
+	}
+	
+	/**
+	 * In Merkle mode, prove that a block is in the file's hash tree, which needs the roots
+	 * of all blocks, e.g. of a complete file. The tree is built the first time all the roots
+	 * are known, and each proof is then read from it.
+	 * @param blockIdx the index of the block, which must be less than the number of blocks
+	 * @return the proof
+	 * @throws BlockUnavailableException if a block's root is not known, or the file is not in Merkle mode
+	 */
+	public byte[][] getBlockProof(int blockIdx) throws BlockUnavailableException {
+		if(blockRoots==null || blockIdx<0 || blockIdx>=fileDescr.getNumBlocks()) {
+			throw new BlockUnavailableException();
+		}
+		byte[][][] levels = rootLevels;
+		if(levels==null) {
+			if(knownRoots.get()<fileDescr.getNumBlocks()) {
+				throw new BlockUnavailableException();
+			}
+			byte[][] roots = new byte[fileDescr.getNumBlocks()][];
+			for(int b=0;b<roots.length;b++) {
+				roots[b]=blockRoots.get(b);
+			}
+			// threads that find no levels at once may each build them, with the same result
+			levels = MerkleTree.levels(blockDigest.get(), roots);
+			rootLevels = levels;
+		}
+		return MerkleTree.proof(levels, blockIdx);
+	}
+	
+	/**
+	 * Set how blocks are read and written. The default is {@link IOMODE#POSITIONAL}.
+	 * @param ioMode the mode
+	 */
+	public void setIoMode(IOMODE ioMode) {
+		this.ioMode = ioMode;
+	}
+	
+	/**
+	 * Get a buffer over a block's bytes in its mapped window, mapping the window if it is not
+	 * already. The buffer is the caller's own, so threads can use blocks of the same window at once.
+	 * @return the buffer, positioned at the start of the block and limited to its end
+	 */
+	private ByteBuffer mappedBlock(int blockIdx) throws IOException {
+		long offset = fileDescr.getBlockOffset(blockIdx);
+		long windowOffset = windowOffset(offset);
+		ByteBuffer block;
+		synchronized(windows) {
+			block = window(windowOffset).duplicate();
+		}
+		block.position((int)(offset-windowOffset));
+		block.limit(block.position()+fileDescr.getNumBlockBytes(blockIdx));
+		return block;
+	}
+	
+	/**
+	 * Write a block into its mapped window, and mark the window to be forced with the resume state.
+	 */
+	private void writeMappedBlock(int blockIdx, byte[] blockBytes) throws IOException {
+		long offset = fileDescr.getBlockOffset(blockIdx);
+		long windowOffset = windowOffset(offset);
+		MappedByteBuffer window;
+		synchronized(windows) {
+			window = window(windowOffset);
+		}
+		ByteBuffer block = window.duplicate();
+		block.position((int)(offset-windowOffset));
+		block.put(blockBytes);
+		synchronized(windows) {
+			dirtyWindows.add(window);
+		}
+	}
+	
+	private long windowOffset(long offset) {
+		int blockLength = fileDescr.getBlockLength();
+		long windowLength = Math.max(blockLength, WINDOW_LENGTH/blockLength*blockLength);
+		return offset/windowLength*windowLength;
+	}
+	
+	/**
+	 * Get the window at the given offset, mapping it if it is not already. Call with {@link #windows} held.
+	 */
+	private MappedByteBuffer window(long windowOffset) throws IOException {
+		MappedByteBuffer window = windows.get(windowOffset);
+		if(window==null) {
+			int blockLength = fileDescr.getBlockLength();
+			long windowLength = Math.max(blockLength, WINDOW_LENGTH/blockLength*blockLength);
+			window = channel.map(FileChannel.MapMode.READ_WRITE, windowOffset,
+					Math.min(windowLength, fileDescr.getFileLength()-windowOffset));
+			windows.put(windowOffset, window);
+		}
+		return window;
+	}
+	
+	/**
+	 * Force the writes to the mapped windows to the file. The windows are forced without
+	 * holding {@link #windows}, so that other threads can still read and write blocks.
+	 */
+	private void forceWindows() {
+		MappedByteBuffer[] dirty;
+		synchronized(windows) {
+			dirty = dirtyWindows.toArray(new MappedByteBuffer[0]);
+			dirtyWindows.clear();
+		}
+		for(MappedByteBuffer window : dirty) {
+			window.force();
+		}
+	}
+	
+	/**
+	 * Set how {@link #checkFileHash} checks the hash of the whole file. The default is
+	 * {@link VERIFYPOLICY#INCREMENTAL}.
+	 * @param verifyPolicy the policy
+	 */
+	public void setVerifyPolicy(VERIFYPOLICY verifyPolicy) {
+		this.verifyPolicy = verifyPolicy;
+	}
+	
+	/**
+	 * Fold the blocks that extend the run of available blocks from the start of the file
+	 * into the incremental hash, using the bytes of the block just written if it is next,
+	 * and reading the others back from the file. A writer that finds another thread
+	 * already folding leaves it to that thread, or to {@link #checkFileHash}.
+	 */
+	private void extendVerifiedPrefix(int blockIdx, byte[] blockBytes) {
+		if(verifyPolicy!=VERIFYPOLICY.INCREMENTAL || blockRoots!=null || !verifyLock.tryLock()) {
+			return;
+		}
+		try {
+			if(fileDigest!=null && blockIdx==verifiedPrefix) {
+				fileDigest.update(blockBytes);
+				verifiedPrefix++;
+			}
+			foldAvailable();
+		} catch(IOException e) {
+			// left to checkFileHash, which hashes the whole file
+		} finally {
+			verifyLock.unlock();
+		}
+	}
+	
+	/**
+	 * Fold the available blocks after the verified prefix, with the verify lock held.
+	 * If a block cannot be read the incremental hash is given up.
+	 */
+	private void foldAvailable() throws IOException {
+		ByteBuffer chunk = null;
+		while(fileDigest!=null && verifiedPrefix<fileDescr.getNumBlocks() && blocksDone.get(verifiedPrefix)) {
+			if(chunk==null) {
+				chunk = ByteBuffer.allocate((int)Math.min(FileDescr.HASH_CHUNK, fileDescr.getFileLength()));
+			}
+			try {
+				FileDescr.digest(channel, fileDescr.getBlockOffset(verifiedPrefix),
+						fileDescr.getNumBlockBytes(verifiedPrefix), chunk, fileDigest);
+			} catch(IOException e) {
+				fileDigest = null;
+				throw e;
+			}
+			verifiedPrefix++;
+		}
+	}
+	
+	/**
+	 * Read the resume state file, and take the available blocks and known block roots from
+	 * it if it matches the descriptor and the file.
+	 * @return true if the state was used, false otherwise
+	 */
+	private boolean loadState() {
+		try {
+			if(!Files.exists(statePath)) {
+				return false;
+			}
+			ByteBuffer state = ByteBuffer.wrap(Files.readAllBytes(statePath));
+			CRC32 crc = new CRC32();
+			crc.update(state.array(), 0, state.limit()-4);
+			if(state.getInt(state.limit()-4)!=(int) crc.getValue() || state.getInt()!=STATE_MAGIC) {
+				return false;
+			}
+			long length = state.getLong();
+			long modified = state.getLong();
+			byte[] descrHash = new byte[state.getInt()];
+			state.get(descrHash);
+			long[] words = new long[state.getInt()];
+			for(int w=0;w<words.length;w++) {
+				words[w]=state.getLong();
+			}
+			byte[][] roots = new byte[state.getInt()][];
+			for(int b=0;b<roots.length;b++) {
+				int rootLength = state.get();
+				if(rootLength>0) {
+					roots[b] = new byte[rootLength];
+					state.get(roots[b]);
+				}
+			}
+			if(length!=fileDescr.getFileLength() || file.length()!=length
+					|| modified!=Files.getLastModifiedTime(path).toMillis()
+					|| !Arrays.equals(descrHash, stateDescrHash)
+					|| roots.length!=(blockRoots==null ? 0 : fileDescr.getNumBlocks())) {
+				return false;
+			}
+			BlockBitmap done = new BlockBitmap(fileDescr.getNumBlocks(), words);
+			for(int b=0;b<roots.length;b++) {
+				if(roots[b]==null && done.get(b)) {
+					return false; // a block can only have been written once its root was known
+				}
+			}
+			for(int b=0;b<roots.length;b++) {
+				if(roots[b]!=null) {
+					addBlockRoot(b, roots[b]);
+				}
+			}
+			blocksDone = done;
+			blocksWriting = new BlockBitmap(fileDescr.getNumBlocks());
+			return true;
+		} catch(IOException | RuntimeException e) {
 			return false;
 		}
 	}
 	
+	/**
+	 * Replace the resume state file with the current available blocks and known block roots. The file's content is
+	 * forced to disk first, so that the state never claims a block that could be lost. If the
+	 * state cannot be written then it is no longer kept, and the next open hashes every block.
+	 */
+	private void saveState() {
+		synchronized(stateLock) {
+			if(statePath==null) {
+				return;
+			}
+			Path tmp = Paths.get(statePath+".tmp");
+			try {
+				long[] words = blocksDone.snapshot();
+				forceWindows();
+				channel.force(false);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeInt(STATE_MAGIC);
+				out.writeLong(fileDescr.getFileLength());
+				out.writeLong(Files.getLastModifiedTime(path).toMillis());
+				out.writeInt(stateDescrHash.length);
+				out.write(stateDescrHash);
+				out.writeInt(words.length);
+				for(long word : words) {
+					out.writeLong(word);
+				}
+				// in Merkle mode, the roots proven so far, so that the blocks can be proven again after resuming
+				int numRoots = blockRoots==null ? 0 : blockRoots.length();
+				out.writeInt(numRoots);
+				for(int b=0;b<numRoots;b++) {
+					byte[] root = blockRoots.get(b);
+					out.writeByte(root==null ? 0 : root.length);
+					if(root!=null) {
+						out.write(root);
+					}
+				}
+				CRC32 crc = new CRC32();
+				crc.update(bytes.toByteArray());
+				out.writeInt((int) crc.getValue());
+				try (FileChannel stateChannel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+					while(buffer.hasRemaining()) {
+						stateChannel.write(buffer);
+					}
+					stateChannel.force(true);
+				}
+				Files.move(tmp, statePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch(IOException e) {
+				deleteState();
+			}
+		}
+	}
+	
+	private static synchronized ScheduledExecutorService stateSaver() {
+		if(stateSaver==null) {
+			stateSaver = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "FileMgr state saver");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return stateSaver;
+	}
+	
+	/**
+	 * Count a written block, and make sure that a save of the resume state will include it,
+	 * so that writers do not wait for the file and the state to be forced to disk.
+	 */
+	private void scheduleSave() {
+		if(statePath==null) {
+			return;
+		}
+		int unsaved = unsavedBlocks.incrementAndGet();
+		if(saveScheduled.compareAndSet(false, true)) {
+			stateSaver().schedule(this::savePending, unsaved>=SAVE_BLOCKS ? 0 : SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+		} else if(unsaved==SAVE_BLOCKS) {
+			stateSaver().execute(this::savePending);
+		}
+	}
+	
+	/**
+	 * Save the resume state in the background, if blocks were written since it was last saved.
+	 */
+	private void savePending() {
+		closeLock.readLock().lock();
+		try {
+			// cleared before the count is taken, so that a block written from now on schedules another save
+			saveScheduled.set(false);
+			if(closed || unsavedBlocks.getAndSet(0)==0) {
+				return;
+			}
+			saveState();
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+	
+	private void deleteState() {
+		synchronized(stateLock) {
+			if(statePath==null) {
+				return;
+			}
+			try {
+				Files.deleteIfExists(statePath);
+				Files.deleteIfExists(Paths.get(statePath+".tmp"));
+			} catch(IOException e) {
+				// a stale state file is not trusted, as the file's modification time will not match
+			}
+			statePath=null;
+		}
+	}
+	
 	private byte[] _readBlock(int blockIdx) throws IOException {
 		int numBytes = fileDescr.getNumBlockBytes(blockIdx);
 		long offset = fileDescr.getBlockOffset(blockIdx);
-		byte[] blockBytes = new byte[(int)numBytes];
-		file.seek(offset);
-		file.readFully(blockBytes,0,numBytes);
+		byte[] blockBytes = new byte[numBytes];
+		ByteBuffer buffer = ByteBuffer.wrap(blockBytes);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, offset+buffer.position())<0) {
+				throw new EOFException();
+			}
+		}
 		return blockBytes;
 	}
 	
 	/**
 	 * Read the block's bytes from the file. Use {@link isBlockAvailable} to check
-	 * if the block is available prior to calling this method.
+	 * if the block is available prior to calling this method. The file position is
+	 * not changed, so blocks of a complete file can be read by many threads at once.
 	 * @param blockIdx the index of the block, which must be less than the number of blocks
 	 * @return the block's bytes
 	 * @throws IOException if the file cannot be accessed
 	 * @throws BlockUnavailableException if the file does not contain the bytes for the block at that block index, i.e. the file is incomplete
 	 */
 	public byte[] readBlock(int blockIdx) throws IOException, BlockUnavailableException {
-		if(blocksDone.contains(blockIdx)){
+		if(blocksDone.get(blockIdx) && ioMode==IOMODE.MAPPED){
+			ByteBuffer block = mappedBlock(blockIdx);
+			byte[] blockBytes = new byte[block.remaining()];
+			block.get(blockBytes);
+			return blockBytes;
+		}
+		if(blocksDone.get(blockIdx)){
 			return _readBlock(blockIdx);
 		}
 		throw new BlockUnavailableException();
 	}
-	
+
+	/**
+	 * Copy the block's bytes from the file to an output stream, in small chunks, so that
+	 * the block is never held in memory as a whole. The file position is not changed.
+	 * @param blockIdx the index of the block, which must be less than the number of blocks
+	 * @param out the stream to write the block's bytes to
+	 * @throws IOException if the file cannot be accessed, or the output stream fails
+	 * @throws BlockUnavailableException if the file does not contain the bytes for the block at that block index, i.e. the file is incomplete
+	 */
+	public void readBlock(int blockIdx, OutputStream out) throws IOException, BlockUnavailableException {
+		if(!blocksDone.get(blockIdx)){
+			throw new BlockUnavailableException();
+		}
+		if(ioMode==IOMODE.MAPPED) {
+			ByteBuffer block = mappedBlock(blockIdx);
+			byte[] chunk = new byte[Math.min(COPY_CHUNK, block.remaining())];
+			while(block.hasRemaining()) {
+				int n = Math.min(chunk.length, block.remaining());
+				block.get(chunk, 0, n);
+				out.write(chunk, 0, n);
+			}
+			return;
+		}
+		long offset = fileDescr.getBlockOffset(blockIdx);
+		long end = offset+fileDescr.getNumBlockBytes(blockIdx);
+		ByteBuffer chunk = ByteBuffer.allocate((int)Math.min(COPY_CHUNK, end-offset));
+		while(offset<end) {
+			chunk.clear();
+			chunk.limit((int)Math.min(chunk.capacity(), end-offset));
+			int n = channel.read(chunk, offset);
+			if(n<0) {
+				throw new EOFException();
+			}
+			out.write(chunk.array(),0,n);
+			offset+=n;
+		}
+	}
+
+	/**
+	 * Transfer the block's bytes from the file to a channel with {@link FileChannel#transferTo},
+	 * which lets the operating system copy them, e.g. from the page cache straight to a
+	 * socket, without them entering the Java heap. The file position is not changed.
+	 * @param blockIdx the index of the block, which must be less than the number of blocks
+	 * @param target the channel to write the block's bytes to, which must be in blocking mode
+	 * @throws IOException if the file cannot be accessed, or the channel fails
+	 * @throws BlockUnavailableException if the file does not contain the bytes for the block at that block index, i.e. the file is incomplete
+	 */
+	public void transferBlock(int blockIdx, WritableByteChannel target) throws IOException, BlockUnavailableException {
+		if(!blocksDone.get(blockIdx)){
+			throw new BlockUnavailableException();
+		}
+		long offset = fileDescr.getBlockOffset(blockIdx);
+		long end = offset+fileDescr.getNumBlockBytes(blockIdx);
+		while(offset<end) {
+			long n = channel.transferTo(offset, end-offset, target);
+			if(n==0 && offset>=channel.size()) {
+				throw new EOFException();
+			}
+			offset+=n;
+		}
+	}
+
 	/**
 	 * Check if a block is available.
 	 * @param blockIdx the index of the block
 	 * @return true if the block is available, false otherwise
 	 */
 	public boolean isBlockAvailable(int blockIdx) {
-		return blocksDone.contains(blockIdx);
+		return blocksDone.get(blockIdx);
 	}
 	
 	/**
@@ -157,20 +969,68 @@ public class FileMgr {
 	 * @return true if all blocks of the file are available, i.e. the file is complete, false otherwise
 	 */
 	public boolean isComplete() {
-		return (blocksDone.size() == fileDescr.getNumBlocks());
+		return (blocksDone.count() == fileDescr.getNumBlocks());
 	}
 	
 	/**
-	 * Check if the file's MD5 hash matches the descriptor. Call this method as a sanity
+	 * @return the number of blocks that are not yet available
+	 */
+	public int getNumBlocksRequired() {
+		return blocksDone.countMissing();
+	}
+	
+	/**
+	 * Find the first block, at or after the given index, that is not yet available.
+	 * @param fromIdx the index to start from
+	 * @return the index of the block, or -1 if all blocks from the index on are available
+	 */
+	public int nextRequiredBlock(int fromIdx) {
+		return blocksDone.nextMissing(fromIdx);
+	}
+	
+	/**
+	 * Return a copy of the block availability bitmap, in which block i is available if bit
+	 * (i % 64) of word (i / 64) is set, e.g. to send to another peer.
+	 * @return the words of the bitmap
+	 */
+	public long[] getBlockBitmap() {
+		return blocksDone.snapshot();
+	}
+	
+	/**
+	 * Check if the file's hash matches the descriptor. Call this method as a sanity
 	 * check of the the overall file's content, after calling {@link isComplete} to check
-	 * if all the blocks are correct.
-	 * @return true if the file's MD5 hash matches the descriptor, false otherwise
-	 * @throws NoSuchAlgorithmException if the MD5 algorithm is unavailable
+	 * if all the blocks are correct. Only one thread at a time can check the file's hash.
+	 * How the hash is checked depends on the {@link VERIFYPOLICY}; an incremental check of
+	 * an incomplete file, or one whose incremental hash was given up, hashes the whole file.
+	 * In Merkle mode every block's root was proven to be in the tree before the block was
+	 * written, so only a full check hashes the file again.
+	 * @return true if the file's hash matches the descriptor, false otherwise
+	 * @throws NoSuchAlgorithmException if the hash algorithm is unavailable
 	 * @throws IOException if the file cannot be accessed
 	 */
-	public boolean checkFileHash() throws NoSuchAlgorithmException, IOException {
-		FileDescr newFileDescr = new FileDescr(file,fileDescr.getBlockLength());
-		return newFileDescr.getFileMd5().contentEquals(fileDescr.getFileMd5());
+	public synchronized boolean checkFileHash() throws NoSuchAlgorithmException, IOException {
+		if((verifyPolicy==VERIFYPOLICY.TRUST_BLOCKS || (blockRoots!=null && verifyPolicy==VERIFYPOLICY.INCREMENTAL))
+				&& isComplete()) {
+			return true;
+		}
+		if(verifyPolicy==VERIFYPOLICY.INCREMENTAL && isComplete() && fileDescr.getFileLength()>0) {
+			verifyLock.lock();
+			try {
+				if(incrementalHash==null && fileDigest!=null) {
+					foldAvailable();
+					incrementalHash = fileDigest.digest();
+					fileDigest = null;
+				}
+				if(incrementalHash!=null) {
+					return MessageDigest.isEqual(incrementalHash, fileHash);
+				}
+			} finally {
+				verifyLock.unlock();
+			}
+		}
+		FileDescr newFileDescr = new FileDescr(file,fileDescr.getBlockLength(),fileDescr.getHashMode(),hashAlgorithm,1);
+		return MessageDigest.isEqual(FileDescr.hexToBytes(newFileDescr.getFileMd5()), fileHash);
 	}
 	
 	/**
@@ -194,12 +1054,31 @@ public class FileMgr {
 	}
 	
 	/**
-	 * Close the file. The file manager should not be used after calling
-	 * this method.
+	 * Close the file, once the writers of blocks that are in progress are done. The file
+	 * manager should not be used after calling this method, and blocks written by other
+	 * threads afterwards are refused. The resume state of an incomplete file is saved first.
 	 * @throws IOException 
 	 */
 	public void closeFile() throws IOException {
-		file.close();
+		closeLock.writeLock().lock();
+		try {
+			if(closed) {
+				return;
+			}
+			closed=true;
+			if(isComplete()) {
+				deleteState();
+			} else {
+				saveState();
+			}
+			forceWindows();
+			synchronized(windows) {
+				windows.clear();
+			}
+			file.close();
+		} finally {
+			closeLock.writeLock().unlock();
+		}
 	}
 	
 }
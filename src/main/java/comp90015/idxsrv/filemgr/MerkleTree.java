@@ -0,0 +1,232 @@
+package comp90015.idxsrv.filemgr;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+
+/**
+ * Functions for the binary hash tree of a {@link FileDescr} in
+ * {@link FileDescr.HASHMODE#MERKLE} mode. The file is split into leaves of a fixed
+ * length, and the tree is built over the leaf hashes as in RFC 6962: a tree of n hashes
+ * is split at the largest power of two less than n, and leaf and node hashes are prefixed
+ * with different bytes so that one cannot be passed off as the other. The hashes are
+ * those of the descriptor's {@link FileDescr.HASHALGORITHM}, SHA-256 by default. When the
+ * block length is a power of two multiple of the leaf length, every block is a subtree, so
+ * the root of the file is also the root of the tree over the roots of its blocks.
+ * @author aaron
+ *
+ */
+public class MerkleTree {
+
+	/**
+	 * The default leaf length, 16KB.
+	 */
+	public static final int DEFAULT_LEAF_LENGTH = 16*1024;
+
+	private static final byte LEAF_PREFIX = 0;
+
+	private static final byte NODE_PREFIX = 1;
+
+	/**
+	 * Hash the leaves of a region of a byte array.
+	 * @param digest the digest to hash with
+	 * @param bytes the bytes
+	 * @param offset the offset of the region
+	 * @param length the length of the region
+	 * @param leafLength the leaf length, the last leaf may be shorter
+	 * @return the hashes of the leaves, at least one
+	 */
+	public static byte[][] leafHashes(MessageDigest digest, byte[] bytes, int offset, int length, int leafLength) {
+		byte[][] hashes = new byte[Math.max(1, (length+leafLength-1)/leafLength)][];
+		for(int l=0;l<hashes.length;l++) {
+			int leafOffset = l*leafLength;
+			hashes[l]=leafHash(digest, bytes, offset+leafOffset, Math.min(leafLength, length-leafOffset));
+		}
+		return hashes;
+	}
+
+	/**
+	 * Hash the leaves of a region of a file with positional reads, through the given buffer.
+	 * @param digest the digest to hash with
+	 * @param channel the channel of the file
+	 * @param offset the offset of the region
+	 * @param length the length of the region
+	 * @param leafLength the leaf length, the last leaf may be shorter
+	 * @param chunk the buffer to read through, with a capacity that is a multiple of the leaf length
+	 * @return the hashes of the leaves, at least one
+	 * @throws IOException if the file cannot be accessed, or ends before the region does
+	 */
+	static byte[][] leafHashes(MessageDigest digest, FileChannel channel, long offset, long length,
+			int leafLength, ByteBuffer chunk) throws IOException {
+		ArrayList<byte[]> hashes = new ArrayList<byte[]>();
+		long end = offset+length;
+		do {
+			chunk.clear();
+			chunk.limit((int)Math.min(chunk.capacity(), end-offset));
+			while(chunk.hasRemaining()) {
+				if(channel.read(chunk, offset+chunk.position())<0) {
+					throw new EOFException();
+				}
+			}
+			chunk.flip();
+			do {
+				int leafEnd = Math.min(chunk.limit(), chunk.position()+leafLength);
+				ByteBuffer leaf = chunk.duplicate();
+				leaf.limit(leafEnd);
+				digest.update(LEAF_PREFIX);
+				digest.update(leaf);
+				hashes.add(digest.digest());
+				chunk.position(leafEnd);
+			} while(chunk.hasRemaining());
+			offset+=chunk.limit();
+		} while(offset<end);
+		return hashes.toArray(new byte[0][]);
+	}
+
+	/**
+	 * @return the hash of a leaf
+	 */
+	public static byte[] leafHash(MessageDigest digest, byte[] bytes, int offset, int length) {
+		digest.update(LEAF_PREFIX);
+		digest.update(bytes, offset, length);
+		return digest.digest();
+	}
+
+	/**
+	 * @return the hash of a node, given the hashes of its children
+	 */
+	public static byte[] nodeHash(MessageDigest digest, byte[] left, byte[] right) {
+		digest.update(NODE_PREFIX);
+		digest.update(left);
+		digest.update(right);
+		return digest.digest();
+	}
+
+	/**
+	 * Compute the root of the tree over the given hashes, which may be leaf hashes or
+	 * the roots of equal, power of two sized subtrees, e.g. of blocks.
+	 * @param digest the digest to hash with
+	 * @param hashes the hashes, at least one
+	 * @return the root
+	 */
+	public static byte[] root(MessageDigest digest, byte[][] hashes) {
+		return root(digest, hashes, 0, hashes.length);
+	}
+
+	private static byte[] root(MessageDigest digest, byte[][] hashes, int from, int to) {
+		if(to-from==1) {
+			return hashes[from];
+		}
+		int split = from+Integer.highestOneBit(to-from-1);
+		return nodeHash(digest, root(digest, hashes, from, split), root(digest, hashes, split, to));
+	}
+
+	/**
+	 * Compute the proof that a hash is in the tree over the given hashes: the hashes of
+	 * the siblings of the nodes on the path from the hash to the root, from the bottom up.
+	 * @param digest the digest to hash with
+	 * @param hashes the hashes, at least one
+	 * @param index the index of the hash to prove
+	 * @return the proof, empty for a tree of one hash
+	 */
+	public static byte[][] proof(MessageDigest digest, byte[][] hashes, int index) {
+		ArrayList<byte[]> proof = new ArrayList<byte[]>();
+		proof(digest, hashes, index, 0, hashes.length, proof);
+		return proof.toArray(new byte[0][]);
+	}
+
+	private static void proof(MessageDigest digest, byte[][] hashes, int index, int from, int to,
+			ArrayList<byte[]> proof) {
+		if(to-from==1) {
+			return;
+		}
+		int split = from+Integer.highestOneBit(to-from-1);
+		if(index<split) {
+			proof(digest, hashes, index, from, split, proof);
+			proof.add(root(digest, hashes, split, to));
+		} else {
+			proof(digest, hashes, index, split, to, proof);
+			proof.add(root(digest, hashes, from, split));
+		}
+	}
+
+	/**
+	 * Compute every level of the tree over the given hashes, so that many proofs can be
+	 * read from it with {@link #proof(byte[][][], int)} without hashing again. The first
+	 * level is the hashes, and each next one pairs the nodes of the one below, with a last
+	 * unpaired node carried up as it is, which gives the same tree as {@link #root}.
+	 * @param digest the digest to hash with
+	 * @param hashes the hashes, at least one
+	 * @return the levels, from the hashes up to the level of the root alone
+	 */
+	public static byte[][][] levels(MessageDigest digest, byte[][] hashes) {
+		ArrayList<byte[][]> levels = new ArrayList<byte[][]>();
+		byte[][] level = hashes.clone();
+		levels.add(level);
+		while(level.length>1) {
+			byte[][] next = new byte[(level.length+1)/2][];
+			for(int i=0;i<next.length;i++) {
+				next[i] = 2*i+1<level.length ? nodeHash(digest, level[2*i], level[2*i+1]) : level[2*i];
+			}
+			levels.add(next);
+			level = next;
+		}
+		return levels.toArray(new byte[0][][]);
+	}
+
+	/**
+	 * Read the proof that a hash is in a tree from the tree's levels, as {@link #proof} computes it.
+	 * @param levels the levels of the tree, from {@link #levels}
+	 * @param index the index of the hash to prove
+	 * @return the proof, empty for a tree of one hash
+	 */
+	public static byte[][] proof(byte[][][] levels, int index) {
+		ArrayList<byte[]> proof = new ArrayList<byte[]>();
+		for(int l=0;l<levels.length-1;l++) {
+			int sibling = (index>>l)^1;
+			if(sibling<levels[l].length) {
+				proof.add(levels[l][sibling]);
+			}
+		}
+		return proof.toArray(new byte[0][]);
+	}
+
+	/**
+	 * Check a proof from {@link #proof}, as in RFC 9162 section 2.1.3.2.
+	 * @param digest the digest to hash with
+	 * @param hash the hash to check
+	 * @param index the index of the hash
+	 * @param size the number of hashes in the tree
+	 * @param proof the proof
+	 * @param root the root of the tree
+	 * @return true if the hash is at the index of the tree with the given root, false otherwise
+	 */
+	public static boolean verify(MessageDigest digest, byte[] hash, int index, int size, byte[][] proof, byte[] root) {
+		if(index<0 || index>=size) {
+			return false;
+		}
+		long fn = index;
+		long sn = size-1;
+		byte[] r = hash;
+		for(byte[] p : proof) {
+			if(sn==0) {
+				return false;
+			}
+			if((fn&1)==1 || fn==sn) {
+				r = nodeHash(digest, p, r);
+				while((fn&1)==0 && fn!=0) {
+					fn>>=1;
+					sn>>=1;
+				}
+			} else {
+				r = nodeHash(digest, r, p);
+			}
+			fn>>=1;
+			sn>>=1;
+		}
+		return sn==0 && MessageDigest.isEqual(r, root);
+	}
+}
@@ -0,0 +1,19 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Whether each share in a {@link BatchDropRequest} was dropped.
+ */
+@JsonSerializable
+public class BatchDropReply extends Message {
+	@JsonElement
+	public Boolean[] success;
+	
+	public BatchDropReply() {
+		
+	}
+	
+	public BatchDropReply(Boolean[] success) {
+		this.success=success;
+	}
+	
+}
@@ -0,0 +1,20 @@
+package comp90015.idxsrv.message;
+
+/**
+ * The number of sharers of each file in a {@link BatchShareRequest}, or -1 where
+ * the share failed because the sharing secret did not match.
+ */
+@JsonSerializable
+public class BatchShareReply extends Message {
+	
+	@JsonElement
+	public Integer[] numSharers;
+	
+	public BatchShareReply() {
+		
+	}
+	
+	public BatchShareReply(Integer[] numSharers) {
+		this.numSharers = numSharers;
+	}
+}
@@ -0,0 +1,35 @@
+package comp90015.idxsrv.message;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Shares many files at once. The i'th file is given by the i'th file descriptor,
+ * filename and sharing secret.
+ */
+@JsonSerializable
+public class BatchShareRequest extends Message {
+
+	@JsonElement
+	public FileDescr[] fileDescrs;
+	
+	@JsonElement
+	public String[] filenames;
+	
+	@JsonElement
+	public String[] sharingSecrets;
+	
+	@JsonElement
+	public Integer port;
+	
+	public BatchShareRequest() {
+		
+	}
+	
+	public BatchShareRequest(FileDescr[] fileDescrs, String[] filenames, String[] sharingSecrets, int port) {
+		this.fileDescrs=fileDescrs;
+		this.filenames=filenames;
+		this.sharingSecrets=sharingSecrets;
+		this.port=port;
+	}
+	
+}
@@ -0,0 +1,37 @@
+package comp90015.idxsrv.message;
+
+/**
+ * The reply to a {@link BlockProofRequest}, with the hex encoded hashes of the block's
+ * leaves and of the proof, from the bottom of the tree up. Both are empty if the block
+ * is not available.
+ */
+@JsonSerializable
+public class BlockProofReply extends Message{
+
+    @JsonElement
+    public String fileMd5;
+
+    @JsonElement
+    public String filename;
+
+    @JsonElement
+    public Integer blockIdx;
+
+    @JsonElement
+    public String[] leafHashes;
+
+    @JsonElement
+    public String[] proof;
+
+    public BlockProofReply(){
+
+    }
+
+    public BlockProofReply(String filename, String fileMd5, Integer blockIdx, String[] leafHashes, String[] proof){
+        this.filename = filename;
+        this.fileMd5 = fileMd5;
+        this.blockIdx = blockIdx;
+        this.leafHashes = leafHashes;
+        this.proof = proof;
+    }
+}
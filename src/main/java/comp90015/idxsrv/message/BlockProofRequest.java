@@ -0,0 +1,29 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Requests the hashes of a block's leaves, and the proof that the block is in the
+ * file's hash tree, for a file described in Merkle mode.
+ */
+@JsonSerializable
+public class BlockProofRequest extends Message{
+
+    @JsonElement
+    public String fileMd5;
+
+    @JsonElement
+    public String filename;
+
+    @JsonElement
+    public Integer blockIdx;
+
+    public BlockProofRequest(){
+
+    }
+
+    public BlockProofRequest(String filename, String fileMd5, Integer blockIdx){
+        this.filename = filename;
+        this.fileMd5 = fileMd5;
+        this.blockIdx = blockIdx;
+    }
+
+}
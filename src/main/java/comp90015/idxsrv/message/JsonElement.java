@@ -9,4 +9,8 @@ import java.lang.annotation.ElementType;
 @Target(ElementType.FIELD)
 public @interface JsonElement {
 
+	/**
+	 * @return true if the field may be missing when deserializing, in which case it is left null
+	 */
+	boolean optional() default false;
 }
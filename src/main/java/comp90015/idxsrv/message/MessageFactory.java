@@ -1,11 +1,15 @@
 package comp90015.idxsrv.message;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -14,150 +18,237 @@ import org.json.JSONObject;
 /**
  * A factory class to serialize and deserialize JSONSerializable
  * classes to and from strings.
+ * <p>
+ * The reflection needed to serialize and deserialize a class is done once per class,
+ * the first time it is used, and kept in a {@link Codec} with method handles for its
+ * constructor, its {@link JsonSerializationInit} methods and its {@link JsonElement} fields.
  * @author aaron
  *
  */
 public class MessageFactory {
-	private static void checkIfSerializable(Object object) throws JsonSerializationException {
-		if (Objects.isNull(object)) {
-			throw new JsonSerializationException("The object to serialize is null");
-		}
-		Class<?> _class = object.getClass();
-		if (!_class.isAnnotationPresent(JsonSerializable.class)) {
-			throw new JsonSerializationException(
-					"The class " + object.getClass().getSimpleName() + " is not annotated with JsonSerializable");
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	/**
+	 * The reflection metadata for one {@link JsonElement} field.
+	 */
+	private static final class FieldCodec {
+		final String name;
+		final Class<?> type;
+		final boolean nested;
+		final boolean optional;
+		final MethodHandle getter;
+		final MethodHandle setter;
+
+		FieldCodec(Field field) throws IllegalAccessException {
+			field.setAccessible(true);
+			name=field.getName();
+			type=field.getType();
+			nested=type.isAnnotationPresent(JsonSerializable.class);
+			optional=field.getAnnotation(JsonElement.class).optional();
+			getter=LOOKUP.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+			setter=LOOKUP.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class));
 		}
-		for (Field field : _class.getDeclaredFields()) {
-			if (field.getName() == "_class") {
-				throw new JsonSerializationException("The _class field cannot be used in a JsonSerializable class.");
+	}
+
+	/**
+	 * The reflection metadata for one class.
+	 */
+	private static final class Codec {
+		/**
+		 * Why the class cannot be serialized, or null if it can.
+		 */
+		final String error;
+		final boolean serializable;
+		final MethodHandle constructor;
+		final MethodHandle[] inits;
+		final FieldCodec[] fields;
+
+		Codec(Class<?> _class) {
+			serializable=_class.isAnnotationPresent(JsonSerializable.class);
+			String error=null;
+			MethodHandle constructor=null;
+			ArrayList<MethodHandle> inits = new ArrayList<MethodHandle>();
+			ArrayList<FieldCodec> fields = new ArrayList<FieldCodec>();
+			try {
+				if(!serializable) {
+					throw new JsonSerializationException(
+							"The class " + _class.getSimpleName() + " is not annotated with JsonSerializable");
+				}
+				for (Field field : _class.getDeclaredFields()) {
+					if (field.getName().equals("_class")) {
+						throw new JsonSerializationException("The _class field cannot be used in a JsonSerializable class.");
+					}
+				}
+				try {
+					Constructor<?> _constructor = _class.getConstructor();
+					constructor = LOOKUP.unreflectConstructor(_constructor).asType(MethodType.methodType(Object.class));
+				} catch (NoSuchMethodException | SecurityException e) {
+					throw new JsonSerializationException(
+							"The object to serialize must contain a public initializer without arguments.");
+				}
+				for (Method method : _class.getDeclaredMethods()) {
+					if (method.isAnnotationPresent(JsonSerializationInit.class)) {
+						method.setAccessible(true);
+						inits.add(LOOKUP.unreflect(method).asType(MethodType.methodType(void.class, Object.class)));
+					}
+				}
+				for (Field field : _class.getDeclaredFields()) {
+					if (field.isAnnotationPresent(JsonElement.class)) {
+						fields.add(new FieldCodec(field));
+					}
+				}
+			} catch (JsonSerializationException e) {
+				error=e.getMessage();
+			} catch (IllegalAccessException | RuntimeException e) {
+				error="The class " + _class.getSimpleName() + " cannot be accessed: " + e.getMessage();
 			}
+			this.error=error;
+			this.constructor=constructor;
+			this.inits=inits.toArray(new MethodHandle[0]);
+			this.fields=fields.toArray(new FieldCodec[0]);
 		}
-		try {
-			_class.getConstructor();
-		} catch (NoSuchMethodException | SecurityException e) {
-			throw new JsonSerializationException(
-					"The object to serialize must contain a public initializer without arguments.");
+	}
+
+	private static final ClassValue<Codec> CODECS = new ClassValue<Codec>() {
+		@Override
+		protected Codec computeValue(Class<?> _class) {
+			return new Codec(_class);
 		}
+	};
+
+	/**
+	 * The classes named by the _class field of deserialized objects.
+	 */
+	private static final ConcurrentHashMap<String,Class<?>> CLASSES = new ConcurrentHashMap<String,Class<?>>();
+
+	private static Codec checkIfSerializable(Object object) throws JsonSerializationException {
+		if (Objects.isNull(object)) {
+			throw new JsonSerializationException("The object to serialize is null");
+		}
+		Codec codec = CODECS.get(object.getClass());
+		if (codec.error!=null) {
+			throw new JsonSerializationException(codec.error);
+		}
+		return codec;
 	}
 
-	private static void initializeObject(Object object) throws Exception {
-		Class<?> _class = object.getClass();
-		for (Method method : _class.getDeclaredMethods()) {
-			if (method.isAnnotationPresent(JsonSerializationInit.class)) {
-				method.setAccessible(true);
-				method.invoke(object);
-			}
+	private static void initializeObject(Codec codec, Object object) throws Throwable {
+		for (MethodHandle init : codec.inits) {
+			init.invokeExact(object);
 		}
 	}
 
-	private static JSONObject toJsonObject(Object object)
-			throws JSONException, IllegalArgumentException, IllegalAccessException {
-		Class<?> _class = object.getClass();
-		JSONObject jobj = new JSONObject();
-		jobj.put("_class", _class.getName());
-		for (Field field : _class.getDeclaredFields()) {
-			field.setAccessible(true);
-			if (field.isAnnotationPresent(JsonElement.class)) {
-				Class<?> fieldType = field.getType();
-				if (fieldType.isAnnotationPresent(JsonSerializable.class)) {
-					jobj.put(field.getName(), toJsonObject(field.get(object)));
-				} else if(fieldType.isArray()){
-					int l = Array.getLength(field.get(object));
-					Object[] oa = new Object[l];
-					for(int i=0;i<l;i++) {
-						Object ao = Array.get(field.get(object), i);
-						if(ao.getClass().isAnnotationPresent(JsonSerializable.class)) {
-							oa[i]=toJsonObject(ao);
-						} else {
-							oa[i]=ao;
-						}
-					}
-					jobj.put(field.getName(), oa);
-				} else {
-					jobj.put(field.getName(), field.get(object));
+	/**
+	 * Write the object as a JSON object straight into the string builder, which
+	 * avoids building an intermediate {@link JSONObject}. Null fields are left out,
+	 * as {@link JSONObject#put} would, and so are null optional fields of any type.
+	 */
+	private static void writeJson(StringBuilder sb, Object object) throws Throwable {
+		Codec codec = CODECS.get(object.getClass());
+		sb.append("{\"_class\":");
+		sb.append(JSONObject.quote(object.getClass().getName()));
+		for (FieldCodec field : codec.fields) {
+			Object value = (Object) field.getter.invokeExact(object);
+			if (value==null && (field.optional || (!field.nested && !field.type.isArray()))) {
+				continue;
+			}
+			sb.append(',');
+			sb.append(JSONObject.quote(field.name));
+			sb.append(':');
+			if (field.nested) {
+				writeJson(sb, value);
+			} else if(field.type.isArray()){
+				int l = Array.getLength(value);
+				sb.append('[');
+				for(int i=0;i<l;i++) {
+					if(i>0) sb.append(',');
+					writeValue(sb, Array.get(value, i));
 				}
+				sb.append(']');
+			} else {
+				writeValue(sb, value);
 			}
 		}
-		return jobj;
+		sb.append('}');
 	}
 
-	private static String toJsonString(Object object) throws Exception {
-		JSONObject jobj = toJsonObject(object);
-		return jobj.toString();
+	private static void writeValue(StringBuilder sb, Object value) throws Throwable {
+		if (value instanceof String) {
+			sb.append(JSONObject.quote((String) value));
+		} else if (value!=null && CODECS.get(value.getClass()).serializable) {
+			writeJson(sb, value);
+		} else {
+			sb.append(JSONObject.valueToString(value));
+		}
 	}
 
 	private static Object fromJsonObj(JSONObject jobj) throws JsonSerializationException {
 		try {
-			Class<?> _class = Class.forName(jobj.getString("_class"));
-			if(!_class.isAnnotationPresent(JsonSerializable.class)) {
+			String className = jobj.getString("_class");
+			Class<?> _class = CLASSES.get(className);
+			if(_class==null) {
+				_class = Class.forName(className);
+				CLASSES.put(className, _class);
+			}
+			Codec codec = CODECS.get(_class);
+			if(!codec.serializable) {
 				throw new JsonSerializationException("The class represented by the JSON object is not json serializable.");
 			}
-			Constructor<?> constructor = _class.getConstructor();
-			Object obj = constructor.newInstance();
-			for (Field field:_class.getDeclaredFields()) {
-				field.setAccessible(true);
-				if (field.isAnnotationPresent(JsonElement.class)) {
-					Class<?> fieldType = field.getType();
-					String fieldName = field.getName(); 
-					if(jobj.has(fieldName)){
-						Object jsonFieldVal = jobj.get(fieldName);
-						Class<?> jsonFieldType = jsonFieldVal.getClass();
-						if(fieldType==Long.class && jsonFieldType==Integer.class) {
-							field.set(obj, jobj.getLong(fieldName));
-						} else if(fieldType.isAssignableFrom(jsonFieldType)) {
-							field.set(obj, jsonFieldVal);
-						} else if(jsonFieldType==JSONObject.class){
-							field.set(obj, fromJsonObj((JSONObject)jsonFieldVal));
-						} else if(jsonFieldType==JSONArray.class && fieldType.isArray()){
-							JSONArray ja = (JSONArray) jsonFieldVal;
-							Object arrObj = Array.newInstance(fieldType.getComponentType(), ja.length());
-							for(int i=0;i<ja.length();i++) {
-								Object obji = ja.get(i);
-								Class<?> objiType = obji.getClass();
-								if(objiType==JSONObject.class) {
-									obji=fromJsonObj((JSONObject)obji);
-									objiType=obji.getClass();
-								}
-								if(objiType==fieldType.getComponentType() ||
-										(objiType==Integer.class && fieldType.getComponentType()==Long.class)) {
-									Array.set(arrObj, i, obji);
-								} else {
-									throw new JsonSerializationException("Array component types do not match");
-								}
+			if(codec.constructor==null) {
+				throw new JsonSerializationException(codec.error);
+			}
+			Object obj = (Object) codec.constructor.invokeExact();
+			for (FieldCodec field : codec.fields) {
+				Class<?> fieldType = field.type;
+				String fieldName = field.name;
+				Object jsonFieldVal = jobj.opt(fieldName);
+				if(jsonFieldVal!=null){
+					Class<?> jsonFieldType = jsonFieldVal.getClass();
+					if(fieldType==Long.class && jsonFieldType==Integer.class) {
+						field.setter.invokeExact(obj, (Object) Long.valueOf((Integer) jsonFieldVal));
+					} else if(fieldType.isAssignableFrom(jsonFieldType)) {
+						field.setter.invokeExact(obj, jsonFieldVal);
+					} else if(jsonFieldType==JSONObject.class){
+						field.setter.invokeExact(obj, fromJsonObj((JSONObject)jsonFieldVal));
+					} else if(jsonFieldType==JSONArray.class && fieldType.isArray()){
+						JSONArray ja = (JSONArray) jsonFieldVal;
+						Object arrObj = Array.newInstance(fieldType.getComponentType(), ja.length());
+						for(int i=0;i<ja.length();i++) {
+							Object obji = ja.get(i);
+							Class<?> objiType = obji.getClass();
+							if(objiType==JSONObject.class) {
+								obji=fromJsonObj((JSONObject)obji);
+								objiType=obji.getClass();
 							}
-							Object[] arr = (Object[]) arrObj;
-							if(fieldType.isAssignableFrom(arr.getClass())) {
-								field.set(obj, arr);
+							if(objiType==fieldType.getComponentType() ||
+									(objiType==Integer.class && fieldType.getComponentType()==Long.class)) {
+								Array.set(arrObj, i, obji);
 							} else {
-								throw new JsonSerializationException("Array of type "+fieldType+" is not supported");
+								throw new JsonSerializationException("Array component types do not match");
 							}
+						}
+						Object[] arr = (Object[]) arrObj;
+						if(fieldType.isAssignableFrom(arr.getClass())) {
+							field.setter.invokeExact(obj, (Object) arr);
 						} else {
-							throw new JsonSerializationException("Field was of incorrect type: "+fieldName);
+							throw new JsonSerializationException("Array of type "+fieldType+" is not supported");
 						}
 					} else {
-						throw new JsonSerializationException("Required field is not present: "+fieldName);
+						throw new JsonSerializationException("Field was of incorrect type: "+fieldName);
 					}
-		        }
+				} else if(!field.optional) {
+					throw new JsonSerializationException("Required field is not present: "+fieldName);
+				}
 			}
 			return obj;
-		} catch (JSONException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (ClassNotFoundException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (NoSuchMethodException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (SecurityException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (InstantiationException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (IllegalAccessException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (IllegalArgumentException e) {
-			throw new JsonSerializationException(e.getMessage());
-		} catch (InvocationTargetException e) {
+		} catch (JsonSerializationException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
 			throw new JsonSerializationException(e.getMessage());
 		}
-		
 	}
 
 	/**
@@ -168,12 +259,16 @@ public class MessageFactory {
 	 */
 	public static String serialize(Object object) throws JsonSerializationException {
 		try {
-			checkIfSerializable(object);
-			initializeObject(object);
-			return toJsonString(object);
-		} catch (Exception e) {
+			Codec codec = checkIfSerializable(object);
+			initializeObject(codec, object);
+			StringBuilder sb = new StringBuilder();
+			writeJson(sb, object);
+			return sb.toString();
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
 			throw new JsonSerializationException(e.getMessage());
-		} 
+		}
 	}
 
 	/**
@@ -0,0 +1,33 @@
+package comp90015.idxsrv.message;
+
+/**
+ * The header of a reply to a {@link RawBlockRequest}. Exactly length raw bytes of
+ * the block follow the header's line on the connection. A length of 0 means the
+ * block is not available.
+ */
+@JsonSerializable
+public class RawBlockReply extends Message{
+
+    @JsonElement
+    public String fileMd5;
+
+    @JsonElement
+    public String filename;
+
+    @JsonElement
+    public Integer blockIdx;
+
+    @JsonElement
+    public Integer length;
+
+    public RawBlockReply(){
+
+    }
+
+    public RawBlockReply(String filename, String fileMd5, Integer blockIdx, Integer length){
+        this.filename = filename;
+        this.fileMd5 = fileMd5;
+        this.blockIdx = blockIdx;
+        this.length = length;
+    }
+}
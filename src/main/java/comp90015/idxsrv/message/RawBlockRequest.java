@@ -0,0 +1,29 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Requests a block like a {@link BlockRequest}, but asks for the block's bytes to be
+ * sent raw, after a {@link RawBlockReply} header, rather than Base 64 encoded.
+ */
+@JsonSerializable
+public class RawBlockRequest extends Message{
+
+    @JsonElement
+    public String fileMd5;
+
+    @JsonElement
+    public String filename;
+
+    @JsonElement
+    public Integer blockIdx;
+
+    public RawBlockRequest(){
+
+    }
+
+    public RawBlockRequest(String filename, String fileMd5, Integer blockIdx){
+        this.filename = filename;
+        this.fileMd5 = fileMd5;
+        this.blockIdx = blockIdx;
+    }
+
+}
@@ -0,0 +1,25 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Whether each share in a {@link RenewRequest} was renewed, and the lease time
+ * in seconds, or 0 if shares on the server do not expire. A share that was not
+ * renewed is no longer in the index, and must be shared again.
+ */
+@JsonSerializable
+public class RenewReply extends Message {
+	@JsonElement
+	public Boolean[] renewed;
+	
+	@JsonElement
+	public Integer leaseTime;
+	
+	public RenewReply() {
+		
+	}
+	
+	public RenewReply(Boolean[] renewed, int leaseTime) {
+		this.renewed=renewed;
+		this.leaseTime=leaseTime;
+	}
+	
+}
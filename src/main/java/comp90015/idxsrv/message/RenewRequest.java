@@ -0,0 +1,32 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Renews the leases of several shares made by the same peer at once. The i'th share
+ * is given by the i'th filename, file MD5 hash and sharing secret.
+ */
+@JsonSerializable
+public class RenewRequest extends Message {
+	@JsonElement
+	public String[] filenames;
+	
+	@JsonElement
+	public String[] fileMd5s;
+	
+	@JsonElement
+	public String[] sharingSecrets;
+	
+	@JsonElement
+	public Integer port;
+	
+	public RenewRequest() {
+		
+	}
+	
+	public RenewRequest(String[] filenames, String[] fileMd5s, String[] sharingSecrets, int port) {
+		this.filenames=filenames;
+		this.fileMd5s=fileMd5s;
+		this.sharingSecrets=sharingSecrets;
+		this.port=port;
+	}
+	
+}
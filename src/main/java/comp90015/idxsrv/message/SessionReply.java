@@ -0,0 +1,17 @@
+package comp90015.idxsrv.message;
+
+@JsonSerializable
+public class SessionReply extends Message {
+
+	@JsonElement
+	public Boolean success;
+	
+	public SessionReply() {
+		
+	}
+	
+	public SessionReply(Boolean success) {
+		this.success = success;
+	}
+	
+}
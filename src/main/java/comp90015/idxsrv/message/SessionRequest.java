@@ -0,0 +1,14 @@
+package comp90015.idxsrv.message;
+
+/**
+ * Sent instead of a request, after authenticating, to ask the server to keep the
+ * connection open for many requests. The session ends with a {@link Goodbye}.
+ */
+@JsonSerializable
+public class SessionRequest extends Message {
+
+	public SessionRequest() {
+		
+	}
+	
+}
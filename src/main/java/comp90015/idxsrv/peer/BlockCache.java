@@ -0,0 +1,383 @@
+package comp90015.idxsrv.peer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * A size bounded cache of the blocks that this peer uploads most often, so that a block
+ * that many peers download at about the same time is read from its file, and encoded,
+ * only once. A block is cached either as its raw bytes, off the Java heap, or as the
+ * encoded {@link comp90015.idxsrv.message.BlockReply} line that carries it. Blocks are
+ * keyed by their filename, the hash of their file's descriptor and their index. The hash
+ * alone does not fix a block's bytes, as a short one such as CRC32C may be shared by two
+ * files, but this peer shares only one file under each name.
+ * <p>
+ * Entries are kept as in W-TinyLFU: new entries enter a small LRU window, which holds at
+ * least one block so that each new block has the chance to be requested again, and an entry
+ * leaving the window only replaces entries of the main cache that were requested less
+ * often, as estimated by a count-min sketch of recent requests. The main cache is a
+ * segmented LRU, where entries that are hit again move from a probation segment to a
+ * protected one. So a block that is downloaded once, e.g. by a single peer working
+ * through a large file, does not push out the blocks of a popular file.
+ */
+public class BlockCache {
+
+    /**
+     * The default capacity, 128MB.
+     */
+    public static final long DEFAULT_CAPACITY = 128L * 1024 * 1024;
+
+    /**
+     * The share of the capacity given to the window, in percent.
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * The share of the main cache given to the protected segment, in percent.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    private static final class Key {
+        final String filename;
+        final String fileMd5;
+        final int blockIdx;
+        final boolean raw;
+
+        Key(String filename, String fileMd5, int blockIdx, boolean raw) {
+            this.filename = filename;
+            this.fileMd5 = fileMd5;
+            this.blockIdx = blockIdx;
+            this.raw = raw;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return blockIdx == key.blockIdx && raw == key.raw && filename.equals(key.filename)
+                    && fileMd5.equals(key.fileMd5);
+        }
+
+        @Override
+        public int hashCode() {
+            // the index last, so that the consecutive blocks of a file spread over the sketch's counters
+            return 31 * Objects.hash(filename, fileMd5, raw) + blockIdx;
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final Object value;
+        final long weight;
+        LinkedHashMap<Key, Entry> segment;
+
+        Entry(Key key, Object value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final long capacity;
+
+    private final long windowCapacity;
+
+    private final long protectedCapacity;
+
+    private final HashMap<Key, Entry> entries = new HashMap<>();
+
+    // each segment is in insertion order, from least to most recently used
+    private final LinkedHashMap<Key, Entry> window = new LinkedHashMap<>();
+
+    private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>();
+
+    private final LinkedHashMap<Key, Entry> protectedSegment = new LinkedHashMap<>();
+
+    private long windowBytes;
+
+    private long probationBytes;
+
+    private long protectedBytes;
+
+    private final FrequencySketch sketch;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    private long rejections;
+
+    /**
+     * @param capacity the maximum number of bytes to cache, 0 to cache nothing
+     */
+    public BlockCache(long capacity) {
+        this(capacity, FileDescr.DEFAULT_BLOCK_LENGTH);
+    }
+
+    /**
+     * @param capacity the maximum number of bytes to cache, 0 to cache nothing
+     * @param blockLength the length of the largest blocks that are cached, which the window holds
+     * at least one of, up to half the capacity
+     */
+    public BlockCache(long capacity, int blockLength) {
+        this.capacity = Math.max(0, capacity);
+        windowCapacity = Math.max(this.capacity * WINDOW_PERCENT / 100, Math.min(blockLength, this.capacity / 2));
+        protectedCapacity = (this.capacity - windowCapacity) * PROTECTED_PERCENT / 100;
+        // about one counter per 16KB of capacity, enough for the smallest sensible blocks
+        sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, this.capacity >>> 14)));
+    }
+
+    /**
+     * Get the raw bytes of a block, and count the request.
+     * @return a read only buffer over the block's bytes, of its own, or null if not cached
+     */
+    public ByteBuffer getBlock(String filename, String fileMd5, int blockIdx) {
+        ByteBuffer bytes = (ByteBuffer) get(new Key(filename, fileMd5, blockIdx, true));
+        return bytes == null ? null : bytes.duplicate();
+    }
+
+    /**
+     * Check if the raw bytes of a block that is not cached have been requested often
+     * enough recently to be worth reading into the cache.
+     */
+    public synchronized boolean isHotBlock(String filename, String fileMd5, int blockIdx, int length) {
+        Key key = new Key(filename, fileMd5, blockIdx, true);
+        return admits(key, length) && sketch.frequency(key) > 1;
+    }
+
+    /**
+     * Offer the raw bytes of a block to the cache, which copies them off the Java heap only if it keeps them.
+     */
+    public void putBlock(String filename, String fileMd5, int blockIdx, byte[] bytes) {
+        Key key = new Key(filename, fileMd5, blockIdx, true);
+        synchronized (this) {
+            if (!admits(key, bytes.length)) return;
+        }
+        // copied outside the lock; if another upload cached the block meanwhile, put drops this copy
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        put(key, direct.asReadOnlyBuffer(), bytes.length);
+    }
+
+    /**
+     * Get the encoded line that carries a block, as made by {@link BlockStream#encode}, and count the request.
+     * @return the line, which must not be changed, or null if not cached
+     */
+    public byte[] getFrame(String filename, String fileMd5, int blockIdx) {
+        return (byte[]) get(new Key(filename, fileMd5, blockIdx, false));
+    }
+
+    /**
+     * Offer the encoded line that carries a block to the cache, which must not be changed afterwards.
+     */
+    public void putFrame(String filename, String fileMd5, int blockIdx, byte[] frame) {
+        put(new Key(filename, fileMd5, blockIdx, false), frame, frame.length);
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the share of requests that were hits, from 0 to 1
+     */
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * @return the number of entries that were removed to make room for others
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of entries that left the window but were not admitted to the main cache
+     */
+    public synchronized long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * @return the number of bytes cached
+     */
+    public synchronized long getSize() {
+        return windowBytes + probationBytes + protectedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("hits %d, misses %d, hit rate %.1f%%, evictions %d, rejections %d, %d of %d bytes",
+                hits, misses, 100 * getHitRate(), evictions, rejections, getSize(), capacity);
+    }
+
+    private synchronized Object get(Key key) {
+        if (capacity == 0) {
+            misses++;
+            return null;
+        }
+        sketch.increment(key);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (entry.segment == probation) {
+            // a second hit, so the entry is protected from now on
+            remove(entry);
+            add(entry, protectedSegment);
+            while (protectedBytes > protectedCapacity) {
+                Entry demoted = protectedSegment.values().iterator().next();
+                remove(demoted);
+                add(demoted, probation);
+            }
+        } else {
+            LinkedHashMap<Key, Entry> segment = entry.segment;
+            remove(entry);
+            add(entry, segment);
+        }
+        return entry.value;
+    }
+
+    /**
+     * Check if an entry would be put in the window: it is not cached already, and it fits in the main cache.
+     */
+    private boolean admits(Key key, long weight) {
+        return capacity > 0 && weight <= capacity - windowCapacity && !entries.containsKey(key);
+    }
+
+    private synchronized void put(Key key, Object value, long weight) {
+        if (!admits(key, weight)) {
+            return;
+        }
+        Entry entry = new Entry(key, value, weight);
+        entries.put(key, entry);
+        add(entry, window);
+        while (windowBytes > windowCapacity) {
+            Entry candidate = window.values().iterator().next();
+            remove(candidate);
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Move an entry from the window to the main cache, if it is requested more often than
+     * every entry that would have to be evicted to make room for it.
+     */
+    private void admit(Entry candidate) {
+        long needed = probationBytes + protectedBytes + candidate.weight - (capacity - windowCapacity);
+        ArrayList<Entry> victims = new ArrayList<>();
+        if (needed > 0) {
+            int frequency = sketch.frequency(candidate.key);
+            Iterator<Entry> probationVictims = probation.values().iterator();
+            Iterator<Entry> protectedVictims = protectedSegment.values().iterator();
+            while (needed > 0) {
+                Entry victim = probationVictims.hasNext() ? probationVictims.next() : protectedVictims.next();
+                if (sketch.frequency(victim.key) >= frequency) {
+                    entries.remove(candidate.key);
+                    rejections++;
+                    return;
+                }
+                victims.add(victim);
+                needed -= victim.weight;
+            }
+        }
+        for (Entry victim : victims) {
+            remove(victim);
+            entries.remove(victim.key);
+            evictions++;
+        }
+        add(candidate, probation);
+    }
+
+    private void add(Entry entry, LinkedHashMap<Key, Entry> segment) {
+        entry.segment = segment;
+        segment.put(entry.key, entry);
+        if (segment == window) windowBytes += entry.weight;
+        else if (segment == probation) probationBytes += entry.weight;
+        else protectedBytes += entry.weight;
+    }
+
+    private void remove(Entry entry) {
+        entry.segment.remove(entry.key);
+        if (entry.segment == window) windowBytes -= entry.weight;
+        else if (entry.segment == probation) probationBytes -= entry.weight;
+        else protectedBytes -= entry.weight;
+    }
+
+    /**
+     * A count-min sketch of how often keys were requested, with 4 rows of counters that
+     * saturate at 15. All counters are halved once there have been 10 increments per
+     * counter of a row, so that the sketch follows changes in popularity.
+     */
+    private static final class FrequencySketch {
+
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+
+        private final int mask;
+
+        private final int sampleSize;
+
+        private int additions;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(width - 1) << 1;
+            for (int r = 0; r < rows.length; r++) rows[r] = new byte[size];
+            mask = size - 1;
+            sampleSize = 10 * size;
+        }
+
+        int frequency(Object key) {
+            int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (int r = 0; r < rows.length; r++) {
+                frequency = Math.min(frequency, rows[r][index(hash, r)]);
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int r = 0; r < rows.length; r++) {
+                int i = index(hash, r);
+                if (rows[r][i] < MAX_COUNT) {
+                    rows[r][i]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (byte[] row : rows) {
+                    for (int i = 0; i < row.length; i++) row[i] >>>= 1;
+                }
+                additions >>>= 1;
+            }
+        }
+
+        private int index(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & mask;
+        }
+    }
+}
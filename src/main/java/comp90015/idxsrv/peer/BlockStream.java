@@ -0,0 +1,196 @@
+package comp90015.idxsrv.peer;
+
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.MessageFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A connection between two peers, carrying line delimited JSON messages and the raw
+ * bytes of blocks that follow a {@link comp90015.idxsrv.message.RawBlockReply} header.
+ * Lines and raw bytes are read from the same buffer, so that neither is lost to the
+ * other's read ahead.
+ */
+public class BlockStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Socket socket;
+
+    private InputStream in;
+
+    private BufferedOutputStream out;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+
+    private int pos;
+
+    private int limit;
+
+    public BlockStream(Socket socket) throws IOException {
+        this.socket = socket;
+        in = socket.getInputStream();
+        out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+    }
+
+    /**
+     * Send a message on its own line.
+     */
+    public void writeMsg(Message msg) throws IOException {
+        writeHeader(msg);
+        out.flush();
+    }
+
+    /**
+     * Send a message on its own line without flushing, because raw bytes follow it.
+     */
+    public void writeHeader(Message msg) throws IOException {
+        out.write(msg.toString().getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    /**
+     * Encode a message as a line, as {@link #writeMsg} sends it, so that it can be sent again with {@link #writeFrame}.
+     */
+    public static byte[] encode(Message msg) {
+        byte[] json = msg.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] frame = Arrays.copyOf(json, json.length + 1);
+        frame[json.length] = '\n';
+        return frame;
+    }
+
+    /**
+     * Send a line made by {@link #encode}.
+     */
+    public void writeFrame(byte[] frame) throws IOException {
+        out.write(frame);
+        out.flush();
+    }
+
+    /**
+     * Send raw bytes after a header, through the socket's channel if it has one, and flush.
+     */
+    public void writeRaw(ByteBuffer bytes) throws IOException {
+        SocketChannel channel = getChannel();
+        if (channel != null) {
+            out.flush();
+            while (bytes.hasRemaining()) channel.write(bytes);
+        } else if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            bytes.position(bytes.limit());
+        } else {
+            byte[] chunk = new byte[Math.min(BUFFER_SIZE, bytes.remaining())];
+            while (bytes.hasRemaining()) {
+                int n = Math.min(chunk.length, bytes.remaining());
+                bytes.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the stream to write raw bytes to after a header, call {@link #flush} when done
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * @return the socket's channel, to write raw bytes to after a flushed header, or null if the socket has none
+     */
+    public SocketChannel getChannel() {
+        return socket.getChannel();
+    }
+
+    /**
+     * Receive the message on the next line.
+     * @throws IOException if the connection fails or is closed
+     * @throws JsonSerializationException if the line is not a valid message
+     */
+    public Message readMsg() throws IOException, JsonSerializationException {
+        byte[] line = null;
+        int length = 0;
+        while (true) {
+            if (pos == limit && !fill()) {
+                throw new EOFException();
+            }
+            int end = pos;
+            while (end < limit && buffer[end] != '\n') end++;
+            if (line == null && end < limit) {
+                // the usual case, the whole line is in the buffer
+                length = end - pos;
+                line = buffer;
+                int start = pos;
+                pos = end + 1;
+                return parse(line, start, length);
+            }
+            if (line == null) line = new byte[Math.max(BUFFER_SIZE, 2 * (limit - pos))];
+            if (length + end - pos > line.length) {
+                line = Arrays.copyOf(line, Math.max(2 * line.length, length + end - pos));
+            }
+            System.arraycopy(buffer, pos, line, length, end - pos);
+            length += end - pos;
+            if (end < limit) {
+                pos = end + 1;
+                return parse(line, 0, length);
+            }
+            pos = limit;
+        }
+    }
+
+    /**
+     * Receive exactly bytes.length raw bytes.
+     * @throws IOException if the connection fails or is closed first
+     */
+    public void readFully(byte[] bytes) throws IOException {
+        readFully(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Receive exactly length raw bytes into bytes, starting at offset.
+     * @throws IOException if the connection fails or is closed first
+     */
+    public void readFully(byte[] bytes, int offset, int length) throws IOException {
+        int n = Math.min(length, limit - pos);
+        System.arraycopy(buffer, pos, bytes, offset, n);
+        pos += n;
+        while (n < length) {
+            // read the rest straight into the block, rather than through the buffer
+            int r = in.read(bytes, offset + n, length - n);
+            if (r < 0) throw new EOFException();
+            n += r;
+        }
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private boolean fill() throws IOException {
+        int r = in.read(buffer, 0, buffer.length);
+        pos = 0;
+        limit = Math.max(r, 0);
+        return r > 0;
+    }
+
+    private static Message parse(byte[] line, int start, int length) throws JsonSerializationException {
+        if (length > 0 && line[start + length - 1] == '\r') length--;
+        String jsonStr = new String(line, start, length, StandardCharsets.UTF_8);
+        return (Message) MessageFactory.deserialize(jsonStr);
+    }
+}
@@ -1,17 +1,20 @@
 package comp90015.idxsrv.peer;
 
+import comp90015.idxsrv.filemgr.FileDescr;
 import comp90015.idxsrv.filemgr.FileMgr;
+import comp90015.idxsrv.filemgr.MerkleTree;
 import comp90015.idxsrv.message.*;
 import comp90015.idxsrv.textgui.ISharerGUI;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.LinkedList;
 import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Download extends Thread {
 
@@ -29,11 +32,19 @@ public class Download extends Thread {
 
     private int timeout;
 
-    public Download(String ip, int port, String filename, int[] blockIdxList, FileMgr fileMgr, ISharerGUI tgui, int timeout){
+    private AtomicBoolean finished;
+
+    /**
+     * @param finished shared by all the download threads of the file, so that only the first
+     *                 to see the file complete verifies and closes it
+     */
+    public Download(String ip, int port, String filename, int[] blockIdxList, FileMgr fileMgr,
+                    AtomicBoolean finished, ISharerGUI tgui, int timeout){
         this.fileIp = ip;
         this.filePort = port;
         this.filename = filename;
         this.fileMgr = fileMgr;
+        this.finished = finished;
         this.tgui = tgui;
         this.timeout = timeout;
         blockIdxQueue = new LinkedList<Integer>();
@@ -43,15 +54,19 @@ public class Download extends Thread {
     @Override
     public void run() {
         String fileMd5 = fileMgr.getFileDescr().getFileMd5();
+        int numBlocks = fileMgr.getFileDescr().getNumBlocks();
+        boolean merkle = fileMgr.getFileDescr().getHashMode() == FileDescr.HASHMODE.MERKLE;
+        int leafLength = fileMgr.getFileDescr().getLeafLength();
+        Random random = new Random();
 
         try{
+            MessageDigest leafDigest = merkle ? fileMgr.getFileDescr().getHashAlgorithm().newDigest() : null;
+
             // Making connection to the fileSharer
-            Socket socketPeer = new Socket(fileIp,filePort);
-            socketPeer.setSoTimeout(timeout);
-            InputStream inputStream = socketPeer.getInputStream();
-            OutputStream outputStream = socketPeer.getOutputStream();
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            BlockStream stream = connect();
+
+            // Ask for raw blocks until the fileSharer shows that it only knows BlockRequest
+            boolean raw = true;
 
 
             // Keep sending requests and reading messages until the file is fully downloaded
@@ -59,86 +74,152 @@ public class Download extends Thread {
 
                 // if the blockIdxQueue is empty, select a random unfinished block index and add it to the queue
                 if(blockIdxQueue.isEmpty()){
-                    try{
-                        // Find all the unfinished blocks of the file after the first stage
-                        boolean[] blockAvailable = fileMgr.getBlockAvailability();
-                        int[] unfinishedBlocks = findLeftBlocks(blockAvailable);
-
-                        // Generate the random index
-                        Random r = new Random();
-                        int randomIndex = r.nextInt(unfinishedBlocks.length);
-                        int blockIdx = unfinishedBlocks[randomIndex];
-
-                        blockIdxQueue.add(blockIdx);
-                    } catch (Exception e){
-                        tgui.logWarn("Adding elements to the blockIdxQueue received unknown exception: "
-                                + e.getClass() + e.getMessage());
-                        return;
-                    }
+                    // Start from a random block, and take the next one still required
+                    int blockIdx = fileMgr.nextRequiredBlock(random.nextInt(numBlocks));
+                    if(blockIdx < 0) blockIdx = fileMgr.nextRequiredBlock(0);
+                    if(blockIdx < 0) continue; // another download thread completed the file
+                    blockIdxQueue.add(blockIdx);
                 }
 
 
                 int targetBlockIdx = blockIdxQueue.remove();
+                if(fileMgr.isBlockAvailable(targetBlockIdx)) continue; // already written by another download thread
+
+                // In Merkle mode, first get the hashes of the block's leaves and prove them against the file's root
+                byte[][] leafHashes = null;
+                if(merkle){
+                    stream.writeMsg(new BlockProofRequest(filename,fileMd5,targetBlockIdx));
+                    Message proofMsg;
+                    try{
+                        proofMsg = stream.readMsg();
+                    }catch (JsonSerializationException e1){
+                        stream.writeMsg(new ErrorMsg("Invalid message"));
+                        return;
+                    }
+                    if(proofMsg.getClass().getName().equals(BlockProofReply.class.getName())){
+                        BlockProofReply blockProofReplyMsg = (BlockProofReply) proofMsg;
+                        leafHashes = fromHex(blockProofReplyMsg.leafHashes);
+                        if(!fileMgr.addBlockProof(targetBlockIdx, leafHashes, fromHex(blockProofReplyMsg.proof))){
+                            leafHashes = null;
+                        }
+                    }
+                    if(leafHashes == null){
+                        tgui.logWarn(filename + ": Peer gave no valid proof for block " + targetBlockIdx);
+                        stream.writeMsg(new Goodbye());
+                        stream.close();
+                        return;
+                    }
+                }
 
 
                 // Send the request
-                writeMsg(bufferedWriter,new BlockRequest(filename,fileMd5,targetBlockIdx));
+                if(raw){
+                    stream.writeMsg(new RawBlockRequest(filename,fileMd5,targetBlockIdx));
+                } else{
+                    stream.writeMsg(new BlockRequest(filename,fileMd5,targetBlockIdx));
+                }
 
                 // Receive the message
                 Message msg;
                 try{
-                    msg = readMsg(bufferedReader);
+                    msg = stream.readMsg();
                 }catch (JsonSerializationException e1){
-                    writeMsg(bufferedWriter, new ErrorMsg("Invalid message"));
+                    stream.writeMsg(new ErrorMsg("Invalid message"));
                     return;
                 }
 
-                // Check whether the message is blockReply
-                if(msg.getClass().getName().equals(BlockReply.class.getName())){
-                    BlockReply blockReplyMsg = (BlockReply) msg;
-                    int blockIdx = blockReplyMsg.blockIdx;
-                    byte[] bytes = Base64.getDecoder().decode(blockReplyMsg.bytes);
-
-                    // Check whether the block is right
-                    if(fileMgr.checkBlockHash(blockIdx,bytes)){
-                        // Write the block to the file if it doesn't exist yet
-                        if(fileMgr.writeBlock(blockIdx,bytes)){
-                            tgui.logInfo(filename + " :Block " + blockIdx + " is written to the file.");
+                // Check whether the message is rawBlockReply or blockReply, and obtain the block's bytes
+                int blockIdx;
+                byte[] bytes;
+                if(msg.getClass().getName().equals(RawBlockReply.class.getName())){
+                    RawBlockReply rawBlockReplyMsg = (RawBlockReply) msg;
+                    if(rawBlockReplyMsg.length < 0 || rawBlockReplyMsg.length > fileMgr.getFileDescr().getBlockLength()){
+                        tgui.logWarn(filename + ": Invalid block length " + rawBlockReplyMsg.length);
+                        return;
+                    }
+                    blockIdx = rawBlockReplyMsg.blockIdx;
+                    bytes = new byte[rawBlockReplyMsg.length];
+                    if(leafHashes != null && blockIdx == targetBlockIdx){
+                        // Check each leaf as it arrives, and give up on the fileSharer at the first wrong one
+                        for(int offset = 0, leaf = 0; offset < bytes.length; offset += leafLength, leaf++){
+                            int length = Math.min(leafLength, bytes.length - offset);
+                            stream.readFully(bytes, offset, length);
+                            if(leaf >= leafHashes.length || !MessageDigest.isEqual(leafHashes[leaf],
+                                    MerkleTree.leafHash(leafDigest, bytes, offset, length))){
+                                tgui.logWarn(filename + ": Block " + blockIdx + " is wrong at leaf " + leaf);
+                                stream.close();
+                                return;
+                            }
                         }
                     } else{
-                        tgui.logWarn(filename + ": Block " + blockIdx + " is wrong!");
-                        // Add the index of wrong block to the queue again
-                        blockIdxQueue.add(blockIdx);
+                        stream.readFully(bytes);
+                    }
+                } else if(msg.getClass().getName().equals(BlockReply.class.getName())){
+                    BlockReply blockReplyMsg = (BlockReply) msg;
+                    blockIdx = blockReplyMsg.blockIdx;
+                    bytes = Base64.getDecoder().decode(blockReplyMsg.bytes);
+                } else if(msg.getClass().getName().equals(ErrorMsg.class.getName())){
+                    String error = ((ErrorMsg) msg).msg;
+                    if(raw && !Upload.BLOCK_UNAVAILABLE.equals(error)){
+                        // An older fileSharer does not know RawBlockRequest, and may have given up on
+                        // the connection, so reconnect and ask for Base 64 encoded blocks instead
+                        tgui.logDebug(filename + ": Peer does not support raw blocks, using BlockRequest");
+                        raw = false;
+                        stream.close();
+                        stream = connect();
+                        blockIdxQueue.add(targetBlockIdx);
+                        continue;
                     }
+                    // Leave the block to the download threads of the other fileSharers
+                    tgui.logWarn(filename + ": Peer could not send block " + targetBlockIdx + ": " + error);
+                    stream.writeMsg(new Goodbye());
+                    stream.close();
+                    return;
                 } else {
-                    writeMsg(bufferedWriter, new ErrorMsg("Expecting BlockRequest only"));
+                    stream.writeMsg(new ErrorMsg("Expecting BlockReply only"));
+                    continue;
+                }
+
+                // Check whether the block is right
+                if(fileMgr.checkBlockHash(blockIdx,bytes)){
+                    // Write the block to the file if it doesn't exist yet
+                    if(fileMgr.writeBlock(blockIdx,bytes)){
+                        tgui.logInfo(filename + " :Block " + blockIdx + " is written to the file.");
+                    }
+                } else{
+                    // Asking the same fileSharer again would most likely get the same bytes, so leave
+                    // the block to the download threads of the other fileSharers
+                    tgui.logWarn(filename + ": Block " + blockIdx + " is wrong!");
+                    stream.writeMsg(new Goodbye());
+                    stream.close();
+                    return;
                 }
 
             }
 
 
-            // Verify the correctness of the whole file
-            boolean fileCorrectness = false;
-            try{
-                fileCorrectness = fileMgr.checkFileHash();
-            } catch(NoSuchAlgorithmException e){
-                tgui.logError("Correctness verification received NoSuchAlgorithmException at fileMgr");
-                return;
-            }
-            if(fileCorrectness){
-                tgui.logInfo(filename + " correctness verification complete.");
-            } else{
-                tgui.logWarn(filename + " correctness verification failed.");
-            }
+            // Verify the correctness of the whole file, unless another download thread already is
+            if(finished.compareAndSet(false,true)){
+                boolean fileCorrectness = false;
+                try{
+                    fileCorrectness = fileMgr.checkFileHash();
+                } catch(NoSuchAlgorithmException e){
+                    tgui.logError("Correctness verification received NoSuchAlgorithmException at fileMgr");
+                    return;
+                }
+                if(fileCorrectness){
+                    tgui.logInfo(filename + " correctness verification complete.");
+                } else{
+                    tgui.logWarn(filename + " correctness verification failed.");
+                }
 
-            fileMgr.closeFile();
+                fileMgr.closeFile();
+            }
 
             // Sends the Goodbye message
-            writeMsg(bufferedWriter,new Goodbye());
+            stream.writeMsg(new Goodbye());
 
-            bufferedReader.close();
-            bufferedWriter.close();
-            socketPeer.close();
+            stream.close();
 
         } catch (IOException e){
             tgui.logWarn("Download thread received io exception ");
@@ -147,37 +228,15 @@ public class Download extends Thread {
         }
     }
 
-    private int[] findLeftBlocks(boolean[] blockAvailable){
-        int numUnfinishedBlocks = 0;
-        for(boolean blockStatus : blockAvailable){
-            if(!blockStatus){
-                numUnfinishedBlocks++;
-            }
-        }
-        int[] unfinishedBlocks = new int[numUnfinishedBlocks];
-        int index = 0;
-        for(int i=0;i<blockAvailable.length;i++){
-            if(!blockAvailable[i]){
-                unfinishedBlocks[index] = i;
-                index++;
-            }
-        }
-        return unfinishedBlocks;
-    }
-
-    private void writeMsg(BufferedWriter bufferedWriter, Message msg) throws IOException {
-        bufferedWriter.write(msg.toString());
-        bufferedWriter.newLine();
-        bufferedWriter.flush();
+    private static byte[][] fromHex(String[] hex) {
+        byte[][] bytes = new byte[hex.length][];
+        for(int i = 0; i < hex.length; i++) bytes[i] = FileDescr.hexToBytes(hex[i]);
+        return bytes;
     }
 
-    private Message readMsg(BufferedReader bufferedReader) throws IOException, JsonSerializationException {
-        String jsonStr = bufferedReader.readLine();
-        if (jsonStr != null) {
-            Message msg = (Message) MessageFactory.deserialize(jsonStr);
-            return msg;
-        } else {
-            throw new IOException();
-        }
+    private BlockStream connect() throws IOException {
+        Socket socketPeer = new Socket(fileIp,filePort);
+        socketPeer.setSoTimeout(timeout);
+        return new BlockStream(socketPeer);
     }
 }
@@ -0,0 +1,243 @@
+package comp90015.idxsrv.peer;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.filemgr.FileMgr;
+import comp90015.idxsrv.textgui.ISharerGUI;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A cache of open file managers for the files that this peer uploads, so that serving a
+ * block is a positional read rather than opening and hashing the whole file again. A file
+ * is hashed with the hash mode and algorithm it was shared with, see {@link #register},
+ * or the cache's defaults if it was not registered. An entry is keyed by the file's path,
+ * hash mode and algorithm, and is replaced when the file's size or modification time
+ * changes. The least recently used entries are evicted beyond the capacity, and an evicted
+ * file manager is closed once the last upload using it releases it.
+ */
+public class FileMgrCache {
+
+    private static final class Key {
+        final Path path;
+        final FileDescr.HASHMODE hashMode;
+        final FileDescr.HASHALGORITHM hashAlgorithm;
+
+        Key(Path path, FileDescr.HASHMODE hashMode, FileDescr.HASHALGORITHM hashAlgorithm) {
+            this.path = path;
+            this.hashMode = hashMode;
+            this.hashAlgorithm = hashAlgorithm;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return path.equals(key.path) && hashMode == key.hashMode && hashAlgorithm == key.hashAlgorithm;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, hashMode, hashAlgorithm);
+        }
+    }
+
+    private static class OpenFile {
+        final FileMgr fileMgr;
+        final long size;
+        final long modified;
+        int refs;
+        boolean evicted;
+
+        OpenFile(FileMgr fileMgr, long size, long modified) {
+            this.fileMgr = fileMgr;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final Path basedir;
+
+    private final int capacity;
+
+    private final FileDescr.HASHMODE hashMode;
+
+    private final FileDescr.HASHALGORITHM hashAlgorithm;
+
+    private final FileMgr.IOMODE ioMode;
+
+    private final ISharerGUI tgui;
+
+    private final LinkedHashMap<Key, OpenFile> entries;
+
+    /**
+     * The key of each registered share, with its hash mode and algorithm, by filename and file MD5.
+     */
+    private final HashMap<String, Key> registered = new HashMap<>();
+
+    /**
+     * The entries of all file managers that are cached or still in use.
+     */
+    private final IdentityHashMap<FileMgr, OpenFile> open = new IdentityHashMap<>();
+
+    /**
+     * @param basedir the base directory that shared filenames are relative to
+     * @param capacity the maximum number of file managers to keep open
+     * @param tgui the gui to log to
+     */
+    public FileMgrCache(String basedir, int capacity, ISharerGUI tgui) {
+        this(basedir, capacity, FileDescr.HASHMODE.FLAT, FileDescr.HASHALGORITHM.MD5, FileMgr.IOMODE.POSITIONAL, tgui);
+    }
+
+    /**
+     * @param basedir the base directory that shared filenames are relative to
+     * @param capacity the maximum number of file managers to keep open
+     * @param hashMode how shared files that were not registered are described
+     * @param hashAlgorithm the algorithm shared files that were not registered are hashed with
+     * @param ioMode how the blocks of the shared files are read
+     * @param tgui the gui to log to
+     */
+    public FileMgrCache(String basedir, int capacity, FileDescr.HASHMODE hashMode,
+                        FileDescr.HASHALGORITHM hashAlgorithm, FileMgr.IOMODE ioMode, ISharerGUI tgui) {
+        this.basedir = Paths.get(basedir).toAbsolutePath().normalize();
+        this.capacity = capacity;
+        this.hashMode = hashMode;
+        this.hashAlgorithm = hashAlgorithm;
+        this.ioMode = ioMode;
+        this.tgui = tgui;
+        entries = new LinkedHashMap<Key, OpenFile>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, OpenFile> eldest) {
+                if (size() > FileMgrCache.this.capacity) {
+                    evict(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Record how a file was described when it was shared, so that it is hashed the same way
+     * when it is uploaded.
+     * @param filename the name of the file, relative to the base directory
+     * @param fileDescr the descriptor the file was shared with
+     * @throws NoSuchAlgorithmException if the descriptor names an unknown hash algorithm
+     */
+    public synchronized void register(String filename, FileDescr fileDescr) throws NoSuchAlgorithmException {
+        registered.put(filename + "\0" + fileDescr.getFileMd5(), new Key(basedir.resolve(filename).normalize(),
+                fileDescr.getHashMode(), fileDescr.getHashAlgorithm()));
+    }
+
+    /**
+     * Forget how a file was described, once it is no longer shared.
+     * @param filename the name of the file, relative to the base directory
+     * @param fileMd5 the MD5 hash of the file descriptor it was shared with
+     */
+    public synchronized void unregister(String filename, String fileMd5) {
+        registered.remove(filename + "\0" + fileMd5);
+    }
+
+    /**
+     * Get an open file manager for a complete shared file, which must be given back with
+     * {@link #release} when done. The file is hashed as it was registered with the given
+     * file MD5, or with the cache's defaults.
+     * @param filename the name of the file, relative to the base directory
+     * @param fileMd5 the MD5 hash of the file descriptor being asked for
+     * @return the file manager
+     * @throws FileNotFoundException if the file is not within the base directory
+     * @throws IOException if the file cannot be accessed
+     * @throws NoSuchAlgorithmException if the hash algorithm is unavailable
+     */
+    public FileMgr acquire(String filename, String fileMd5) throws IOException, NoSuchAlgorithmException {
+        Path path = basedir.resolve(filename).normalize();
+        if (!path.startsWith(basedir)) {
+            throw new FileNotFoundException("Not within the base directory: " + filename);
+        }
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        Key key;
+        synchronized (this) {
+            key = registered.get(filename + "\0" + fileMd5);
+            if (key == null) key = new Key(path, hashMode, hashAlgorithm);
+            OpenFile entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.modified == modified) {
+                entry.refs++;
+                return entry.fileMgr;
+            }
+        }
+
+        // hash the file without holding the lock, so other files can still be served
+        FileMgr fileMgr = new FileMgr(path.toString(), key.hashMode, key.hashAlgorithm);
+        fileMgr.setIoMode(ioMode);
+        synchronized (this) {
+            OpenFile entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.modified == modified) {
+                // another upload got here first
+                fileMgr.closeFile();
+            } else {
+                if (entry != null) {
+                    tgui.logDebug("File changed since it was opened for upload: " + filename);
+                    entries.remove(key);
+                    evict(entry);
+                }
+                entry = new OpenFile(fileMgr, size, modified);
+                open.put(fileMgr, entry);
+                entries.put(key, entry);
+            }
+            entry.refs++;
+            return entry.fileMgr;
+        }
+    }
+
+    /**
+     * Give back a file manager obtained with {@link #acquire}.
+     * @param fileMgr the file manager
+     */
+    public synchronized void release(FileMgr fileMgr) {
+        OpenFile entry = open.get(fileMgr);
+        if (entry != null) {
+            entry.refs--;
+            closeIfUnused(entry);
+        }
+    }
+
+    /**
+     * Evict all entries, closing each file manager once it is no longer in use.
+     */
+    public synchronized void close() {
+        for (OpenFile entry : entries.values()) {
+            evict(entry);
+        }
+        entries.clear();
+    }
+
+    private void evict(OpenFile entry) {
+        entry.evicted = true;
+        closeIfUnused(entry);
+    }
+
+    private void closeIfUnused(OpenFile entry) {
+        if (entry.evicted && entry.refs == 0) {
+            open.remove(entry.fileMgr);
+            try {
+                entry.fileMgr.closeFile();
+            } catch (IOException e) {
+                tgui.logWarn("Could not close file after upload");
+            }
+        }
+    }
+}
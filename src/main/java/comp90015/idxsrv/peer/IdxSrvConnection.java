@@ -0,0 +1,206 @@
+package comp90015.idxsrv.peer;
+
+import comp90015.idxsrv.message.*;
+import comp90015.idxsrv.textgui.ISharerGUI;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An authenticated connection to an index server. If the server supports sessions
+ * then the connection carries any number of requests until it is closed, otherwise
+ * it carries exactly one request.
+ */
+public class IdxSrvConnection {
+
+	final InetAddress idxAddress;
+
+	final int idxPort;
+
+	final String idxSecret;
+
+	private Socket socket;
+
+	private BufferedReader bufferedReader;
+
+	private BufferedWriter bufferedWriter;
+
+	private ISharerGUI tgui;
+
+	private boolean session;
+
+	private long lastUsed;
+
+	/**
+	 * Connect to the index server and follow the handshake protocol.
+	 * @param idxAddress the index server address
+	 * @param idxPort the index server port
+	 * @param idxSecret the index server secret
+	 * @param timeout the socket timeout in milliseconds
+	 * @param askForSession true to ask the server to keep the connection open for many requests
+	 * @param tgui the gui to log to
+	 * @throws IOException if the connection or the handshake fails
+	 */
+	public IdxSrvConnection(InetAddress idxAddress, int idxPort, String idxSecret, int timeout,
+			boolean askForSession, ISharerGUI tgui) throws IOException {
+		this.idxAddress=idxAddress;
+		this.idxPort=idxPort;
+		this.idxSecret=idxSecret;
+		this.tgui=tgui;
+		socket=new Socket(idxAddress, idxPort);
+		socket.setSoTimeout(timeout);
+		InputStream inputStream = socket.getInputStream();
+		OutputStream outputStream = socket.getOutputStream();
+		bufferedReader=new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+		bufferedWriter=new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+		if (!handshake()) {
+			socket.close();
+			throw new IOException("Handshake with index server failed");
+		}
+		if (askForSession) {
+			try {
+				Message msg = request(new SessionRequest());
+				session=msg.getClass().getName().equals(SessionReply.class.getName())
+						&& ((SessionReply) msg).success;
+			} catch (IOException | JsonSerializationException e) {
+				session=false;
+			}
+			if (!session) {
+				// an older server replies with an error and closes the connection
+				socket.close();
+			}
+		}
+		lastUsed=System.currentTimeMillis();
+	}
+
+	/**
+	 * Send a request and receive its reply.
+	 * @param msg the request message
+	 * @return the reply message
+	 * @throws IOException if the connection fails
+	 * @throws JsonSerializationException if the reply is invalid
+	 */
+	public Message request(Message msg) throws IOException, JsonSerializationException {
+		send(msg);
+		return receive();
+	}
+
+	/**
+	 * Send a request, whose reply must then be received with {@link #receive}. If this
+	 * throws then the server has not received the whole request, so has not acted on it.
+	 * @param msg the request message
+	 * @throws IOException if the connection fails
+	 */
+	public void send(Message msg) throws IOException {
+		writeMsg(msg);
+	}
+
+	/**
+	 * Receive the reply to the request last sent.
+	 * @return the reply message
+	 * @throws IOException if the connection fails
+	 * @throws JsonSerializationException if the reply is invalid
+	 */
+	public Message receive() throws IOException, JsonSerializationException {
+		Message reply = readMsg();
+		lastUsed=System.currentTimeMillis();
+		return reply;
+	}
+
+	/**
+	 *
+	 * @return true if the connection can carry further requests
+	 */
+	public boolean isSession() {
+		return session && !socket.isClosed();
+	}
+
+	/**
+	 *
+	 * @return the time in milliseconds since the connection was last used
+	 */
+	public long idleTime() {
+		return System.currentTimeMillis() - lastUsed;
+	}
+
+	/**
+	 * Close the connection, ending the session with a goodbye if there is one.
+	 */
+	public void close() {
+		try {
+			if (isSession()) {
+				writeMsg(new Goodbye());
+			}
+		} catch (IOException e) {
+			// the server may have already closed the session
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			tgui.logWarn("Could not close connection to index server");
+		}
+	}
+
+	private boolean handshake() throws IOException {
+
+		// 1. Receives welcome message
+		Message msg;
+		try {
+			msg=readMsg();
+		} catch (JsonSerializationException e1) {
+			writeMsg(new ErrorMsg("Invalid message"));
+			return false;
+		}
+		if (msg.getClass().getName().equals(WelcomeMsg.class.getName())){
+			WelcomeMsg welcomeMsg = (WelcomeMsg) msg;
+			tgui.logInfo(welcomeMsg.msg);
+		}	else {
+			writeMsg(new ErrorMsg("Expecting WelcomeMsg"));
+			return false;
+		}
+
+		// 2. Sends authenticate request
+		writeMsg(new AuthenticateRequest(idxSecret));
+
+		// 3. Receives authenticate reply
+		try {
+			msg=readMsg();
+		} catch (JsonSerializationException e1) {
+			writeMsg(new ErrorMsg("Invalid message"));
+			return false;
+		}
+		if (msg.getClass().getName().equals(AuthenticateReply.class.getName())) {
+			AuthenticateReply authenticateReplyMsg = (AuthenticateReply) msg;
+			if (authenticateReplyMsg.success) {
+				tgui.logInfo("Authentication succeed.");
+			} else {
+				writeMsg(new ErrorMsg("Authentication failed"));
+				return false;
+			}
+		}	else {
+			writeMsg(new ErrorMsg("Expecting AuthenticateReply"));
+			return false;
+		}
+		return true;
+	}
+
+	private void writeMsg(Message msg) throws IOException {
+		tgui.logDebug("sending: "+msg.toString());
+		bufferedWriter.write(msg.toString());
+		bufferedWriter.newLine();
+		bufferedWriter.flush();
+	}
+
+	private Message readMsg() throws IOException, JsonSerializationException {
+		String jsonStr = bufferedReader.readLine();
+		if (jsonStr != null) {
+			Message msg = (Message) MessageFactory.deserialize(jsonStr);
+			tgui.logDebug("received: " + msg.toString());
+			return msg;
+		} else {
+			throw new IOException();
+		}
+	}
+}
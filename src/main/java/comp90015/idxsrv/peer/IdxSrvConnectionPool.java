@@ -0,0 +1,142 @@
+package comp90015.idxsrv.peer;
+
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.textgui.ISharerGUI;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A pool of idle session connections to index servers, so that consecutive requests
+ * to the same server reuse one authenticated connection instead of repeating the
+ * connection and handshake for every request. Servers that do not support sessions
+ * are remembered and get a new connection per request, as before.
+ */
+public class IdxSrvConnectionPool {
+
+	private HashMap<String, ArrayDeque<IdxSrvConnection>> idleConnections;
+
+	private HashSet<String> noSessionServers;
+
+	private ISharerGUI tgui;
+
+	private int timeout;
+
+	/**
+	 * @param timeout the socket timeout in milliseconds, a connection that has been idle
+	 *                for more than half of this is not reused since the server may have closed it
+	 * @param tgui the gui to log to
+	 */
+	public IdxSrvConnectionPool(int timeout, ISharerGUI tgui) {
+		this.timeout=timeout;
+		this.tgui=tgui;
+		idleConnections=new HashMap<>();
+		noSessionServers=new HashSet<>();
+	}
+
+	/**
+	 * Send a request to the index server and receive its reply, reusing an idle session
+	 * if there is one. A request that cannot be sent on a reused session is retried once
+	 * on a new connection, since the server may have closed the session in the meantime.
+	 * A request that was sent is never retried, since the server may have acted on it.
+	 * @param idxAddress the index server address
+	 * @param idxPort the index server port
+	 * @param idxSecret the index server secret
+	 * @param msg the request message
+	 * @return the reply message
+	 * @throws IOException if the connection fails
+	 * @throws JsonSerializationException if the reply is invalid
+	 */
+	public Message request(InetAddress idxAddress, int idxPort, String idxSecret, Message msg)
+			throws IOException, JsonSerializationException {
+		IdxSrvConnection connection = borrow(idxAddress, idxPort, idxSecret);
+		if (connection != null) {
+			try {
+				connection.send(msg);
+			} catch (IOException e) {
+				tgui.logDebug("Reused index server session failed, reconnecting");
+				connection.close();
+				connection=null;
+			}
+		}
+		if (connection == null) {
+			connection=open(idxAddress, idxPort, idxSecret);
+			try {
+				connection.send(msg);
+			} catch (IOException e) {
+				connection.close();
+				throw e;
+			}
+		}
+		try {
+			Message reply = connection.receive();
+			release(connection);
+			return reply;
+		} catch (IOException | JsonSerializationException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close all idle connections.
+	 */
+	public synchronized void close() {
+		for (ArrayDeque<IdxSrvConnection> connections : idleConnections.values()) {
+			for (IdxSrvConnection connection : connections) {
+				connection.close();
+			}
+		}
+		idleConnections.clear();
+	}
+
+	private IdxSrvConnection open(InetAddress idxAddress, int idxPort, String idxSecret) throws IOException {
+		String server = idxAddress.getHostAddress() + ":" + idxPort;
+		boolean askForSession;
+		synchronized (this) {
+			askForSession=!noSessionServers.contains(server);
+		}
+		IdxSrvConnection connection = new IdxSrvConnection(idxAddress, idxPort, idxSecret, timeout,
+				askForSession, tgui);
+		if (askForSession && !connection.isSession()) {
+			// the server does not support sessions, so reconnect for a single request
+			synchronized (this) {
+				noSessionServers.add(server);
+			}
+			connection=new IdxSrvConnection(idxAddress, idxPort, idxSecret, timeout, false, tgui);
+		}
+		return connection;
+	}
+
+	private synchronized IdxSrvConnection borrow(InetAddress idxAddress, int idxPort, String idxSecret) {
+		ArrayDeque<IdxSrvConnection> connections = idleConnections.get(key(idxAddress, idxPort, idxSecret));
+		while (connections != null && !connections.isEmpty()) {
+			IdxSrvConnection connection = connections.poll();
+			if (connection.isSession() && (timeout == 0 || connection.idleTime() < timeout / 2)) {
+				return connection;
+			}
+			connection.close();
+		}
+		return null;
+	}
+
+	private void release(IdxSrvConnection connection) {
+		if (!connection.isSession()) {
+			connection.close();
+			return;
+		}
+		synchronized (this) {
+			idleConnections.computeIfAbsent(
+					key(connection.idxAddress, connection.idxPort, connection.idxSecret),
+					k -> new ArrayDeque<>()).push(connection);
+		}
+	}
+
+	private static String key(InetAddress idxAddress, int idxPort, String idxSecret) {
+		return idxAddress.getHostAddress() + ":" + idxPort + ":" + idxSecret;
+	}
+}
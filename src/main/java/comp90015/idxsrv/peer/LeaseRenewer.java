@@ -0,0 +1,211 @@
+package comp90015.idxsrv.peer;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.*;
+import comp90015.idxsrv.textgui.ISharerGUI;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * Renews the leases of this peer's shares, so that index servers that expire shares
+ * keep them while the peer is running. The shares with each index server are renewed
+ * in batches at a third of the server's lease time, and a share that the server no
+ * longer has, e.g. because it expired while the peer was unreachable, is shared again.
+ */
+public class LeaseRenewer extends Thread {
+
+	/**
+	 * The renewal interval in milliseconds until a server tells its lease time.
+	 */
+	private static final long DEFAULT_INTERVAL = 10000;
+
+	/**
+	 * The renewal interval in milliseconds for a server whose shares do not expire.
+	 */
+	private static final long NO_LEASE_INTERVAL = 300000;
+
+	/**
+	 * The maximum number of shares renewed by a single request.
+	 */
+	private static final int BATCH_SIZE = 500;
+
+	private static class Lease {
+		final String filename;
+		final FileDescr fileDescr;
+		final String shareSecret;
+
+		Lease(String filename, FileDescr fileDescr, String shareSecret) {
+			this.filename=filename;
+			this.fileDescr=fileDescr;
+			this.shareSecret=shareSecret;
+		}
+	}
+
+	private static class IdxSrvLeases {
+		final InetAddress idxAddress;
+		final int idxPort;
+		final String idxSecret;
+		final LinkedHashMap<String, Lease> leases = new LinkedHashMap<>();
+		long nextRenewal;
+
+		IdxSrvLeases(InetAddress idxAddress, int idxPort, String idxSecret) {
+			this.idxAddress=idxAddress;
+			this.idxPort=idxPort;
+			this.idxSecret=idxSecret;
+			nextRenewal=System.currentTimeMillis() + DEFAULT_INTERVAL;
+		}
+	}
+
+	private HashMap<String, IdxSrvLeases> servers = new HashMap<>();
+
+	private IdxSrvConnectionPool idxSrvConnections;
+
+	private ISharerGUI tgui;
+
+	private int port;
+
+	/**
+	 * @param port the port this peer shares files on
+	 * @param idxSrvConnections the connections to index servers
+	 * @param tgui the gui to log to
+	 */
+	public LeaseRenewer(int port, IdxSrvConnectionPool idxSrvConnections, ISharerGUI tgui) {
+		this.port=port;
+		this.idxSrvConnections=idxSrvConnections;
+		this.tgui=tgui;
+		setDaemon(true);
+	}
+
+	/**
+	 * Start renewing a share.
+	 */
+	public synchronized void add(InetAddress idxAddress, int idxPort, String idxSecret,
+			String filename, FileDescr fileDescr, String shareSecret) {
+		servers.computeIfAbsent(key(idxAddress, idxPort, idxSecret),
+				k -> new IdxSrvLeases(idxAddress, idxPort, idxSecret))
+				.leases.put(filename + ":" + fileDescr.getFileMd5(), new Lease(filename, fileDescr, shareSecret));
+	}
+
+	/**
+	 * Stop renewing a share, e.g. because it has been dropped.
+	 */
+	public synchronized void remove(InetAddress idxAddress, int idxPort, String idxSecret,
+			String filename, String fileMd5) {
+		IdxSrvLeases server = servers.get(key(idxAddress, idxPort, idxSecret));
+		if (server != null) {
+			server.leases.remove(filename + ":" + fileMd5);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!isInterrupted()) {
+				Thread.sleep(1000);
+				ArrayList<IdxSrvLeases> due = new ArrayList<>();
+				synchronized (this) {
+					long now = System.currentTimeMillis();
+					for (IdxSrvLeases server : servers.values()) {
+						if (now >= server.nextRenewal && !server.leases.isEmpty()) {
+							due.add(server);
+						}
+					}
+				}
+				for (IdxSrvLeases server : due) {
+					renew(server);
+				}
+			}
+		} catch (InterruptedException e) {
+			// shutting down
+		}
+	}
+
+	private void renew(IdxSrvLeases server) {
+		ArrayList<Lease> leases;
+		synchronized (this) {
+			leases=new ArrayList<>(server.leases.values());
+		}
+		long interval = DEFAULT_INTERVAL;
+		for(int start=0;start<leases.size();start+=BATCH_SIZE) {
+			int end = Math.min(leases.size(), start + BATCH_SIZE);
+			String[] filenames = new String[end - start];
+			String[] fileMd5s = new String[end - start];
+			String[] shareSecrets = new String[end - start];
+			for(int i=start;i<end;i++) {
+				filenames[i - start]=leases.get(i).filename;
+				fileMd5s[i - start]=leases.get(i).fileDescr.getFileMd5();
+				shareSecrets[i - start]=leases.get(i).shareSecret;
+			}
+			Message msg;
+			try {
+				msg=idxSrvConnections.request(server.idxAddress, server.idxPort, server.idxSecret,
+						new RenewRequest(filenames, fileMd5s, shareSecrets, port));
+			} catch (IOException | JsonSerializationException e) {
+				tgui.logWarn("Could not renew shares with index server, will retry");
+				break;
+			}
+			if (isUnknownRequest(msg)) {
+				// the server does not know about leases, so there is nothing to renew
+				tgui.logDebug("Index server does not support renewing shares");
+				interval=Long.MAX_VALUE / 2;
+				break;
+			}
+			if (!msg.getClass().getName().equals(RenewReply.class.getName())) {
+				tgui.logWarn("Could not renew shares with index server, will retry");
+				interval=DEFAULT_INTERVAL;
+				break;
+			}
+			RenewReply renewReply = (RenewReply) msg;
+			interval=renewReply.leaseTime > 0 ? renewReply.leaseTime * 1000L / 3 : NO_LEASE_INTERVAL;
+			for(int i=start;i<end && i-start<renewReply.renewed.length;i++) {
+				if (!renewReply.renewed[i - start]) {
+					reshare(server, leases.get(i));
+				}
+			}
+		}
+		synchronized (this) {
+			server.nextRenewal=System.currentTimeMillis() + interval;
+		}
+	}
+
+	private void reshare(IdxSrvLeases server, Lease lease) {
+		synchronized (this) {
+			if (server.leases.get(lease.filename + ":" + lease.fileDescr.getFileMd5()) != lease) {
+				// dropped since
+				return;
+			}
+		}
+		try {
+			Message msg = idxSrvConnections.request(server.idxAddress, server.idxPort, server.idxSecret,
+					new ShareRequest(lease.fileDescr, lease.filename, lease.shareSecret, port));
+			if (msg.getClass().getName().equals(ShareReply.class.getName())) {
+				tgui.logInfo("Share of " + lease.filename + " had expired, shared it again");
+			} else {
+				tgui.logWarn("Share of " + lease.filename + " had expired and could not be shared again");
+			}
+		} catch (IOException | JsonSerializationException e) {
+			tgui.logWarn("Share of " + lease.filename + " had expired and could not be shared again");
+		}
+	}
+
+	/**
+	 * @param msg the reply to a renew request
+	 * @return true if the reply is the error of a server that does not know the request,
+	 * i.e. cannot read it or does not process it
+	 */
+	private static boolean isUnknownRequest(Message msg) {
+		if (!msg.getClass().getName().equals(ErrorMsg.class.getName())) {
+			return false;
+		}
+		String error = ((ErrorMsg) msg).msg;
+		return "Invalid message".equals(error) || "Expecting a request message".equals(error);
+	}
+
+	private static String key(InetAddress idxAddress, int idxPort, String idxSecret) {
+		return idxAddress.getHostAddress() + ":" + idxPort + ":" + idxSecret;
+	}
+}
@@ -4,10 +4,14 @@ package comp90015.idxsrv.peer;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import comp90015.idxsrv.filemgr.FileDescr;
 import comp90015.idxsrv.filemgr.FileMgr;
@@ -40,21 +44,61 @@ public class Peer implements IPeer {
 
 	private Upload upload; // added
 
+	private FileMgrCache uploadFileMgrs;
+
+	private BlockCache blockCache;
+
+	private IdxSrvConnectionPool idxSrvConnections;
+
+	private LeaseRenewer leaseRenewer;
+
+	private FileMgr.VERIFYPOLICY verifyPolicy;
+
+	private FileDescr.HASHMODE hashMode;
+
+	private FileDescr.HASHALGORITHM hashAlgorithm;
+
+	private FileMgr.IOMODE ioMode;
+
+	private int hashThreads;
+
 	public Peer(int port, String basedir, int socketTimeout, ISharerGUI tgui) throws IOException {
+		this(port,basedir,socketTimeout,Upload.UPLOADMODE.ZEROCOPY,FileMgr.VERIFYPOLICY.INCREMENTAL,
+				FileDescr.HASHMODE.FLAT,FileDescr.HASHALGORITHM.MD5,FileMgr.IOMODE.POSITIONAL,1,BlockCache.DEFAULT_CAPACITY,tgui);
+	}
+
+	public Peer(int port, String basedir, int socketTimeout, Upload.UPLOADMODE uploadMode,
+			FileMgr.VERIFYPOLICY verifyPolicy, FileDescr.HASHMODE hashMode, FileDescr.HASHALGORITHM hashAlgorithm,
+			FileMgr.IOMODE ioMode, int hashThreads, long blockCacheBytes, ISharerGUI tgui) throws IOException {
 		this.tgui=tgui;
+		this.verifyPolicy=verifyPolicy;
+		this.hashMode=hashMode;
+		this.hashAlgorithm=hashAlgorithm;
+		this.ioMode=ioMode;
+		this.hashThreads=hashThreads;
 		this.port=port;
 		this.timeout=socketTimeout;
 		this.basedir=new File(basedir).getCanonicalPath();
 		incomingConnections=new LinkedBlockingDeque<Socket>(); // added
 		ioThread = new IOThread(port,incomingConnections,socketTimeout,tgui);
 		ioThread.start();
-		upload = new Upload(incomingConnections, tgui); // added
+		uploadFileMgrs = new FileMgrCache(this.basedir, 64, hashMode, hashAlgorithm, ioMode, tgui);
+		blockCache = new BlockCache(blockCacheBytes);
+		upload = new Upload(incomingConnections, uploadFileMgrs, uploadMode, blockCache, tgui); // added
 		upload.start(); // added
+		idxSrvConnections = new IdxSrvConnectionPool(socketTimeout, tgui);
+		leaseRenewer = new LeaseRenewer(port, idxSrvConnections, tgui);
+		leaseRenewer.start();
 	}
 	
 	public void shutdown() throws InterruptedException, IOException {
+		leaseRenewer.interrupt();
+		leaseRenewer.join();
+		idxSrvConnections.close();
 		upload.interrupt();
 		upload.join();
+		uploadFileMgrs.close();
+		tgui.logInfo("Upload block cache: "+blockCache);
 		ioThread.shutdown();
 		ioThread.interrupt();
 		ioThread.join();
@@ -65,10 +109,13 @@ public class Peer implements IPeer {
 	 * General outline of Peer structure
 	 *
 	 * Section 1: Implementation of the four functionality as described in the IPeer.java interface definition.
-	 * Section 2: Helper methods for writing and reading messages sent and received
-	 * Section 3: Helper method for handshake protocol
 	 * Class added 1: Download class
 	 * Class added 2: Upload class
+	 * Class added 3: IdxSrvConnection class, with the handshake protocol
+	 * Class added 4: IdxSrvConnectionPool class, reusing sessions with the index server
+	 * Class added 5: LeaseRenewer class, renewing the leases of shares with the index server
+	 * Class added 6: BlockStream class, carrying messages and raw block bytes between peers
+	 * Class added 7: FileMgrCache class, keeping shared files open for uploads
 	 *
 	 */
 
@@ -77,7 +124,7 @@ public class Peer implements IPeer {
 	/**
 	 * Section 1: Implementation of the four functionality as described in the IPeer.java interface definition.
 	 *
-	 * Method 1 of 4: shareFileWithIdxServer
+	 * Method 1 of 4: shareFileWithIdxServer, and shareFilesWithIdxServer to share many files in bulk
 	 * Method 2 of 4: searchIdxServer
 	 * Method 3 of 4: dropShareWithIdxServer
 	 * Method 4 of 4: downloadFromPeers
@@ -89,43 +136,42 @@ public class Peer implements IPeer {
 
 		try {
 
-			// Disallow file selection from outside base directory
-			if (!file.getPath().startsWith(this.basedir)) {
-				tgui.logWarn("File selected is not within base directory");
+			// Share all files within a selected directory in bulk
+			if (file.isDirectory()) {
+				List<File> files;
+				try (Stream<Path> paths = Files.walk(file.toPath())) {
+					// Skip the resume state files of incomplete downloads
+					files = paths.filter(Files::isRegularFile)
+							.filter(path -> !path.toString().endsWith(FileMgr.STATE_SUFFIX)
+									&& !path.toString().endsWith(FileMgr.STATE_SUFFIX + ".tmp"))
+							.map(Path::toFile).collect(Collectors.toList());
+				}
+				shareFilesWithIdxServer(files, idxAddress, idxPort, idxSecret, shareSecret);
 				return;
 			}
 
-			// Making connection to server
-			Socket socket = new Socket(idxAddress, idxPort);
-			socket.setSoTimeout(timeout);
-			InputStream inputStream = socket.getInputStream();
-			OutputStream outputStream = socket.getOutputStream();
-			BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-			BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
-
-			if (!handshake(idxSecret, bufferedReader, bufferedWriter)){
+			// Disallow file selection from outside base directory
+			if (!file.getPath().startsWith(this.basedir)) {
+				tgui.logWarn("File selected is not within base directory");
 				return;
 			}
 
 			// Get relative path name based on base directory
 			String relativePathname = file.getPath().substring(this.basedir.length() + 1);
 
-			// Sends ShareRequest message
-			try{
-				RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-				FileDescr fileDescr = new FileDescr(randomAccessFile);
-				writeMsg(bufferedWriter, new ShareRequest(fileDescr, relativePathname, shareSecret, this.port));
+			// Sends ShareRequest message and receives ShareReply message
+			Message msg;
+			FileDescr fileDescr;
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+				fileDescr = new FileDescr(randomAccessFile, FileDescr.DEFAULT_BLOCK_LENGTH, hashMode, hashAlgorithm,
+						hashThreads);
+				msg = idxSrvConnections.request(idxAddress, idxPort, idxSecret,
+						new ShareRequest(fileDescr, relativePathname, shareSecret, this.port));
 			} catch (FileNotFoundException e) {
 				tgui.logWarn("Peer received File Not Found Exception while accessing file to share");
 				return;
-			}
-
-			// Receives ShareReply message
-			Message msg;
-			try {
-				msg = readMsg(bufferedReader);
 			} catch (JsonSerializationException e1) {
-				writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
+				tgui.logWarn("Peer received invalid message while sharing");
 				return;
 			}
 
@@ -134,7 +180,7 @@ public class Peer implements IPeer {
 			if (msg.getClass().getName().equals(ShareReply.class.getName())) {
 				shareReplyMsg = (ShareReply) msg;
 			}	else {
-				writeMsg(bufferedWriter,new ErrorMsg("Expecting ShareReply"));
+				tgui.logWarn("Expecting ShareReply");
 				return;
 			}
 
@@ -142,21 +188,16 @@ public class Peer implements IPeer {
 			Integer numSharers = shareReplyMsg.numSharers;
 
 			// Build a ShareRecord and add it to the GUI
-			FileMgr fileMgr = new FileMgr(file.getPath());
-			ShareRecord shareRecord = new ShareRecord(fileMgr, numSharers,
+			ShareRecord shareRecord = new ShareRecord(fileDescr, numSharers,
 					"seeding", idxAddress, idxPort, idxSecret, shareSecret);
 			tgui.addShareRecord(relativePathname, shareRecord);
-
-			fileMgr.closeFile();
-
-			bufferedReader.close();
-			bufferedWriter.close();
-			socket.close();
+			uploadFileMgrs.register(relativePathname, fileDescr);
+			leaseRenewer.add(idxAddress, idxPort, idxSecret, relativePathname, fileDescr, shareSecret);
 
 			tgui.logInfo("Share file with Server completed");
 
 		} catch (NoSuchAlgorithmException e){
-			tgui.logWarn("MD5 hash algorithm is unavailable for file selected to share");
+			tgui.logWarn("Hash algorithm is unavailable for file selected to share");
 		} catch(IOException e) {
 			tgui.logWarn("Peer received io exception while sharing");
 		} catch (Exception e){
@@ -164,6 +205,89 @@ public class Peer implements IPeer {
 		}
 	}
 
+	/**
+	 * Share many files with the index server, sending them in batches with a
+	 * BatchShareRequest rather than a request per file. Files outside the base
+	 * directory are skipped. If the server does not support batches, the files
+	 * are shared one at a time.
+	 * @param files the files to share
+	 * @param idxAddress the index server address
+	 * @param idxPort the index server port
+	 * @param idxSecret the index server secret
+	 * @param shareSecret the secret to share the files with
+	 */
+	public void shareFilesWithIdxServer(List<File> files, InetAddress idxAddress, int idxPort, String idxSecret,
+			String shareSecret) {
+
+		final int batchSize = 500;
+		int numShared = 0;
+		for (int start = 0; start < files.size(); start += batchSize) {
+			List<File> batch = files.subList(start, Math.min(files.size(), start + batchSize));
+
+			// Describe each file of the batch within the base directory
+			ArrayList<String> relativePathnames = new ArrayList<>();
+			ArrayList<FileDescr> describedFiles = new ArrayList<>();
+			for (File file : batch) {
+				if (!file.getPath().startsWith(this.basedir)) {
+					tgui.logWarn("File selected is not within base directory: " + file.getPath());
+					continue;
+				}
+				try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+					describedFiles.add(new FileDescr(randomAccessFile, FileDescr.DEFAULT_BLOCK_LENGTH, hashMode,
+							hashAlgorithm, hashThreads));
+					relativePathnames.add(file.getPath().substring(this.basedir.length() + 1));
+				} catch (IOException | NoSuchAlgorithmException e) {
+					tgui.logWarn("Peer could not read file to share: " + file.getPath());
+				}
+			}
+			if (describedFiles.isEmpty()) {
+				continue;
+			}
+			FileDescr[] fileDescrs = describedFiles.toArray(new FileDescr[0]);
+			String[] shareSecrets = new String[fileDescrs.length];
+			Arrays.fill(shareSecrets, shareSecret);
+
+			// Sends BatchShareRequest message and receives BatchShareReply message
+			Message msg;
+			try {
+				msg = idxSrvConnections.request(idxAddress, idxPort, idxSecret,
+						new BatchShareRequest(fileDescrs, relativePathnames.toArray(new String[0]), shareSecrets,
+								this.port));
+			} catch (IOException | JsonSerializationException e) {
+				tgui.logWarn("Peer received io exception while sharing files");
+				return;
+			}
+			if (!msg.getClass().getName().equals(BatchShareReply.class.getName())) {
+				// The server does not support batches, so share the remaining files one at a time
+				tgui.logInfo("Index server does not support batch sharing, sharing files one at a time");
+				for (File file : files.subList(start, files.size())) {
+					shareFileWithIdxServer(file, idxAddress, idxPort, idxSecret, shareSecret);
+				}
+				return;
+			}
+			Integer[] numSharers = ((BatchShareReply) msg).numSharers;
+
+			// Build a ShareRecord for each shared file and add it to the GUI
+			for (int i = 0; i < fileDescrs.length && i < numSharers.length; i++) {
+				if (numSharers[i] < 0) {
+					tgui.logWarn("Sharing secret did not match for " + relativePathnames.get(i));
+					continue;
+				}
+				ShareRecord shareRecord = new ShareRecord(fileDescrs[i], numSharers[i],
+						"seeding", idxAddress, idxPort, idxSecret, shareSecret);
+				tgui.addShareRecord(relativePathnames.get(i), shareRecord);
+				try {
+					uploadFileMgrs.register(relativePathnames.get(i), fileDescrs[i]);
+				} catch (NoSuchAlgorithmException e) {
+					tgui.logWarn("Hash algorithm is unavailable for " + relativePathnames.get(i));
+				}
+				leaseRenewer.add(idxAddress, idxPort, idxSecret, relativePathnames.get(i), fileDescrs[i], shareSecret);
+				numShared++;
+			}
+		}
+		tgui.logInfo("Share files with Server completed, " + numShared + " files shared");
+	}
+
 	@Override
 	public void searchIdxServer(String[] keywords, 
 			int maxhits, 
@@ -173,27 +297,13 @@ public class Peer implements IPeer {
 
 		try {
 
-			// Making connection to server
-			Socket socket = new Socket(idxAddress, idxPort);
-			socket.setSoTimeout(timeout);
-			InputStream inputStream = socket.getInputStream();
-			OutputStream outputStream = socket.getOutputStream();
-			BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-			BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
-
-			if (!handshake(idxSecret, bufferedReader, bufferedWriter)){
-				return;
-			}
-
-			// Sends SearchRequest message
-			writeMsg(bufferedWriter, new SearchRequest(maxhits,keywords));
-
-			// Receives SearchReply message
+			// Sends SearchRequest message and receives SearchReply message
 			Message msg;
 			try {
-				msg = readMsg(bufferedReader);
+				msg = idxSrvConnections.request(idxAddress, idxPort, idxSecret,
+						new SearchRequest(maxhits,keywords));
 			} catch (JsonSerializationException e1) {
-				writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
+				tgui.logWarn("Peer received invalid message while searching");
 				return;
 			}
 
@@ -202,7 +312,7 @@ public class Peer implements IPeer {
 			if (msg.getClass().getName().equals(SearchReply.class.getName())) {
 				searchReplyMsg = (SearchReply) msg;
 			}	else {
-				writeMsg(bufferedWriter,new ErrorMsg("Expecting SearchReply"));
+				tgui.logWarn("Expecting SearchReply");
 				return;
 			}
 
@@ -227,10 +337,6 @@ public class Peer implements IPeer {
 
 			tgui.logInfo("Search finished. "  + hits.length + " hits found.");
 
-			bufferedReader.close();
-			bufferedWriter.close();
-			socket.close();
-
 		} catch(IOException e){
 			tgui.logWarn("Peer received io exception while searching");
 		} catch (Exception e){
@@ -244,7 +350,7 @@ public class Peer implements IPeer {
 		try {
 
 			// Obtain information from ShareRecord
-			FileMgr fileMgr = shareRecord.fileMgr;
+			FileDescr fileDescr = shareRecord.fileDescr;
 			// long numSharers = shareRecord.numSharers; // Not required
 			// String status = shareRecord.status; // Not required
 			InetAddress idxSrvAddress = shareRecord.idxSrvAddress;
@@ -252,29 +358,14 @@ public class Peer implements IPeer {
 			String idxSrvSecret = shareRecord.idxSrvSecret;
 			String sharerSecret = shareRecord.sharerSecret;
 
-			// Making connection to server
-			Socket socket = new Socket(idxSrvAddress, idxSrvPort);
-			socket.setSoTimeout(timeout);
-			InputStream inputStream = socket.getInputStream();
-			OutputStream outputStream = socket.getOutputStream();
-			BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-			BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
-
-			if (!handshake(idxSrvSecret, bufferedReader, bufferedWriter)){
-				return false;
-			}
-
-			// Sends DropShareRequest message
-			String fileMd5 = fileMgr.getFileDescr().getFileMd5();
-			writeMsg(bufferedWriter, new DropShareRequest(relativePathname,
-					fileMd5, sharerSecret, this.port));
-
-			// Receives DropShareReply message
+			// Sends DropShareRequest message and receives DropShareReply message
+			String fileMd5 = fileDescr.getFileMd5();
 			Message msg;
 			try {
-				msg = readMsg(bufferedReader);
+				msg = idxSrvConnections.request(idxSrvAddress, idxSrvPort, idxSrvSecret,
+						new DropShareRequest(relativePathname, fileMd5, sharerSecret, this.port));
 			} catch (JsonSerializationException e1) {
-				writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
+				tgui.logWarn("Peer received invalid message while dropping share");
 				return false;
 			}
 
@@ -283,7 +374,7 @@ public class Peer implements IPeer {
 			if (msg.getClass().getName().equals(DropShareReply.class.getName())) {
 				dropShareReplyMsg = (DropShareReply) msg;
 			}	else {
-				writeMsg(bufferedWriter,new ErrorMsg("Expecting DropShareReply"));
+				tgui.logWarn("Expecting DropShareReply");
 				return false;
 			}
 
@@ -292,17 +383,16 @@ public class Peer implements IPeer {
 
 			// Show result of drop
 			if (success){
+				leaseRenewer.remove(idxSrvAddress, idxSrvPort, idxSrvSecret, relativePathname, fileMd5);
+				uploadFileMgrs.unregister(relativePathname, fileMd5);
 				tgui.logInfo("The file share has been dropped.");
 			}	else {
 				tgui.logInfo("The file share drop has failed");
 				return false;
 			}
-
-			fileMgr.closeFile();
-
-			bufferedReader.close();
-			bufferedWriter.close();
-			socket.close();
+			if (shareRecord.fileMgr != null) {
+				shareRecord.fileMgr.closeFile();
+			}
 
 		} catch(IOException e) {
 			tgui.logWarn("Peer received io exception while dropping share");
@@ -322,30 +412,16 @@ public class Peer implements IPeer {
 			int idxSrvPort = searchRecord.idxSrvPort;
 			String idxSrvSecret = searchRecord.idxSrvSecret;
 
-			// Making connection to server
-			Socket socket = new Socket(idxSrvAddress, idxSrvPort);
-			socket.setSoTimeout(timeout);
-			InputStream inputStream = socket.getInputStream();
-			OutputStream outputStream = socket.getOutputStream();
-			BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-			BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
-
-			if (!handshake(idxSrvSecret, bufferedReader, bufferedWriter)){
-				return;
-			}
-
 			// read file related information from the searchRecord
 			String fileMD5 = searchRecord.fileDescr.getFileMd5();
 
-			// Send the LookupRequest
-			writeMsg(bufferedWriter,new LookupRequest(relativePathname,fileMD5));
-
-			// Receives LookupReply message
+			// Send the LookupRequest and receives LookupReply message
 			Message msg;
 			try {
-				msg = readMsg(bufferedReader);
+				msg = idxSrvConnections.request(idxSrvAddress, idxSrvPort, idxSrvSecret,
+						new LookupRequest(relativePathname,fileMD5));
 			} catch (JsonSerializationException e1) {
-				writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
+				tgui.logWarn("Peer received invalid message while looking up peers");
 				return;
 			}
 
@@ -354,7 +430,7 @@ public class Peer implements IPeer {
 			if (msg.getClass().getName().equals(LookupReply.class.getName())) {
 				lookupReplyMsg = (LookupReply) msg;
 			}	else {
-				writeMsg(bufferedWriter,new ErrorMsg("Expecting LookupReply"));
+				tgui.logWarn("Expecting LookupReply");
 				return;
 			}
 
@@ -362,10 +438,6 @@ public class Peer implements IPeer {
 			IndexElement[] availableHits = lookupReplyMsg.hits;
 			int numAvailablePeers = availableHits.length;
 
-			bufferedReader.close();
-			bufferedWriter.close();
-			socket.close();
-
 			FileDescr fileDescr;
 			int numBlocks;
 			// Check whether the availableHits is an empty array
@@ -390,6 +462,8 @@ public class Peer implements IPeer {
 				downloadedFile.getParentFile().mkdir();
 				downloadedFile.createNewFile();
 				fileMgr = new FileMgr(downloadedFile.getPath(),fileDescr);
+				fileMgr.setVerifyPolicy(verifyPolicy);
+				fileMgr.setIoMode(ioMode);
 
 			} catch(IOException e){
 				tgui.logWarn("I/O Exception when creating fileMgr");
@@ -408,6 +482,9 @@ public class Peer implements IPeer {
 					distinct().limit(selectedNum).toArray();
 			for(int i=0;i<selectedHits.length;i++) selectedHits[i] = availableHits[selectedIndexes[i]];
 
+			// The download threads share the fileMgr, and the first to finish verifies and closes it
+			AtomicBoolean finished = new AtomicBoolean(false);
+
 			// Divide the blocks to download from each selected sharer
 			int numBlockPerHit = (int)Math.ceil((double)numBlocks / (double)selectedHits.length);
 			for(int i = 0;i < selectedHits.length;i++){
@@ -420,7 +497,7 @@ public class Peer implements IPeer {
 				}
 
 				// Create a download thread for each hit to speed up the download process
-				new Download(hit.ip,hit.port,hit.filename,blockList,fileMgr, this.tgui, this.timeout).start();
+				new Download(hit.ip,hit.port,hit.filename,blockList,fileMgr,finished, this.tgui, this.timeout).start();
 			}
 
 
@@ -431,78 +508,4 @@ public class Peer implements IPeer {
 		}
 	}
 
-
-
-	/**
-	 * Section 2: Helper methods for writing and reading messages sent and received
-	 */
-
-	private void writeMsg(BufferedWriter bufferedWriter, Message msg) throws IOException {
-		tgui.logDebug("sending: "+msg.toString());
-		bufferedWriter.write(msg.toString());
-		bufferedWriter.newLine();
-		bufferedWriter.flush();
-	}
-
-	private Message readMsg(BufferedReader bufferedReader) throws IOException, JsonSerializationException {
-		String jsonStr = bufferedReader.readLine();
-		if (jsonStr != null) {
-			Message msg = (Message) MessageFactory.deserialize(jsonStr);
-			tgui.logDebug("received: " + msg.toString());
-			return msg;
-		} else {
-			throw new IOException();
-		}
-	}
-
-
-
-	/**
-	 * Section 3: Helper method for handshake protocol
-	 */
-	private boolean handshake(String idxSecret, BufferedReader bufferedReader, BufferedWriter bufferedWriter) throws IOException {
-
-		// 1. Receives welcome message
-		Message msg;
-		try {
-			msg = readMsg(bufferedReader);
-		} catch (JsonSerializationException e1) {
-			writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
-			return false;
-		}
-		if (msg.getClass().getName().equals(WelcomeMsg.class.getName())){
-			WelcomeMsg welcomeMsg = (WelcomeMsg) msg;
-			tgui.logInfo(welcomeMsg.msg);
-		}	else {
-				writeMsg(bufferedWriter,new ErrorMsg("Expecting WelcomeMsg"));
-				return false;
-		}
-
-		// 2. Sends authenticate request
-		writeMsg(bufferedWriter, new AuthenticateRequest(idxSecret));
-
-		// 3. Receives authenticate reply
-		try {
-			msg = readMsg(bufferedReader);
-		} catch (JsonSerializationException e1) {
-			writeMsg(bufferedWriter,new ErrorMsg("Invalid message"));
-			return false;
-		}
-		if (msg.getClass().getName().equals(AuthenticateReply.class.getName())) {
-			AuthenticateReply authenticateReplyMsg = (AuthenticateReply) msg;
-			if (authenticateReplyMsg.success) {
-				tgui.logInfo("Authentication succeed.");
-			} else {
-				writeMsg(bufferedWriter, new ErrorMsg("Authentication failed"));
-				return false;
-			}
-		}	else {
-				writeMsg(bufferedWriter,new ErrorMsg("Expecting AuthenticateReply"));
-			return false;
-		}
-		return true;
-	}
-
-
-
 }
@@ -1,12 +1,18 @@
 package comp90015.idxsrv.peer;
 
 import java.net.InetAddress;
+import java.util.Arrays;
 
+import comp90015.idxsrv.filemgr.FileDescr;
 import comp90015.idxsrv.filemgr.FileMgr;
 
 public class ShareRecord {
 
+	/**
+	 * The manager of a file that may be incomplete, or null for a complete file that is only described.
+	 */
 	final public FileMgr fileMgr;
+	final public FileDescr fileDescr;
 	final public Long numSharers;
 	final public String status;
 	final public InetAddress idxSrvAddress;
@@ -21,7 +27,33 @@ public class ShareRecord {
 			int idxSrvPort,
 			String idxSrvSecret,
 			String sharerSecret) {
+		this(fileMgr, fileMgr.getFileDescr(), numSharers, status, idxSrvAddress, idxSrvPort, idxSrvSecret,
+				sharerSecret);
+	}
+	
+	/**
+	 * A record of a complete file, which needs no open file manager.
+	 */
+	public ShareRecord(FileDescr fileDescr,
+			long numSharers,
+			String status,
+			InetAddress idxSrvAddress,
+			int idxSrvPort,
+			String idxSrvSecret,
+			String sharerSecret) {
+		this(null, fileDescr, numSharers, status, idxSrvAddress, idxSrvPort, idxSrvSecret, sharerSecret);
+	}
+	
+	private ShareRecord(FileMgr fileMgr,
+			FileDescr fileDescr,
+			long numSharers,
+			String status,
+			InetAddress idxSrvAddress,
+			int idxSrvPort,
+			String idxSrvSecret,
+			String sharerSecret) {
 		this.fileMgr = fileMgr;
+		this.fileDescr = fileDescr;
 		this.numSharers = numSharers;
 		this.status = status;
 		this.idxSrvAddress = idxSrvAddress;
@@ -29,4 +61,16 @@ public class ShareRecord {
 		this.idxSrvSecret = idxSrvSecret;
 		this.sharerSecret = sharerSecret;
 	}
+	
+	/**
+	 * @return whether each block of the file is available
+	 */
+	public boolean[] getBlockAvailability() {
+		if(fileMgr!=null) {
+			return fileMgr.getBlockAvailability();
+		}
+		boolean[] blockAvailable = new boolean[fileDescr.getNumBlocks()];
+		Arrays.fill(blockAvailable, true);
+		return blockAvailable;
+	}
 }
@@ -1,13 +1,14 @@
 package comp90015.idxsrv.peer;
 
 import comp90015.idxsrv.filemgr.BlockUnavailableException;
+import comp90015.idxsrv.filemgr.FileDescr;
 import comp90015.idxsrv.filemgr.FileMgr;
 import comp90015.idxsrv.message.*;
 import comp90015.idxsrv.textgui.ISharerGUI;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.Objects;
@@ -15,13 +16,52 @@ import java.util.concurrent.LinkedBlockingDeque;
 
 public class Upload extends Thread {
 
+    /**
+     * The message of the {@link ErrorMsg} sent in reply to a request for a block that this
+     * peer does not have, so that the requesting peer can tell it from a request it does not know.
+     */
+    static final String BLOCK_UNAVAILABLE = "Block unavailable";
+
+    /**
+     * How the bytes of a raw block are sent.
+     * <ul>
+     * <li>{@link UPLOADMODE#COPY} copies the block from the file to the socket in
+     * small chunks through the Java heap.</li>
+     * <li>{@link UPLOADMODE#ZEROCOPY} hands the copy to the operating system with
+     * {@link java.nio.channels.FileChannel#transferTo}, so the block's bytes never
+     * enter the Java heap. Connections without a socket channel fall back to copying.</li>
+     * </ul>
+     */
+    public enum UPLOADMODE {
+        COPY,
+        ZEROCOPY
+    }
+
     private LinkedBlockingDeque<Socket> incomingConnections;
 
     private ISharerGUI tgui;
 
+    private UPLOADMODE uploadMode;
+
+    private FileMgrCache fileMgrs;
+
+    private BlockCache blockCache;
+
     public Upload(LinkedBlockingDeque<Socket> incomingConnections,
+                  FileMgrCache fileMgrs,
+                  ISharerGUI tgui) {
+        this(incomingConnections, fileMgrs, UPLOADMODE.ZEROCOPY, new BlockCache(BlockCache.DEFAULT_CAPACITY), tgui);
+    }
+
+    public Upload(LinkedBlockingDeque<Socket> incomingConnections,
+                  FileMgrCache fileMgrs,
+                  UPLOADMODE uploadMode,
+                  BlockCache blockCache,
                   ISharerGUI tgui) {
         this.incomingConnections = incomingConnections;
+        this.fileMgrs = fileMgrs;
+        this.uploadMode = uploadMode;
+        this.blockCache = blockCache;
         this.tgui = tgui;
     }
 
@@ -40,6 +80,12 @@ public class Upload extends Thread {
         }
     }
 
+    private static String[] toHex(byte[][] hashes) {
+        String[] hex = new String[hashes.length];
+        for (int i = 0; i < hashes.length; i++) hex[i] = FileDescr.bytesToHex(hashes[i]);
+        return hex;
+    }
+
     private class ProcessRequest extends Thread {
 
         private ISharerGUI tgui;
@@ -59,97 +105,171 @@ public class Upload extends Thread {
                 String ip = socket.getInetAddress().getHostAddress();
                 int port = socket.getPort();
                 tgui.logInfo("Peer upload processing request on connection " + ip + ":" + port);
-                InputStream inputStream = socket.getInputStream();
-                OutputStream outputStream = socket.getOutputStream();
-                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
-                BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+                BlockStream stream = new BlockStream(socket);
+                try {
+                    serve(stream);
+                } finally {
+                    stream.close();
+                }
 
-                boolean transfer = true;
-                while (transfer) {
+            } catch (IOException e) {
+                tgui.logWarn("Upload process received io exception.");
+            } catch (Exception e){
+                tgui.logWarn("Upload process received unknown exception: " + e.getClass() + e.getMessage());
+            }
+        }
 
-                    // Receives BlockRequest message
-                    Message msg;
-                    try {
-                        msg = readMsg(bufferedReader);
-                    } catch (JsonSerializationException e1) {
-                        writeMsg(bufferedWriter, new ErrorMsg("Invalid message"));
-                        return;
-                    }
+        /**
+         * Answers requests on the connection until the other Peer says goodbye, or the
+         * connection can no longer be used.
+         * @param stream the connection to the other Peer
+         * @throws IOException if the connection fails
+         */
+        private void serve(BlockStream stream) throws IOException {
+            boolean transfer = true;
+            while (transfer) {
+
+                // Receives BlockRequest or RawBlockRequest message
+                Message msg;
+                try {
+                    msg = stream.readMsg();
+                } catch (JsonSerializationException e1) {
+                    stream.writeMsg(new ErrorMsg("Invalid message"));
+                    return;
+                }
 
-                    // Evaluate whether the message is BlockRequest or Goodbye
-                    if (msg.getClass().getName().equals(BlockRequest.class.getName())) {
+                // Evaluate whether the message is BlockRequest, RawBlockRequest or Goodbye
+                boolean raw = msg.getClass().getName().equals(RawBlockRequest.class.getName());
+                if (raw || msg.getClass().getName().equals(BlockRequest.class.getName())) {
+
+                    // Obtain information from the Message
+                    String filename;
+                    String fileMd5;
+                    Integer blockIdx;
+                    if (raw) {
+                        RawBlockRequest rawBlockRequestMsg = (RawBlockRequest) msg;
+                        filename = rawBlockRequestMsg.filename;
+                        fileMd5 = rawBlockRequestMsg.fileMd5;
+                        blockIdx = rawBlockRequestMsg.blockIdx;
+                    } else {
                         BlockRequest blockRequestMsg = (BlockRequest) msg;
+                        filename = blockRequestMsg.filename;
+                        fileMd5 = blockRequestMsg.fileMd5;
+                        blockIdx = blockRequestMsg.blockIdx;
+                    }
 
-                        // Obtain information from the Message
-                        String filename = blockRequestMsg.filename;
-                        String fileMd5 = blockRequestMsg.fileMd5;
-                        Integer blockIdx = blockRequestMsg.blockIdx;
-
-                        // Create fileMgr
-                        FileMgr fileMgr = null;
-                        try {
-                            fileMgr = new FileMgr(filename);
-                        } catch (IOException e) {
-                            tgui.logError("Upload received IO exception at fileMgr");
-                            return;
-                        } catch (NoSuchAlgorithmException e) {
-                            tgui.logError("Upload received NoSuchAlgorithmException at fileMgr");
-                            return;
-                        }
+                    // Obtain the open fileMgr of the file
+                    FileMgr fileMgr = acquire(filename, fileMd5);
+                    if (fileMgr == null) {
+                        stream.writeMsg(new ErrorMsg(BLOCK_UNAVAILABLE));
+                        continue;
+                    }
+                    boolean available = Objects.equals(fileMd5, fileMgr.getFileDescr().getFileMd5())
+                            && fileMgr.isBlockAvailable(blockIdx);
 
-                        // Obtain bytes of requested block
-                        byte[] bytes = new byte[0];
-                        if (Objects.equals(fileMd5, fileMgr.getFileDescr().getFileMd5())) {
-                            try {
-                                if (fileMgr.isBlockAvailable(blockIdx)) {
-                                    bytes = fileMgr.readBlock(blockIdx);
-                                }
-                            } catch (BlockUnavailableException | IOException e) {
-                                tgui.logError("Failed to read block for upload");
-                                return;
+                    boolean headerSent = false;
+                    try {
+                        if (!available) {
+                            stream.writeMsg(new ErrorMsg(BLOCK_UNAVAILABLE));
+                        } else if (raw) {
+                            // Sends the RawBlockReply header, then the block's bytes from the cache or straight from the file
+                            int length = fileMgr.getFileDescr().getNumBlockBytes(blockIdx);
+                            ByteBuffer cached = blockCache.getBlock(filename, fileMd5, blockIdx);
+                            stream.writeHeader(new RawBlockReply(filename, fileMd5, blockIdx, length));
+                            headerSent = true;
+                            if (cached != null) {
+                                stream.writeRaw(cached);
+                            } else if (blockCache.isHotBlock(filename, fileMd5, blockIdx, length)) {
+                                // requested again recently, so read it once for the cache
+                                byte[] bytes = fileMgr.readBlock(blockIdx);
+                                blockCache.putBlock(filename, fileMd5, blockIdx, bytes);
+                                stream.writeRaw(ByteBuffer.wrap(bytes));
+                            } else if (uploadMode == UPLOADMODE.ZEROCOPY && stream.getChannel() != null) {
+                                stream.flush();
+                                fileMgr.transferBlock(blockIdx, stream.getChannel());
+                            } else {
+                                fileMgr.readBlock(blockIdx, stream.getOutputStream());
+                            }
+                            stream.flush();
+                        } else {
+                            byte[] frame = blockCache.getFrame(filename, fileMd5, blockIdx);
+                            if (frame == null) {
+                                // Obtain and encode bytes of requested block
+                                byte[] bytes = fileMgr.readBlock(blockIdx);
+                                String encodedBytes = Base64.getEncoder().encodeToString(bytes);
+                                frame = BlockStream.encode(new BlockReply(filename, fileMd5, blockIdx, encodedBytes));
+                                blockCache.putFrame(filename, fileMd5, blockIdx, frame);
                             }
-                        }
 
-                        fileMgr.closeFile();
+                            // Sends BlockReply message
+                            stream.writeFrame(frame);
+                        }
+                    } catch (BlockUnavailableException e) {
+                        if (headerSent) {
+                            // the other Peer is already reading the block's bytes, so the connection is unusable
+                            tgui.logError("Failed to read block for upload, closing the connection");
+                            return;
+                        }
+                        tgui.logWarn("Failed to read block for upload");
+                        stream.writeMsg(new ErrorMsg(BLOCK_UNAVAILABLE));
+                    } finally {
+                        fileMgrs.release(fileMgr);
+                    }
 
-                        // Encode bytes
-                        String encodedBytes = Base64.getEncoder().encodeToString(bytes);
+                } else if (msg.getClass().getName().equals(BlockProofRequest.class.getName())) {
 
-                        // Sends BlockReply message
-                        writeMsg(bufferedWriter, new BlockReply(filename, fileMd5, blockIdx, encodedBytes));
+                    // Obtain information from the Message
+                    BlockProofRequest blockProofRequestMsg = (BlockProofRequest) msg;
+                    String filename = blockProofRequestMsg.filename;
+                    String fileMd5 = blockProofRequestMsg.fileMd5;
+                    Integer blockIdx = blockProofRequestMsg.blockIdx;
 
-                    } else if (msg.getClass().getName().equals(Goodbye.class.getName())) {
-                        transfer = false;
-                        tgui.logInfo("Upload process ended");
-                    } else {
-                        writeMsg(bufferedWriter, new ErrorMsg("Expecting BlockRequest or Goodbye only"));
+                    // Obtain the open fileMgr of the file
+                    FileMgr fileMgr = acquire(filename, fileMd5);
+                    if (fileMgr == null) {
+                        stream.writeMsg(new ErrorMsg(BLOCK_UNAVAILABLE));
+                        continue;
                     }
-                }
 
-                bufferedReader.close();
-                bufferedWriter.close();
-                socket.close();
+                    // Sends the hashes of the block's leaves and the block's proof, or none if unavailable
+                    String[] leafHashes = new String[0];
+                    String[] proof = new String[0];
+                    try {
+                        if (Objects.equals(fileMd5, fileMgr.getFileDescr().getFileMd5())
+                                && fileMgr.isBlockAvailable(blockIdx)
+                                && fileMgr.getFileDescr().getHashMode() == FileDescr.HASHMODE.MERKLE) {
+                            leafHashes = toHex(fileMgr.getLeafHashes(blockIdx));
+                            proof = toHex(fileMgr.getBlockProof(blockIdx));
+                        }
+                    } catch (BlockUnavailableException e) {
+                        tgui.logWarn("Block proof unavailable for upload");
+                    } finally {
+                        fileMgrs.release(fileMgr);
+                    }
+                    stream.writeMsg(new BlockProofReply(filename, fileMd5, blockIdx, leafHashes, proof));
 
-            } catch (IOException e) {
-                tgui.logWarn("Upload process received io exception.");
-            } catch (Exception e){
-                tgui.logWarn("Upload process received unknown exception: " + e.getClass() + e.getMessage());
+                } else if (msg.getClass().getName().equals(Goodbye.class.getName())) {
+                    transfer = false;
+                    tgui.logInfo("Upload process ended");
+                    tgui.logDebug("Upload block cache: " + blockCache);
+                } else {
+                    stream.writeMsg(new ErrorMsg("Expecting BlockRequest, RawBlockRequest, BlockProofRequest or Goodbye only"));
+                }
             }
         }
-    }
-    private void writeMsg(BufferedWriter bufferedWriter, Message msg) throws IOException {
-        bufferedWriter.write(msg.toString());
-        bufferedWriter.newLine();
-        bufferedWriter.flush();
-    }
 
-    private Message readMsg(BufferedReader bufferedReader) throws IOException, JsonSerializationException {
-        String jsonStr = bufferedReader.readLine();
-        if (jsonStr != null) {
-            Message msg = (Message) MessageFactory.deserialize(jsonStr);
-            return msg;
-        } else {
-            throw new IOException();
+        /**
+         * Opens the file for the request, or returns null if it is not available to upload.
+         */
+        private FileMgr acquire(String filename, String fileMd5) {
+            try {
+                return fileMgrs.acquire(filename, fileMd5);
+            } catch (IOException e) {
+                tgui.logWarn("Upload cannot open " + filename + ": " + e.getMessage());
+            } catch (NoSuchAlgorithmException e) {
+                tgui.logError("Upload received NoSuchAlgorithmException at fileMgr");
+            }
+            return null;
         }
     }
 }
@@ -1,8 +1,10 @@
 package comp90015.idxsrv.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.LinkedBlockingDeque;
 
 import comp90015.idxsrv.textgui.ITerminalLogger;
@@ -10,7 +12,9 @@ import comp90015.idxsrv.textgui.ITerminalLogger;
 /**
  * A basic IOThread class that accepts connections and puts them
  * onto a blocking queue. If the queue is full then the connection
- * is dropped and a warning is logged.
+ * is dropped and a warning is logged. The server socket is opened
+ * from a channel, so that each incoming connection has a socket
+ * channel, e.g. for {@link java.nio.channels.FileChannel#transferTo}.
  * @author aaron
  *
  */
@@ -36,7 +40,7 @@ public class IOThread extends Thread {
 		this.timeout = timeout;
 		this.logger = logger;
 		this.incomingConnections=incomingConnections;
-		serverSocket = new ServerSocket(port);
+		serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
 		
 	}
 	
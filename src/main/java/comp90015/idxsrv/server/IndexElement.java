@@ -1,5 +1,7 @@
 package comp90015.idxsrv.server;
 
+import java.util.Set;
+
 import comp90015.idxsrv.filemgr.FileDescr;
 import comp90015.idxsrv.message.JsonElement;
 import comp90015.idxsrv.message.JsonSerializable;
@@ -36,6 +38,19 @@ public class IndexElement {
 	@JsonElement
 	public String secret;
 	
+	/**
+	 * The live set of elements sharing this element's file under this element's
+	 * filename, maintained by the {@link IndexMgr}. Not serialized.
+	 */
+	Set<IndexElement> sharers;
+	
+	/**
+	 * The time in milliseconds at which the lease of this element expires, if the
+	 * {@link IndexMgr} has leases enabled. Renewing the lease only moves this time
+	 * forward. Not serialized.
+	 */
+	volatile long leaseExpiry;
+	
 	
 	public IndexElement() {
 		
@@ -1,14 +1,22 @@
 package comp90015.idxsrv.server;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import comp90015.idxsrv.filemgr.FileDescr;
 
 /**
  * A simple class for managing the files that are currently being shared, and tracking
- * the sharers.
+ * the sharers. The index manager is safe to use from many threads: searches and
+ * lookups hold a shared read lock and may run in parallel, while shares and drops
+ * hold the exclusive write lock. Optionally shares and drops are persisted to an
+ * {@link IndexStore}, so that the index survives a restart.
  * @author aaron
  *
  */
@@ -21,9 +29,26 @@ public class IndexMgr {
 	}
 	
 	/**
-	 * A map from a file's MD5 hash to the set of elements that share that file.
+	 * How keywords are matched against filenames when searching.
+	 * <ul>
+	 * <li>{@link SEARCHMODE#TOKEN} matches keywords against the whole tokens of the filename,
+	 * using the inverted {@link KeywordIndex}.</li>
+	 * <li>{@link SEARCHMODE#SUBSTRING} matches keywords as substrings of the filename, by
+	 * scanning every element in the index. This is the default, as it finds every file
+	 * that the original server found.</li>
+	 * </ul>
 	 */
-	private HashMap<String,HashSet<IndexElement>> md5Map;
+	public enum SEARCHMODE {
+		TOKEN,
+		SUBSTRING
+	}
+	
+	/**
+	 * A map from a file's MD5 hash to a map from a filename to the set of elements that
+	 * share that file under that filename. The sets are concurrent so that the views
+	 * returned by {@link lookup} can be read while the index changes.
+	 */
+	private HashMap<String,HashMap<String,Set<IndexElement>>> md5Map;
 	
 	/**
 	 * A map from a sharer key IP:PORT:FILENAME:FILEMD5 to the index element for that unique
@@ -32,11 +57,131 @@ public class IndexMgr {
 	private HashMap<String,IndexElement> sharerMap;
 	
 	/**
-	 * Creates a new index manager.
+	 * An inverted index from filename tokens to the elements that contain them.
+	 */
+	private KeywordIndex keywordIndex;
+	
+	private SEARCHMODE searchMode;
+	
+	/**
+	 * Whether search results are ranked, see {@link RankedHits}, rather than returned
+	 * in arbitrary order.
+	 */
+	private boolean ranked;
+	
+	/**
+	 * Where shares and drops are persisted, or null if the index is only in memory.
+	 */
+	private IndexStore store;
+	
+	/**
+	 * The cache of search replies, invalidated as elements are added and removed,
+	 * or null if search replies are not cached.
+	 */
+	private SearchCache searchCache;
+	
+	/**
+	 * The lease time in milliseconds, or 0 if elements do not expire.
+	 */
+	private long leaseTime;
+	
+	/**
+	 * Holds every element until its lease might expire, if leases are enabled.
+	 */
+	private TimingWheel<IndexElement> leaseWheel;
+	
+	/**
+	 * Guards all of the maps above, and the lease wheel.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Creates a new index manager that searches in {@link SEARCHMODE#SUBSTRING} mode.
 	 */
 	public IndexMgr() {
+		this(SEARCHMODE.SUBSTRING);
+	}
+	
+	/**
+	 * Creates a new index manager.
+	 * @param searchMode how keywords are matched against filenames when searching
+	 */
+	public IndexMgr(SEARCHMODE searchMode) {
+		this.searchMode=searchMode;
 		md5Map=new HashMap<>();
 		sharerMap=new HashMap<>();
+		keywordIndex=new KeywordIndex();
+	}
+	
+	/**
+	 * Creates a new index manager that persists shares and drops to a store,
+	 * first recovering the index from it.
+	 * @param searchMode how keywords are matched against filenames when searching
+	 * @param store the store to recover from and persist to
+	 * @throws IOException if the store cannot be recovered
+	 */
+	public IndexMgr(SEARCHMODE searchMode, IndexStore store) throws IOException {
+		this(searchMode);
+		lock.writeLock().lock();
+		try {
+			store.recover(this);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		this.store=store;
+	}
+	
+	/**
+	 * Enable leases, so that an element is dropped unless it is renewed within the
+	 * lease time of being shared or last renewed. Elements already in the index, e.g.
+	 * recovered from the store, get a full lease from now. Expired elements are dropped
+	 * by calling {@link expireLeases} periodically.
+	 * @param leaseTime the lease time in milliseconds
+	 * @param tickTime the resolution of lease expiry in milliseconds
+	 */
+	public void enableLeases(long leaseTime, long tickTime) {
+		lock.writeLock().lock();
+		try {
+			long now = System.currentTimeMillis();
+			this.leaseTime=leaseTime;
+			leaseWheel=new TimingWheel<IndexElement>(tickTime, now);
+			for(IndexElement element : sharerMap.values()) {
+				element.leaseExpiry=now+leaseTime;
+				leaseWheel.add(element, element.leaseExpiry);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Set whether search results are ranked by score, see {@link RankedHits}, rather
+	 * than being the first maxhits elements found in arbitrary order. Ranking visits
+	 * every matching element, while the unranked search stops after maxhits.
+	 * @param ranked true to rank search results
+	 */
+	public void setRanked(boolean ranked) {
+		this.ranked=ranked;
+	}
+	
+	/**
+	 * Set the cache of search replies to invalidate as elements are added and removed.
+	 * @param searchCache the cache, or null for none
+	 */
+	public void setSearchCache(SearchCache searchCache) {
+		lock.writeLock().lock();
+		try {
+			this.searchCache=searchCache;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the lease time in milliseconds, or 0 if leases are not enabled
+	 */
+	public long getLeaseTime() {
+		return leaseTime;
 	}
 	
 	/**
@@ -49,33 +194,58 @@ public class IndexMgr {
 	 * @param filename the filename of the file being shared
 	 * @param secret the secret required to drop this index element
 	 * @return {@link RETCODE.SUCCESS} if added or {@link RETCODE.FAILEDSECRET} if the element already exists and the provided secret does not match
+	 * @throws IOException if the index is persisted and the share could not be made durable
 	 */
 	public RETCODE share(String ip, 
 			int port, 
 			FileDescr fileDescr, 
 			String filename,
-			String secret) {
+			String secret) throws IOException {
 		// Create the new index element to share.
 		IndexElement element = new IndexElement(ip,port,fileDescr,filename,secret);
-		String fileMd5 = fileDescr.getFileMd5(); 
-		String sharerKey = ip+":"+port+":"+filename+":"+fileMd5;
-		
-		// Drop an identical index element for this sharer if it already exists.
-		// The secret must match for this to be successful.
-		if(sharerMap.containsKey(sharerKey)) {
-			if(drop(ip,port,filename,fileMd5,secret)==RETCODE.FAILEDSECRET) {
-				return RETCODE.FAILEDSECRET;
-			}
+		RETCODE retcode;
+		long lsn=0;
+		lock.writeLock().lock();
+		try {
+			retcode=shareElement(element);
+			if(store!=null) lsn=store.lastLsn();
+		} finally {
+			lock.writeLock().unlock();
 		}
-		
-		// Add the element to be shared
-		sharerMap.put(sharerKey, element);
-		if(!md5Map.containsKey(fileDescr.getFileMd5())){
-			md5Map.put(fileDescr.getFileMd5(),new HashSet<IndexElement>());
+		commit(lsn);
+		return retcode;
+	}
+	
+	/**
+	 * Share many files from the same sharer, under a single acquisition of the write
+	 * lock and a single sync of the store. The i'th file is given by the i'th file
+	 * descriptor, filename and secret, and is shared as by {@link share}.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @param fileDescrs the file descriptors of the files being shared
+	 * @param filenames the filenames of the files being shared
+	 * @param secrets the secrets required to drop the index elements
+	 * @return the result of sharing each file, as returned by {@link share}
+	 * @throws IOException if the index is persisted and the shares could not be made durable
+	 */
+	public RETCODE[] share(String ip,
+			int port,
+			FileDescr[] fileDescrs,
+			String[] filenames,
+			String[] secrets) throws IOException {
+		RETCODE[] retcodes = new RETCODE[filenames.length];
+		long lsn=0;
+		lock.writeLock().lock();
+		try {
+			for(int i=0;i<retcodes.length;i++) {
+				retcodes[i]=shareElement(new IndexElement(ip,port,fileDescrs[i],filenames[i],secrets[i]));
+			}
+			if(store!=null) lsn=store.lastLsn();
+		} finally {
+			lock.writeLock().unlock();
 		}
-		HashSet<IndexElement> md5set = md5Map.get(fileDescr.getFileMd5());
-		md5set.add(element);
-		return RETCODE.SUCCESS;
+		commit(lsn);
+		return retcodes;
 	}
 	
 	/**
@@ -86,39 +256,315 @@ public class IndexMgr {
 	 * @param fileMd5 the MD5 hash of the file being shared
 	 * @param secret the secret required to drop this index element
 	 * @return {@link RETCODE.SUCCESS} if dropped, {@link RETCODE.INVALID} if not found, {@link RETCODE.FAILEDSECRET} if the provided secret does not match
+	 * @throws IOException if the index is persisted and the drop could not be made durable
 	 */
 	public RETCODE drop(String ip,
 			int port,
 			String filename,
 			String fileMd5,
-			String secret) {
-		String sharerKey = ip+":"+port+":"+filename+":"+fileMd5;
-		if(sharerMap.containsKey(sharerKey)) {
-			IndexElement existingElement = sharerMap.get(sharerKey);
-			if(existingElement.secret.equals(secret)) {
-				HashSet<IndexElement> md5set = md5Map.get(fileMd5);
-				md5set.remove(existingElement);
-				if(md5set.isEmpty()) {
-					md5Map.remove(fileMd5);
+			String secret) throws IOException {
+		RETCODE retcode;
+		long lsn=0;
+		lock.writeLock().lock();
+		try {
+			retcode=dropElement(ip+":"+port+":"+filename+":"+fileMd5,secret);
+			if(store!=null) lsn=store.lastLsn();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		commit(lsn);
+		return retcode;
+	}
+	
+	/**
+	 * Drop many elements from the same sharer, under a single acquisition of the write
+	 * lock and a single sync of the store. The i'th element is given by the i'th
+	 * filename, MD5 hash and secret, and is dropped as by {@link drop}.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @param filenames the filenames to drop
+	 * @param fileMd5s the MD5 hashes of the files being shared
+	 * @param secrets the secrets required to drop the index elements
+	 * @return the result of dropping each element, as returned by {@link drop}
+	 * @throws IOException if the index is persisted and the drops could not be made durable
+	 */
+	public RETCODE[] drop(String ip,
+			int port,
+			String[] filenames,
+			String[] fileMd5s,
+			String[] secrets) throws IOException {
+		RETCODE[] retcodes = new RETCODE[filenames.length];
+		long lsn=0;
+		lock.writeLock().lock();
+		try {
+			for(int i=0;i<retcodes.length;i++) {
+				retcodes[i]=dropElement(ip+":"+port+":"+filenames[i]+":"+fileMd5s[i],secrets[i]);
+			}
+			if(store!=null) lsn=store.lastLsn();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		commit(lsn);
+		return retcodes;
+	}
+	
+	/**
+	 * Renew the leases of several elements shared by the same sharer. The i'th element
+	 * is given by the i'th filename, MD5 hash and secret. Renewing only moves the
+	 * element's expiry time forward, the lease wheel catches up when the old expiry
+	 * time comes round, so renewals hold just the read lock.
+	 * @param ip the ip address of the sharer
+	 * @param port the port number of the sharer
+	 * @param filenames the filenames of the elements
+	 * @param fileMd5s the MD5 hashes of the elements
+	 * @param secrets the secrets of the elements
+	 * @return whether each element was found with a matching secret and renewed
+	 */
+	public Boolean[] renew(String ip,
+			int port,
+			String[] filenames,
+			String[] fileMd5s,
+			String[] secrets) {
+		Boolean[] renewed = new Boolean[filenames.length];
+		lock.readLock().lock();
+		try {
+			long expiry = System.currentTimeMillis()+leaseTime;
+			for(int i=0;i<renewed.length;i++) {
+				IndexElement element = sharerMap.get(ip+":"+port+":"+filenames[i]+":"+fileMd5s[i]);
+				renewed[i] = element!=null && element.secret.equals(secrets[i]);
+				if(renewed[i] && leaseWheel!=null) {
+					element.leaseExpiry=expiry;
 				}
-				sharerMap.remove(sharerKey);
-				return RETCODE.SUCCESS;
 			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return renewed;
+	}
+	
+	/**
+	 * Drop the elements whose lease has expired. Only the elements whose expiry time,
+	 * as of when they were last put in the lease wheel, has come round are visited:
+	 * those renewed since are put back in the wheel with their new expiry time, the
+	 * others are dropped.
+	 * @return the number of elements dropped
+	 * @throws IOException if the index is persisted and the drops could not be made durable
+	 */
+	public int expireLeases() throws IOException {
+		if(leaseWheel==null) return 0;
+		int expired=0;
+		long lsn=0;
+		lock.writeLock().lock();
+		try {
+			long now = System.currentTimeMillis();
+			for(IndexElement element : leaseWheel.advance(now)) {
+				String sharerKey = sharerKey(element);
+				if(sharerMap.get(sharerKey)!=element) {
+					// dropped or replaced since
+					continue;
+				}
+				if(element.leaseExpiry>now) {
+					leaseWheel.add(element, element.leaseExpiry);
+				} else {
+					removeElement(sharerKey,element);
+					if(store!=null) store.logDrop(element);
+					expired++;
+				}
+			}
+			if(store!=null) lsn=store.lastLsn();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		commit(lsn);
+		return expired;
+	}
+	
+	/**
+	 * Add an element replayed from the store, replacing any identical element.
+	 * Only used during recovery.
+	 * @param element the element to add
+	 */
+	void recoverShare(IndexElement element) {
+		String sharerKey = sharerKey(element);
+		IndexElement existingElement = sharerMap.get(sharerKey);
+		if(existingElement!=null) {
+			removeElement(sharerKey,existingElement);
+		}
+		addElement(sharerKey,element);
+	}
+	
+	/**
+	 * Remove an element replayed from the store. Only used during recovery.
+	 */
+	void recoverDrop(String ip, int port, String filename, String fileMd5) {
+		String sharerKey = ip+":"+port+":"+filename+":"+fileMd5;
+		IndexElement existingElement = sharerMap.get(sharerKey);
+		if(existingElement!=null) {
+			removeElement(sharerKey,existingElement);
+		}
+	}
+	
+	/**
+	 * Sync and close the store, if there is one.
+	 */
+	public void close() {
+		if(store!=null) store.close();
+	}
+	
+	private static String sharerKey(IndexElement element) {
+		return element.ip+":"+element.port+":"+element.filename+":"+element.fileDescr.getFileMd5();
+	}
+	
+	/**
+	 * Share an element, replacing an identical element for this sharer if the secret
+	 * matches, and log it to the store. Must hold the write lock.
+	 */
+	private RETCODE shareElement(IndexElement element) {
+		String sharerKey = sharerKey(element);
+		IndexElement existingElement = sharerMap.get(sharerKey);
+		if(existingElement!=null) {
+			if(!existingElement.secret.equals(element.secret)) {
+				return RETCODE.FAILEDSECRET;
+			}
+			removeElement(sharerKey,existingElement);
+		}
+		addElement(sharerKey,element);
+		if(leaseWheel!=null) {
+			element.leaseExpiry=System.currentTimeMillis()+leaseTime;
+			leaseWheel.add(element, element.leaseExpiry);
+		}
+		if(store!=null) store.logShare(element);
+		return RETCODE.SUCCESS;
+	}
+	
+	/**
+	 * Drop an element if the secret matches, and log it to the store. Must hold the
+	 * write lock.
+	 */
+	private RETCODE dropElement(String sharerKey, String secret) {
+		IndexElement existingElement = sharerMap.get(sharerKey);
+		if(existingElement==null) {
+			return RETCODE.INVALID;
+		}
+		if(!existingElement.secret.equals(secret)) {
 			return RETCODE.FAILEDSECRET;
 		}
-		return RETCODE.INVALID;
+		removeElement(sharerKey,existingElement);
+		if(store!=null) store.logDrop(existingElement);
+		return RETCODE.SUCCESS;
+	}
+	
+	/**
+	 * Add an element to all of the maps. Must hold the write lock.
+	 */
+	private void addElement(String sharerKey, IndexElement element) {
+		sharerMap.put(sharerKey, element);
+		HashMap<String,Set<IndexElement>> filenameMap = md5Map.get(element.fileDescr.getFileMd5());
+		if(filenameMap==null){
+			filenameMap = new HashMap<String,Set<IndexElement>>();
+			md5Map.put(element.fileDescr.getFileMd5(),filenameMap);
+		}
+		Set<IndexElement> sharers = filenameMap.get(element.filename);
+		if(sharers==null) {
+			sharers = ConcurrentHashMap.newKeySet();
+			filenameMap.put(element.filename,sharers);
+		}
+		sharers.add(element);
+		element.sharers=sharers;
+		keywordIndex.add(element);
+		if(searchCache!=null) searchCache.invalidate(element.filename);
+	}
+	
+	/**
+	 * Remove an element from all of the maps. Must hold the write lock.
+	 */
+	private void removeElement(String sharerKey, IndexElement element) {
+		element.sharers.remove(element);
+		if(element.sharers.isEmpty()) {
+			HashMap<String,Set<IndexElement>> filenameMap = md5Map.get(element.fileDescr.getFileMd5());
+			filenameMap.remove(element.filename);
+			if(filenameMap.isEmpty()) {
+				md5Map.remove(element.fileDescr.getFileMd5());
+			}
+		}
+		sharerMap.remove(sharerKey);
+		keywordIndex.remove(element);
+		if(searchCache!=null) searchCache.invalidate(element.filename);
+	}
+	
+	/**
+	 * Wait for a logged change to be durable, and take a snapshot if the log has
+	 * grown large enough. Called after releasing the write lock, so that changes
+	 * made by other threads meanwhile are synced together with this one.
+	 * @param lsn the log sequence number of the change
+	 * @throws IOException if the change could not be made durable
+	 */
+	private void commit(long lsn) throws IOException {
+		if(store==null) return;
+		store.sync(lsn);
+		if(store.needsCheckpoint()) {
+			ArrayList<IndexElement> elements;
+			lock.writeLock().lock();
+			try {
+				if(!store.rollLog()) return;
+				elements = new ArrayList<IndexElement>(sharerMap.values());
+			} finally {
+				lock.writeLock().unlock();
+			}
+			Thread snapshotThread = new Thread(()->store.writeSnapshot(elements));
+			snapshotThread.setDaemon(true);
+			snapshotThread.start();
+		}
 	}
 	
 	/**
 	 * Do a basic keyword search for elements where all keywords are
 	 * contained in the element's filename. Return up to maxhits responses,
-	 * in arbitrary order. Keywords should be provided
-	 * in lower case.
+	 * in arbitrary order, or best first if search results are ranked. Keywords should be provided
+	 * in lower case. In {@link SEARCHMODE#TOKEN} mode each keyword must match
+	 * whole tokens of the filename, unless the keywords contain no tokens at all
+	 * (e.g. just punctuation) in which case the substring scan is used.
 	 * @param keywords the array of keywords to check for, lower cased
 	 * @param maxhits the maximum number of hits to return
 	 * @return an array of elements, possibly empty
 	 */
 	public ArrayList<IndexElement> search(String[] keywords, int maxhits) {
+		lock.readLock().lock();
+		try {
+			if(searchMode==SEARCHMODE.TOKEN) {
+				String[] tokens = KeywordIndex.tokenize(keywords);
+				if(tokens.length>0) {
+					if(ranked) {
+						RankedHits hits = new RankedHits(tokens, maxhits);
+						keywordIndex.search(tokens, hits);
+						return hits.hits();
+					}
+					return keywordIndex.search(tokens, maxhits);
+				}
+			}
+			if(ranked) {
+				RankedHits hits = new RankedHits(keywords, maxhits);
+				for(IndexElement element : sharerMap.values()) {
+					if(matches(element, keywords)) {
+						hits.offer(element);
+					}
+				}
+				return hits.hits();
+			}
+			return scan(keywords, maxhits);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Search by scanning every element, for elements where all keywords are
+	 * substrings of the element's filename.
+	 * @param keywords the array of keywords to check for, lower cased
+	 * @param maxhits the maximum number of hits to return
+	 * @return an array of elements, possibly empty
+	 */
+	private ArrayList<IndexElement> scan(String[] keywords, int maxhits) {
 		int hits=0;
 		HashSet<String> md5s = new HashSet<String>();
 		ArrayList<IndexElement> hitElements = new ArrayList<IndexElement>();
@@ -126,14 +572,7 @@ public class IndexMgr {
 			if(md5s.contains(element.fileDescr.getFileMd5())) {
 				continue;
 			}
-			boolean hit=true;
-			for(int k=0; k<keywords.length;k++) {
-				if(!element.filename.toLowerCase().contains(keywords[k])) {
-					hit=false;
-					break;
-				}
-			}
-			if(hit) {
+			if(matches(element, keywords)) {
 				md5s.add(element.fileDescr.getFileMd5());
 				hitElements.add(element);
 				hits++;
@@ -144,21 +583,69 @@ public class IndexMgr {
 	}
 
 	/**
-	 * Return the set of all elements corresponding to a given file MD5 hash.
+	 * @return true if all keywords are substrings of the element's filename
+	 */
+	private static boolean matches(IndexElement element, String[] keywords) {
+		String filename = element.filename.toLowerCase();
+		for(int k=0; k<keywords.length;k++) {
+			if(!filename.contains(keywords[k])) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Return the number of sharers of a file under a given filename, i.e. the size
+	 * of the set returned by {@link lookup}, without building the set.
+	 * @param filename the filename to count
+	 * @param fileMd5 the MD5 hash to count
+	 * @return the number of sharers, possibly 0
+	 */
+	public int numSharers(String filename,String fileMd5) {
+		return lookup(filename,fileMd5).size();
+	}
+	
+	/**
+	 * Return the number of sharers of each element's file under the element's
+	 * filename, for elements returned by {@link search}.
+	 * @param elements the elements to count
+	 * @return the number of sharers of each element, 0 if it has since been dropped
+	 */
+	public Integer[] numSharers(ArrayList<IndexElement> elements) {
+		Integer[] counts = new Integer[elements.size()];
+		lock.readLock().lock();
+		try {
+			for(int i=0;i<counts.length;i++) {
+				counts[i]=elements.get(i).sharers.size();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return counts;
+	}
+	
+	/**
+	 * Return the set of all elements corresponding to a given file MD5 hash and filename.
+	 * The set is a read only view of the index, that reflects later shares and drops of
+	 * this file under this filename, and it may be iterated without holding any lock.
+	 * @param filename the filename to lookup
 	 * @param fileMd5 the MD5 hash to lookup
 	 * @return a set of elements, possibly empty
 	 */
-	public HashSet<IndexElement> lookup(String filename,String fileMd5){
-		if(md5Map.containsKey(fileMd5)){
-			HashSet<IndexElement> hits = new HashSet<>();
-			for(IndexElement ie : md5Map.get(fileMd5)) {
-				if(ie.filename.equals(filename)) {
-					hits.add(ie);
+	public Set<IndexElement> lookup(String filename,String fileMd5){
+		lock.readLock().lock();
+		try {
+			HashMap<String,Set<IndexElement>> filenameMap = md5Map.get(fileMd5);
+			if(filenameMap!=null) {
+				Set<IndexElement> sharers = filenameMap.get(filename);
+				if(sharers!=null) {
+					return Collections.unmodifiableSet(sharers);
 				}
 			}
-			return hits;
-		} else {
-			return new HashSet<IndexElement>();
+			return Collections.emptySet();
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 	
@@ -0,0 +1,523 @@
+package comp90015.idxsrv.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * Persistent storage for the {@link IndexMgr}, as an append only log of shares and
+ * drops plus periodic snapshots of the whole index, kept in a directory:
+ * <ul>
+ * <li><code>index-N.log</code> is the log of generation N, a sequence of records each
+ * written as its length, its CRC32 and its content.</li>
+ * <li><code>index-N.snapshot</code> is the state of the index at the start of
+ * <code>index-N.log</code>, written to a temporary file and renamed when complete.</li>
+ * </ul>
+ * Recovery memory-maps the newest snapshot and replays the logs from its generation
+ * onwards. Only the last log may end with a torn record, which is truncated; a bad
+ * record anywhere else fails recovery, since the logs after it would be replayed on
+ * top of the gap. Appends are made durable by {@link sync}, which commits every record
+ * appended so far with a single fsync, so concurrent writers share the cost of the
+ * fsync (group commit). Once writing or syncing the log fails, every later sync fails
+ * too, since the records of the failed write may never reach the disk.
+ * @author aaron
+ *
+ */
+public class IndexStore {
+
+	private static final byte SHARE = 1;
+	private static final byte DROP = 2;
+	private static final int SNAPSHOT_MAGIC = 0x49445853; // "IDXS"
+	private static final int SNAPSHOT_VERSION = 1;
+
+	/**
+	 * The number of records in a log after which a snapshot is taken.
+	 */
+	private static final long CHECKPOINT_RECORDS = 100000;
+
+	private Path dir;
+
+	private ITerminalLogger logger;
+
+	/**
+	 * The generation of the log being appended to.
+	 */
+	private long generation;
+
+	private FileChannel log;
+
+	/**
+	 * Records that have been appended but not yet written to the log.
+	 */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	private long appendedLsn;
+
+	private long logRecords;
+
+	private volatile long durableLsn;
+
+	/**
+	 * The failure to write or sync the log, after which nothing more is durable.
+	 */
+	private IOException failure;
+
+	/**
+	 * Held while writing to and syncing the log, which orders the group commits.
+	 */
+	private final Object syncLock = new Object();
+
+	private final AtomicBoolean checkpointing = new AtomicBoolean(false);
+
+	/**
+	 * Open a store in the given directory, creating it if needed. The store must be
+	 * recovered, see {@link recover}, before anything is appended.
+	 * @param dir the directory for the log and snapshot files
+	 * @param logger an object that implements the terminal logger interface
+	 * @throws IOException if the directory cannot be created
+	 */
+	public IndexStore(String dir, ITerminalLogger logger) throws IOException {
+		this.dir=Paths.get(dir);
+		this.logger=logger;
+		Files.createDirectories(this.dir);
+	}
+
+	/**
+	 * Load the newest snapshot and replay the log into the index manager, then start a
+	 * new log generation for appends. The index manager should be empty.
+	 * @param indexMgr the index manager to recover into
+	 * @throws IOException if the files cannot be read
+	 */
+	void recover(IndexMgr indexMgr) throws IOException {
+		long start = System.currentTimeMillis();
+		TreeMap<Long,Path> snapshots = list(".snapshot");
+		TreeMap<Long,Path> logs = list(".log");
+		long fromGeneration = 0;
+		int numSnapshot = 0;
+		if(!snapshots.isEmpty()) {
+			fromGeneration = snapshots.lastKey();
+			numSnapshot = loadSnapshot(snapshots.lastEntry().getValue(), indexMgr);
+		}
+		long numReplayed = 0;
+		for(Path logFile : logs.tailMap(fromGeneration).values()) {
+			numReplayed += replayLog(logFile, indexMgr, logFile.equals(logs.lastEntry().getValue()));
+		}
+		if(!logs.isEmpty()) {
+			generation = Math.max(fromGeneration, logs.lastKey());
+		} else {
+			generation = fromGeneration;
+		}
+		logger.logInfo("Index recovered "+numSnapshot+" snapshot entries and "+numReplayed+
+				" log records in "+(System.currentTimeMillis()-start)+"ms");
+		log = FileChannel.open(logPath(generation), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Append a share to the log. The record is not durable until {@link sync} is called.
+	 * @param element the element shared
+	 * @return the log sequence number of the record
+	 */
+	long logShare(IndexElement element) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(SHARE);
+			writeElement(out, element);
+			return append(bytes.toByteArray());
+		} catch (IOException | JsonSerializationException e) {
+			logger.logError("Index store could not encode a share.");
+			return 0;
+		}
+	}
+
+	/**
+	 * Append a drop to the log. The record is not durable until {@link sync} is called.
+	 * @param element the element dropped
+	 * @return the log sequence number of the record
+	 */
+	long logDrop(IndexElement element) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(DROP);
+			writeString(out, element.ip);
+			out.writeInt(element.port);
+			writeString(out, element.filename);
+			writeString(out, element.fileDescr.getFileMd5());
+			return append(bytes.toByteArray());
+		} catch (IOException e) {
+			logger.logError("Index store could not encode a drop.");
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the log sequence number of the last record appended
+	 */
+	synchronized long lastLsn() {
+		return appendedLsn;
+	}
+
+	/**
+	 * Wait until the record with the given log sequence number, and every record
+	 * before it, is on disk. If another thread is already syncing then this waits for
+	 * it and usually finds that its record was included in that sync.
+	 * @param lsn the log sequence number returned when appending
+	 * @throws IOException if the record could not be written or synced
+	 */
+	void sync(long lsn) throws IOException {
+		if(durableLsn>=lsn) return;
+		synchronized(syncLock) {
+			if(durableLsn>=lsn) return;
+			flush();
+		}
+	}
+
+	/**
+	 * @return true if the log has grown enough that a snapshot should be taken
+	 */
+	boolean needsCheckpoint() {
+		synchronized(this) {
+			if(logRecords<CHECKPOINT_RECORDS) return false;
+		}
+		return !checkpointing.get();
+	}
+
+	/**
+	 * Start a new log generation. The caller must prevent appends while this runs,
+	 * and pass the elements of the index at this point to {@link writeSnapshot}.
+	 * @return false if a checkpoint is already in progress
+	 */
+	boolean rollLog() {
+		if(!checkpointing.compareAndSet(false, true)) return false;
+		synchronized(syncLock) {
+			try {
+				flush();
+				log.close();
+				synchronized(this) {
+					generation++;
+					logRecords=0;
+				}
+				log = FileChannel.open(logPath(generation), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				return true;
+			} catch (IOException e) {
+				logger.logError("Index store could not start a new log.");
+				checkpointing.set(false);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Write a snapshot of the given elements as the start of the current log
+	 * generation, then delete the snapshots and logs it replaces. This is safe to
+	 * run while records are appended.
+	 * @param elements the elements of the index when {@link rollLog} was called
+	 */
+	void writeSnapshot(ArrayList<IndexElement> elements) {
+		long snapshotGeneration;
+		synchronized(this) {
+			snapshotGeneration=generation;
+		}
+		Path tmp = dir.resolve("index-"+snapshotGeneration+".snapshot.tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				DataOutputStream out = new DataOutputStream(
+						new java.io.BufferedOutputStream(Channels.newOutputStream(channel), 1<<16));
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(SNAPSHOT_VERSION);
+				out.writeInt(elements.size());
+				for(IndexElement element : elements) {
+					writeElement(out, element);
+				}
+				out.flush();
+				channel.force(true);
+			}
+			Files.move(tmp, dir.resolve("index-"+snapshotGeneration+".snapshot"),
+					StandardCopyOption.ATOMIC_MOVE);
+			for(Path old : list(".snapshot").headMap(snapshotGeneration).values()) {
+				Files.deleteIfExists(old);
+			}
+			for(Path old : list(".log").headMap(snapshotGeneration).values()) {
+				Files.deleteIfExists(old);
+			}
+			logger.logInfo("Index snapshot written with "+elements.size()+" entries.");
+		} catch (IOException | JsonSerializationException e) {
+			logger.logError("Index store could not write a snapshot.");
+		} finally {
+			checkpointing.set(false);
+		}
+	}
+
+	/**
+	 * Sync and close the log.
+	 */
+	void close() {
+		synchronized(syncLock) {
+			try {
+				flush();
+				log.close();
+			} catch (IOException e) {
+				logger.logWarn("Index store could not close the log.");
+			}
+		}
+	}
+
+	/*
+	 * Appending and flushing the log.
+	 */
+
+	private synchronized long append(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		writeInt(pending, record.length);
+		writeInt(pending, (int) crc.getValue());
+		pending.write(record, 0, record.length);
+		logRecords++;
+		return ++appendedLsn;
+	}
+
+	/**
+	 * Write all pending records and fsync. Must hold the syncLock.
+	 * @throws IOException if this or an earlier write or sync failed
+	 */
+	private void flush() throws IOException {
+		if(failure!=null) {
+			throw new IOException("Index log failed earlier", failure);
+		}
+		try {
+			write();
+		} catch (IOException e) {
+			logger.logError("Index store could not sync the log.");
+			failure=e;
+			throw e;
+		}
+	}
+
+	private void write() throws IOException {
+		byte[] data;
+		long lsn;
+		synchronized(this) {
+			data = pending.toByteArray();
+			lsn = appendedLsn;
+			pending.reset();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while(buffer.hasRemaining()) {
+			log.write(buffer);
+		}
+		log.force(false);
+		durableLsn=lsn;
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int v) {
+		out.write(v>>>24);
+		out.write(v>>>16);
+		out.write(v>>>8);
+		out.write(v);
+	}
+
+	/*
+	 * Recovery.
+	 */
+
+	private int loadSnapshot(Path snapshot, IndexMgr indexMgr) throws IOException {
+		try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+			DataInputStream in;
+			if(channel.size()<=Integer.MAX_VALUE) {
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				in = new DataInputStream(new ByteBufferInputStream(mapped));
+			} else {
+				in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1<<16));
+			}
+			if(in.readInt()!=SNAPSHOT_MAGIC || in.readInt()!=SNAPSHOT_VERSION) {
+				throw new IOException("Not an index snapshot: "+snapshot);
+			}
+			int count = in.readInt();
+			for(int i=0;i<count;i++) {
+				indexMgr.recoverShare(readElement(in));
+			}
+			return count;
+		} catch (JsonSerializationException e) {
+			throw new IOException("Corrupt index snapshot: "+snapshot);
+		}
+	}
+
+	/**
+	 * Replay a log. The last log is truncated after its last complete record.
+	 * @param last true if this is the log that was being appended to
+	 * @throws IOException if the log cannot be read, or is not the last log and has a bad record
+	 */
+	private long replayLog(Path logFile, IndexMgr indexMgr, boolean last) throws IOException {
+		long numRecords = 0;
+		long goodLength = 0;
+		try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1<<16));
+			while(true) {
+				byte[] record;
+				try {
+					int length = in.readInt();
+					int crc = in.readInt();
+					if(length<0 || length>channel.size()) break;
+					record = new byte[length];
+					in.readFully(record);
+					CRC32 check = new CRC32();
+					check.update(record);
+					if((int) check.getValue()!=crc) break;
+				} catch (EOFException e) {
+					break;
+				}
+				try {
+					applyRecord(record, indexMgr);
+				} catch (JsonSerializationException e) {
+					// the record passed its CRC, so it was written like this
+					throw new IOException("Undecodable record in index log "+logFile.getFileName());
+				}
+				goodLength += 8+record.length;
+				numRecords++;
+			}
+			if(goodLength<channel.size() && !last) {
+				throw new IOException("Corrupt record in index log "+logFile.getFileName()+" at offset "+goodLength);
+			}
+			if(goodLength<channel.size()) {
+				logger.logWarn("Index log "+logFile.getFileName()+" has a torn tail, truncating it.");
+				channel.truncate(goodLength);
+			}
+		}
+		return numRecords;
+	}
+
+	private void applyRecord(byte[] record, IndexMgr indexMgr) throws IOException, JsonSerializationException {
+		DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(record));
+		byte type = in.readByte();
+		if(type==SHARE) {
+			indexMgr.recoverShare(readElement(in));
+		} else if(type==DROP) {
+			String ip = readString(in);
+			int port = in.readInt();
+			String filename = readString(in);
+			String fileMd5 = readString(in);
+			indexMgr.recoverDrop(ip, port, filename, fileMd5);
+		} else {
+			throw new IOException("Unknown index log record type "+type);
+		}
+	}
+
+	/*
+	 * Encoding elements.
+	 */
+
+	private static void writeElement(DataOutputStream out, IndexElement element) throws IOException, JsonSerializationException {
+		writeString(out, element.ip);
+		out.writeInt(element.port);
+		writeString(out, element.filename);
+		writeString(out, element.secret);
+		writeString(out, MessageFactory.serialize(element.fileDescr));
+	}
+
+	private static IndexElement readElement(DataInputStream in) throws IOException, JsonSerializationException {
+		String ip = readString(in);
+		int port = in.readInt();
+		String filename = readString(in);
+		String secret = readString(in);
+		Object fileDescr = MessageFactory.deserialize(readString(in));
+		if(!(fileDescr instanceof FileDescr)) {
+			throw new JsonSerializationException("Expecting a FileDescr");
+		}
+		return new IndexElement(ip, port, (FileDescr) fileDescr, filename, secret);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length<0) throw new IOException("Negative string length");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Files.
+	 */
+
+	private Path logPath(long generation) {
+		return dir.resolve("index-"+generation+".log");
+	}
+
+	/**
+	 * @return the files of the store with the given suffix, by generation
+	 */
+	private TreeMap<Long,Path> list(String suffix) throws IOException {
+		TreeMap<Long,Path> files = new TreeMap<Long,Path>();
+		File[] entries = dir.toFile().listFiles();
+		if(entries==null) throw new IOException("Cannot list "+dir);
+		for(File entry : entries) {
+			String name = entry.getName();
+			if(name.startsWith("index-") && name.endsWith(suffix)) {
+				try {
+					files.put(Long.parseLong(name.substring(6, name.length()-suffix.length())), entry.toPath());
+				} catch (NumberFormatException e) {
+					// not one of ours
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Reads a (memory-mapped) byte buffer as an input stream.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer=buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(len==0) return 0;
+			if(!buffer.hasRemaining()) return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.regex.Pattern;
+
+/**
+ * An inverted index from the tokens of a filename to the set of index elements
+ * (the posting list) whose filename contains that token. A token is a maximal run
+ * of letters and digits, lower cased, so "Holiday-Photos/beach_01.JPG" has the
+ * tokens "holiday", "photos", "beach", "01" and "jpg".
+ * @author aaron
+ *
+ */
+public class KeywordIndex {
+
+	private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+	/**
+	 * A map from a token to the set of elements whose filename contains that token.
+	 */
+	private HashMap<String,HashSet<IndexElement>> postings;
+
+	/**
+	 * Creates a new, empty, keyword index.
+	 */
+	public KeywordIndex() {
+		postings=new HashMap<>();
+	}
+
+	/**
+	 * Split some text into its distinct, lower cased, tokens.
+	 * @param text the text to tokenize
+	 * @return the tokens in order of first appearance, possibly empty
+	 */
+	public static String[] tokenize(String text) {
+		LinkedHashSet<String> tokens = new LinkedHashSet<String>();
+		for(String token : SEPARATORS.split(text.toLowerCase())) {
+			if(!token.isEmpty()) {
+				tokens.add(token);
+			}
+		}
+		return tokens.toArray(new String[0]);
+	}
+
+	/**
+	 * Split each of the keywords into tokens, and return all of the distinct tokens.
+	 * @param keywords the keywords to tokenize
+	 * @return the tokens of all keywords, possibly empty
+	 */
+	public static String[] tokenize(String[] keywords) {
+		LinkedHashSet<String> tokens = new LinkedHashSet<String>();
+		for(String keyword : keywords) {
+			tokens.addAll(Arrays.asList(tokenize(keyword)));
+		}
+		return tokens.toArray(new String[0]);
+	}
+
+	/**
+	 * Add the element to the posting list of each token in its filename.
+	 * @param element the element to add
+	 */
+	public void add(IndexElement element) {
+		for(String token : tokenize(element.filename)) {
+			HashSet<IndexElement> posting = postings.get(token);
+			if(posting==null) {
+				posting = new HashSet<IndexElement>();
+				postings.put(token, posting);
+			}
+			posting.add(element);
+		}
+	}
+
+	/**
+	 * Remove the element from the posting list of each token in its filename.
+	 * Posting lists that become empty are removed.
+	 * @param element the element to remove
+	 */
+	public void remove(IndexElement element) {
+		for(String token : tokenize(element.filename)) {
+			HashSet<IndexElement> posting = postings.get(token);
+			if(posting!=null) {
+				posting.remove(element);
+				if(posting.isEmpty()) {
+					postings.remove(token);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the elements whose filename contains all of the given tokens, by
+	 * intersecting the posting lists of the tokens, smallest list first. At most
+	 * one element is returned per file MD5 hash, and the search stops as soon as
+	 * maxhits elements have been found.
+	 * @param tokens the tokens to search for, as returned by {@link tokenize}, must not be empty
+	 * @param maxhits the maximum number of hits to return
+	 * @return an array of elements, possibly empty
+	 */
+	public ArrayList<IndexElement> search(String[] tokens, int maxhits) {
+		ArrayList<IndexElement> hitElements = new ArrayList<IndexElement>();
+		ArrayList<HashSet<IndexElement>> lists = postingLists(tokens);
+		if(lists==null) {
+			return hitElements; // no element can contain all the tokens
+		}
+		HashSet<String> md5s = new HashSet<String>();
+		int hits=0;
+		for(IndexElement element : lists.get(0)) {
+			if(md5s.contains(element.fileDescr.getFileMd5())) {
+				continue;
+			}
+			if(inAll(element, lists)) {
+				md5s.add(element.fileDescr.getFileMd5());
+				hitElements.add(element);
+				hits++;
+				if(hits==maxhits) break;
+			}
+		}
+		return hitElements;
+	}
+
+	/**
+	 * Offer every element whose filename contains all of the given tokens to the
+	 * ranked hits, by intersecting the posting lists as for {@link search}.
+	 * @param tokens the tokens to search for, as returned by {@link tokenize}, must not be empty
+	 * @param hits the ranked hits to offer matching elements to
+	 */
+	public void search(String[] tokens, RankedHits hits) {
+		ArrayList<HashSet<IndexElement>> lists = postingLists(tokens);
+		if(lists==null) {
+			return;
+		}
+		for(IndexElement element : lists.get(0)) {
+			if(inAll(element, lists)) {
+				hits.offer(element);
+			}
+		}
+	}
+
+	/**
+	 * @return the posting lists of the tokens, smallest first, or null if a token has none
+	 */
+	private ArrayList<HashSet<IndexElement>> postingLists(String[] tokens) {
+		ArrayList<HashSet<IndexElement>> lists = new ArrayList<HashSet<IndexElement>>(tokens.length);
+		for(String token : tokens) {
+			HashSet<IndexElement> posting = postings.get(token);
+			if(posting==null) {
+				return null;
+			}
+			lists.add(posting);
+		}
+		lists.sort(Comparator.comparingInt(HashSet::size));
+		return lists;
+	}
+
+	/**
+	 * @return true if the element, taken from the first list, is in all of the other lists
+	 */
+	private static boolean inAll(IndexElement element, ArrayList<HashSet<IndexElement>> lists) {
+		for(int l=1;l<lists.size();l++) {
+			if(!lists.get(l).contains(element)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
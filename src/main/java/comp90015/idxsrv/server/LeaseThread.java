@@ -0,0 +1,52 @@
+package comp90015.idxsrv.server;
+
+import java.io.IOException;
+
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * A thread that drops index elements whose lease has expired, once per tick.
+ * @author aaron
+ *
+ */
+public class LeaseThread extends Thread {
+	private IndexMgr indexMgr;
+	private ITerminalLogger logger;
+	private long tickTime;
+	
+	/**
+	 * Create a LeaseThread. The thread must be explicitly started.
+	 * @param indexMgr the index manager, with leases enabled
+	 * @param tickTime the time between checks for expired leases, in milliseconds
+	 * @param logger an object that implements the terminal logger interface
+	 */
+	public LeaseThread(IndexMgr indexMgr,
+			long tickTime,
+			ITerminalLogger logger) {
+		this.indexMgr=indexMgr;
+		this.tickTime=tickTime;
+		this.logger=logger;
+		setDaemon(true);
+	}
+	
+	@Override
+	public void run() {
+		logger.logInfo("Lease thread running");
+		while(!isInterrupted()) {
+			try {
+				Thread.sleep(tickTime);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				int expired = indexMgr.expireLeases();
+				if(expired>0) {
+					logger.logInfo("Lease thread dropped "+expired+" expired shares.");
+				}
+			} catch (IOException e) {
+				logger.logError("Lease thread could not persist expired shares.");
+			}
+		}
+		logger.logInfo("Lease thread completed.");
+	}
+}
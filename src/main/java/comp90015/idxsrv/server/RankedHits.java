@@ -0,0 +1,109 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Selects the best scoring search hits, at most one per file MD5 hash, keeping only
+ * the best maxhits seen so far in a min-heap so that memory is O(maxhits) however many
+ * elements match. An element's score is
+ * <pre>
+ * quality * (1 + log2(1 + sharers))
+ * </pre>
+ * where quality is the fraction of the filename made up by the keywords, so more
+ * specific filenames rank higher, and sharers is the number of live sharers of the
+ * element's file under its filename, so well seeded files rank higher.
+ * <p>
+ * Not thread safe, the caller must hold the index manager's read lock.
+ * @author aaron
+ *
+ */
+public class RankedHits {
+
+	private static class Hit {
+		final IndexElement element;
+		final double score;
+
+		Hit(IndexElement element, double score) {
+			this.element=element;
+			this.score=score;
+		}
+	}
+
+	private static final Comparator<Hit> BY_SCORE = Comparator.comparingDouble((Hit hit) -> hit.score);
+
+	private final int maxhits;
+
+	/**
+	 * The best hits so far, worst first.
+	 */
+	private final PriorityQueue<Hit> heap;
+
+	/**
+	 * The hit in the heap for each file MD5 hash.
+	 */
+	private final HashMap<String,Hit> md5s;
+
+	private final int keywordLength;
+
+	/**
+	 * @param keywords the keywords (or tokens) searched for
+	 * @param maxhits the maximum number of hits to keep, or 0 or less to keep all hits
+	 */
+	public RankedHits(String[] keywords, int maxhits) {
+		this.maxhits=maxhits;
+		int length=0;
+		for(String keyword : keywords) {
+			length+=keyword.length();
+		}
+		keywordLength=length;
+		heap=new PriorityQueue<Hit>(maxhits>0 ? maxhits+1 : 16, BY_SCORE);
+		md5s=new HashMap<String,Hit>();
+	}
+
+	/**
+	 * Offer an element that matches all of the keywords.
+	 * @param element the matching element
+	 */
+	public void offer(IndexElement element) {
+		double score = score(element);
+		if(maxhits>0 && heap.size()==maxhits && score<=heap.peek().score) {
+			return;
+		}
+		String md5 = element.fileDescr.getFileMd5();
+		Hit existing = md5s.get(md5);
+		if(existing!=null) {
+			if(score<=existing.score) {
+				return;
+			}
+			heap.remove(existing);
+		}
+		Hit hit = new Hit(element, score);
+		heap.add(hit);
+		md5s.put(md5, hit);
+		if(maxhits>0 && heap.size()>maxhits) {
+			md5s.remove(heap.poll().element.fileDescr.getFileMd5());
+		}
+	}
+
+	/**
+	 * @return the hits kept, best first
+	 */
+	public ArrayList<IndexElement> hits() {
+		ArrayList<Hit> hits = new ArrayList<Hit>(heap);
+		hits.sort(BY_SCORE.reversed());
+		ArrayList<IndexElement> elements = new ArrayList<IndexElement>(hits.size());
+		for(Hit hit : hits) {
+			elements.add(hit.element);
+		}
+		return elements;
+	}
+
+	private double score(IndexElement element) {
+		double quality = Math.min(1.0, (double) keywordLength/Math.max(1, element.filename.length()));
+		int sharers = element.sharers!=null ? element.sharers.size() : 1;
+		return quality*(1+Math.log(1+sharers)/Math.log(2));
+	}
+}
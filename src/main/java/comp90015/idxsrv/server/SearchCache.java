@@ -0,0 +1,232 @@
+package comp90015.idxsrv.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * A bounded LRU cache of serialized search replies, keyed by the normalized search
+ * terms and maxhits. The {@link IndexMgr} calls {@link invalidate} with the filename of
+ * every element it adds or removes, which removes just the entries whose terms match
+ * that filename.
+ * <p>
+ * In {@link IndexMgr.SEARCHMODE#TOKEN} mode the terms are the sorted, distinct tokens of
+ * the keywords, and each entry is registered under its first token: an element can
+ * only match an entry if the element's filename contains that token, so invalidation
+ * only visits the entries registered under the filename's tokens. Otherwise the terms
+ * are the sorted, distinct keywords, which may match any part of a filename, and
+ * invalidation checks each of these entries.
+ * <p>
+ * A reply computed while the index changed may already be stale, so {@link put}
+ * only accepts a reply if there has been no invalidation since {@link version} was
+ * read before the search.
+ * @author aaron
+ *
+ */
+public class SearchCache {
+
+	private static class CachedReply {
+		final String[] terms;
+		final boolean scanned;
+		final String reply;
+
+		CachedReply(String[] terms, boolean scanned, String reply) {
+			this.terms=terms;
+			this.scanned=scanned;
+			this.reply=reply;
+		}
+	}
+
+	private final int capacity;
+
+	private final boolean tokenMatch;
+
+	private final LinkedHashMap<String,CachedReply> entries;
+
+	/**
+	 * A map from a token to the entries registered under it, by key.
+	 */
+	private final HashMap<String,HashMap<String,CachedReply>> byToken;
+
+	/**
+	 * The entries that must be checked on every invalidation, by key.
+	 */
+	private final HashMap<String,CachedReply> scanned;
+
+	private long version;
+
+	private long hits;
+
+	private long misses;
+
+	private long invalidations;
+
+	/**
+	 * @param capacity the maximum number of replies to cache
+	 * @param searchMode the search mode of the index manager
+	 */
+	public SearchCache(int capacity, IndexMgr.SEARCHMODE searchMode) {
+		this.capacity=capacity;
+		this.tokenMatch=searchMode==IndexMgr.SEARCHMODE.TOKEN;
+		byToken=new HashMap<String,HashMap<String,CachedReply>>();
+		scanned=new HashMap<String,CachedReply>();
+		entries=new LinkedHashMap<String,CachedReply>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,CachedReply> eldest) {
+				if(size()>SearchCache.this.capacity) {
+					unregister(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param keywords the lower cased keywords of a search
+	 * @param maxhits the maximum number of hits of a search
+	 * @return the cache key of the search
+	 */
+	public String key(String[] keywords, int maxhits) {
+		return String.join("\0", terms(keywords))+"\0"+maxhits;
+	}
+
+	/**
+	 * @return the current version, to pass to {@link put}
+	 */
+	public synchronized long version() {
+		return version;
+	}
+
+	/**
+	 * @param key the cache key of the search
+	 * @return the cached serialized reply, or null
+	 */
+	public synchronized String get(String key) {
+		CachedReply entry = entries.get(key);
+		if(entry==null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.reply;
+	}
+
+	/**
+	 * Cache a serialized reply, unless the index has changed since the search began.
+	 * @param key the cache key of the search
+	 * @param keywords the lower cased keywords of the search
+	 * @param reply the serialized reply
+	 * @param version the version read before the search
+	 */
+	public synchronized void put(String key, String[] keywords, String reply, long version) {
+		if(version!=this.version || entries.containsKey(key)) {
+			return;
+		}
+		// keywords without tokens are searched as substrings, so must be scanned as such
+		boolean scan = !tokenMatch || KeywordIndex.tokenize(keywords).length==0;
+		CachedReply entry = new CachedReply(terms(keywords), scan, reply);
+		entries.put(key, entry);
+		if(entries.get(key)==entry) {
+			register(key, entry);
+		}
+	}
+
+	/**
+	 * Remove the entries whose search would match an element with the given filename,
+	 * because the element has been added to or removed from the index.
+	 * @param filename the filename of the element
+	 */
+	public synchronized void invalidate(String filename) {
+		version++;
+		if(entries.isEmpty()) {
+			return;
+		}
+		String lowerFilename = filename.toLowerCase();
+		HashSet<String> stale = new HashSet<String>();
+		for(Map.Entry<String,CachedReply> entry : scanned.entrySet()) {
+			if(matches(entry.getValue(), lowerFilename, null)) {
+				stale.add(entry.getKey());
+			}
+		}
+		if(!byToken.isEmpty()) {
+			HashSet<String> tokens = new HashSet<String>(Arrays.asList(KeywordIndex.tokenize(filename)));
+			for(String token : tokens) {
+				HashMap<String,CachedReply> registered = byToken.get(token);
+				if(registered==null) continue;
+				for(Map.Entry<String,CachedReply> entry : registered.entrySet()) {
+					if(matches(entry.getValue(), lowerFilename, tokens)) {
+						stale.add(entry.getKey());
+					}
+				}
+			}
+		}
+		for(String key : stale) {
+			unregister(key, entries.remove(key));
+		}
+		invalidations+=stale.size();
+	}
+
+	/**
+	 * @return the number of searches answered from the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of searches not answered from the cache
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the number of entries removed because the index changed
+	 */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	private String[] terms(String[] keywords) {
+		String[] terms = tokenMatch ? KeywordIndex.tokenize(keywords) : new String[0];
+		if(terms.length==0) {
+			terms = keywords;
+		}
+		return new TreeSet<String>(Arrays.asList(terms)).toArray(new String[0]);
+	}
+
+	private static boolean matches(CachedReply entry, String lowerFilename, HashSet<String> tokens) {
+		for(String term : entry.terms) {
+			if(entry.scanned ? !lowerFilename.contains(term) : !tokens.contains(term)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void register(String key, CachedReply entry) {
+		if(entry.scanned) {
+			scanned.put(key, entry);
+		} else {
+			byToken.computeIfAbsent(entry.terms[0], t -> new HashMap<String,CachedReply>()).put(key, entry);
+		}
+	}
+
+	private void unregister(String key, CachedReply entry) {
+		if(entry.scanned) {
+			scanned.remove(key);
+		} else {
+			HashMap<String,CachedReply> registered = byToken.get(entry.terms[0]);
+			registered.remove(key);
+			if(registered.isEmpty()) {
+				byToken.remove(entry.terms[0]);
+			}
+		}
+	}
+}
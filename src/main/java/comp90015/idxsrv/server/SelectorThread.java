@@ -0,0 +1,403 @@
+package comp90015.idxsrv.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.JsonSerializationException;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.SessionReply;
+import comp90015.idxsrv.message.SessionRequest;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+/**
+ * A non-blocking alternative to the {@link IOThread}, that accepts connections and
+ * drives the session protocol of the {@link Server} for all of them from a single
+ * thread using a {@link Selector}. Messages are exactly as in the blocking transport,
+ * one JSON object per line, so existing peers are unaffected, including multi-request
+ * sessions started with a {@link SessionRequest}. A connection that has been idle for longer than the socket timeout is closed.
+ * Requests are processed on a pool of workers, since a share may wait for the index to be
+ * synced to disk, and their replies are handed back to the selector to be written. A
+ * connection is not read while its request is being processed, so its replies stay in order.
+ * @author aaron
+ *
+ */
+public class SelectorThread extends Thread {
+
+	/**
+	 * The maximum length of a line, beyond which the connection is closed.
+	 */
+	private static final int MAX_LINE_LENGTH = 16*1024*1024;
+
+	/**
+	 * How long to stop accepting connections for after an accept fails, e.g. because the
+	 * process is out of file descriptors, rather than failing again straight away.
+	 */
+	private static final long ACCEPT_BACKOFF = 100;
+
+	/**
+	 * The state of the session on a connection.
+	 */
+	private enum STATE {
+		AUTHENTICATE,
+		REQUEST,
+		SESSION,
+		DONE
+	}
+
+	/**
+	 * The per connection state, attached to the connection's selection key.
+	 */
+	private class Connection {
+		final SocketChannel channel;
+		final String ip;
+		final int port;
+		STATE state = STATE.AUTHENTICATE;
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+		final ArrayDeque<String> pendingLines = new ArrayDeque<String>(); // received while busy
+		boolean busy; // a request is being processed by a worker
+		long lastActive = System.currentTimeMillis();
+
+		Connection(SocketChannel channel) {
+			this.channel=channel;
+			InetSocketAddress remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+			this.ip=remote.getAddress().getHostAddress();
+			this.port=remote.getPort();
+		}
+	}
+
+	private Server server;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private ITerminalLogger logger;
+	private int timeout;
+	private Executor workers;
+	private ConcurrentLinkedQueue<Runnable> completions = new ConcurrentLinkedQueue<Runnable>();
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(64*1024);
+	private SelectionKey acceptKey;
+
+	/**
+	 * When to start accepting connections again after an accept failed, 0 if accepting.
+	 */
+	private long acceptResume;
+
+	/**
+	 * Create a SelectorThread, which attempts to bind to the provided
+	 * port with a non-blocking server socket channel. The thread must be explicitly started.
+	 * @param port the port for the server socket
+	 * @param server the server whose session protocol is followed
+	 * @param timeout the idle time in milliseconds after which a connection is closed, 0 for never
+	 * @param workers the workers to process requests on
+	 * @param logger an object that implements the terminal logger interface
+	 * @throws IOException
+	 */
+	public SelectorThread(int port,
+			Server server,
+			int timeout,
+			Executor workers,
+			ITerminalLogger logger) throws IOException {
+		this.server=server;
+		this.timeout=timeout;
+		this.workers=workers;
+		this.logger=logger;
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Shutdown the server socket channel and the selector, which closes all connections.
+	 * @throws IOException
+	 */
+	public void shutdown() throws IOException {
+		serverChannel.close();
+		selector.close();
+	}
+
+	@Override
+	public void run() {
+		logger.logInfo("Selector thread running");
+		long lastSweep = System.currentTimeMillis();
+		while(!isInterrupted()) {
+			try {
+				long wait = timeout>0 ? timeout : 0;
+				if(acceptResume>0) {
+					wait = Math.max(1, Math.min(wait>0 ? wait : Long.MAX_VALUE, acceptResume-System.currentTimeMillis()));
+				}
+				selector.select(wait);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(key==acceptKey) {
+						// accept failures are handled apart, so they never close the server socket
+						if(key.isValid() && key.isAcceptable()) {
+							accept();
+						}
+						continue;
+					}
+					try {
+						if(key.isReadable()) {
+							read(key);
+						}
+						if(key.isValid() && key.isWritable()) {
+							write(key);
+						}
+					} catch (IOException e) {
+						logger.logWarn("Something went wrong with the connection.");
+						close(key);
+					} catch (RuntimeException e) {
+						logger.logError("Selector thread failed on a connection: "+e);
+						close(key);
+					}
+				}
+				Runnable completion;
+				while((completion=completions.poll())!=null) {
+					completion.run();
+				}
+				long now = System.currentTimeMillis();
+				if(acceptResume>0 && now>=acceptResume && acceptKey.isValid()) {
+					acceptResume=0;
+					acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+				}
+				if(timeout>0 && now-lastSweep>=timeout) {
+					closeIdle(now);
+					lastSweep=now;
+				}
+			} catch (IOException e) {
+				logger.logError("Selector thread failed to select.");
+				break;
+			} catch (ClosedSelectorException e) {
+				// the selector was closed by a shutdown
+				break;
+			}
+		}
+		try {
+			shutdown();
+		} catch (IOException e) {
+			logger.logWarn("Selector thread could not close the server socket.");
+		}
+		logger.logInfo("Selector thread completed.");
+	}
+
+	/**
+	 * Accept a connection. If the accept fails, the server socket stays open, and
+	 * connections are not accepted again for {@link #ACCEPT_BACKOFF} milliseconds.
+	 */
+	private void accept() {
+		SocketChannel channel;
+		try {
+			channel = acceptChannel();
+		} catch (IOException e) {
+			logger.logWarn("Selector thread could not accept a connection: "+e.getMessage());
+			acceptKey.interestOps(0);
+			acceptResume=System.currentTimeMillis()+ACCEPT_BACKOFF;
+			return;
+		}
+		if(channel==null) return;
+		try {
+			channel.configureBlocking(false);
+			Connection connection = new Connection(channel);
+			logger.logInfo("Server processing request on connection "+connection.ip);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+			send(key,server.welcomeMsg());
+		} catch (IOException | RuntimeException e) {
+			logger.logWarn("Selector thread could not set up a connection: "+e);
+			try {
+				channel.close();
+			} catch (IOException e1) {
+				logger.logWarn("Selector thread could not close a connection.");
+			}
+		}
+	}
+
+	/**
+	 * Accept a connection from the server socket channel; a seam for tests.
+	 * @return the connection, or null if there is none to accept
+	 */
+	SocketChannel acceptChannel() throws IOException {
+		return serverChannel.accept();
+	}
+
+	/**
+	 * Read whatever bytes are available and process each complete line.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		readBuffer.clear();
+		int n = connection.channel.read(readBuffer);
+		if(n<0) {
+			close(key);
+			return;
+		}
+		connection.lastActive = System.currentTimeMillis();
+		readBuffer.flip();
+		while(readBuffer.hasRemaining() && key.isValid()) {
+			byte b = readBuffer.get();
+			if(b=='\n') {
+				byte[] bytes = connection.line.toByteArray();
+				connection.line.reset();
+				int length = bytes.length;
+				if(length>0 && bytes[length-1]=='\r') length--;
+				String jsonStr = new String(bytes,0,length,StandardCharsets.UTF_8);
+				if(connection.busy) {
+					connection.pendingLines.add(jsonStr);
+				} else {
+					receive(key,jsonStr);
+				}
+			} else if(connection.line.size()<MAX_LINE_LENGTH) {
+				connection.line.write(b);
+			} else {
+				logger.logWarn("Message too long on connection "+connection.ip);
+				connection.line.reset();
+				connection.pendingLines.clear();
+				connection.state=STATE.DONE;
+				send(key,new ErrorMsg("Message too long"));
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Advance the session state machine with a received line.
+	 */
+	private void receive(SelectionKey key, String jsonStr) {
+		Connection connection = (Connection) key.attachment();
+		if(connection.state==STATE.DONE) {
+			return; // the session is over, ignore anything else
+		}
+		Message msg;
+		try {
+			msg = (Message) MessageFactory.deserialize(jsonStr);
+			logger.logDebug("received: "+msg.toString());
+		} catch (JsonSerializationException | ClassCastException e) {
+			connection.state=STATE.DONE;
+			send(key,new ErrorMsg("Invalid message"));
+			return;
+		}
+		if(connection.state==STATE.AUTHENTICATE) {
+			Message reply = server.authenticate(msg);
+			connection.state = server.isAuthenticated(reply) ? STATE.REQUEST : STATE.DONE;
+			send(key,reply);
+		} else if(connection.state==STATE.REQUEST && server.isSessionRequest(msg)) {
+			connection.state=STATE.SESSION;
+			send(key,new SessionReply(true));
+		} else if(connection.state==STATE.SESSION && server.isGoodbye(msg)) {
+			connection.state=STATE.DONE;
+			if(connection.writeQueue.isEmpty()) {
+				close(key);
+			}
+		} else {
+			if(connection.state==STATE.REQUEST) {
+				connection.state=STATE.DONE;
+			}
+			// stop reading until the reply is back, so that requests are processed in order
+			connection.busy=true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			workers.execute(() -> {
+				Message reply;
+				boolean failed = false;
+				try {
+					reply = server.processRequestMsg(msg,connection.ip,connection.port);
+				} catch (RuntimeException e) {
+					logger.logWarn("Server failed to process request: "+e);
+					reply = new ErrorMsg("Invalid request");
+					failed = true;
+				}
+				Message result = reply;
+				boolean close = failed;
+				completions.add(() -> complete(key,result,close));
+				selector.wakeup();
+			});
+		}
+	}
+
+	/**
+	 * Send the reply to a request processed by a worker, and continue with any lines
+	 * received in the meantime.
+	 * @param close true to close the connection once the reply is written
+	 */
+	private void complete(SelectionKey key, Message reply, boolean close) {
+		if(!key.isValid()) {
+			return; // the connection was closed in the meantime
+		}
+		Connection connection = (Connection) key.attachment();
+		connection.busy=false;
+		connection.lastActive=System.currentTimeMillis();
+		if(close) {
+			connection.state=STATE.DONE;
+			connection.pendingLines.clear();
+		}
+		send(key,reply);
+		while(!connection.busy && !connection.pendingLines.isEmpty() && key.isValid()) {
+			receive(key,connection.pendingLines.poll());
+		}
+		if(!connection.busy && key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	private void send(SelectionKey key, Message msg) {
+		Connection connection = (Connection) key.attachment();
+		String jsonStr = msg.toString();
+		logger.logDebug("sending: "+jsonStr);
+		connection.writeQueue.add(ByteBuffer.wrap((jsonStr+"\n").getBytes(StandardCharsets.UTF_8)));
+		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Write as much of the queued output as possible, closing the connection
+	 * once the session is over and everything has been written.
+	 */
+	private void write(SelectionKey key) throws IOException {
+		Connection connection = (Connection) key.attachment();
+		while(!connection.writeQueue.isEmpty()) {
+			ByteBuffer buffer = connection.writeQueue.peek();
+			connection.channel.write(buffer);
+			if(buffer.hasRemaining()) {
+				return; // the socket buffer is full, wait to be writable again
+			}
+			connection.writeQueue.remove();
+		}
+		connection.lastActive = System.currentTimeMillis();
+		if(connection.state==STATE.DONE && !connection.busy) {
+			close(key);
+		} else {
+			key.interestOps(connection.busy ? 0 : SelectionKey.OP_READ);
+		}
+	}
+
+	private void closeIdle(long now) {
+		for(SelectionKey key : selector.keys()) {
+			Connection connection = (Connection) key.attachment();
+			if(connection!=null && !connection.busy && now-connection.lastActive>timeout) {
+				close(key);
+			}
+		}
+	}
+
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			logger.logWarn("Selector thread could not close a connection.");
+		}
+	}
+}
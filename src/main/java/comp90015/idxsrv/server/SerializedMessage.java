@@ -0,0 +1,23 @@
+package comp90015.idxsrv.server;
+
+import comp90015.idxsrv.message.Message;
+
+/**
+ * A message that has already been serialized, e.g. a reply from the {@link SearchCache},
+ * which is sent as is.
+ * @author aaron
+ *
+ */
+class SerializedMessage extends Message {
+	
+	private final String json;
+	
+	SerializedMessage(String json) {
+		this.json=json;
+	}
+	
+	@Override
+	public String toString() {
+		return json;
+	}
+}
@@ -10,24 +10,35 @@ import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
-import java.util.HashSet;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
 
 import java.nio.charset.StandardCharsets;
 
 import comp90015.idxsrv.message.AuthenticateReply;
 import comp90015.idxsrv.message.AuthenticateRequest;
+import comp90015.idxsrv.message.BatchDropReply;
+import comp90015.idxsrv.message.BatchDropRequest;
+import comp90015.idxsrv.message.BatchShareReply;
+import comp90015.idxsrv.message.BatchShareRequest;
 import comp90015.idxsrv.message.DropShareReply;
 import comp90015.idxsrv.message.DropShareRequest;
 import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.Goodbye;
 import comp90015.idxsrv.message.JsonSerializationException;
 import comp90015.idxsrv.message.LookupReply;
 import comp90015.idxsrv.message.LookupRequest;
 import comp90015.idxsrv.message.Message;
 import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.RenewReply;
+import comp90015.idxsrv.message.RenewRequest;
 import comp90015.idxsrv.message.SearchReply;
 import comp90015.idxsrv.message.SearchRequest;
+import comp90015.idxsrv.message.SessionReply;
+import comp90015.idxsrv.message.SessionRequest;
 import comp90015.idxsrv.message.ShareReply;
 import comp90015.idxsrv.message.ShareRequest;
 import comp90015.idxsrv.message.WelcomeMsg;
@@ -38,11 +49,27 @@ import comp90015.idxsrv.textgui.ITerminalLogger;
 /**
  * Server protocol implementation for the Index Server, which extends thread
  * and processes an unbounded number of incoming connections until it is interrupted.
+ * Connections are either processed one at a time on the server thread, or handed
+ * to a fixed size pool of worker threads so that a slow peer does not stall others.
  * @author aaron
  *
  */
 public class Server extends Thread {
 	
+	/**
+	 * How connections are accepted and read.
+	 * <ul>
+	 * <li>{@link TRANSPORT#BLOCKING} uses an {@link IOThread} and blocking sockets, one
+	 * connection at a time per thread.</li>
+	 * <li>{@link TRANSPORT#NIO} uses a {@link SelectorThread} that drives the session
+	 * protocol of all connections from a single thread.</li>
+	 * </ul>
+	 */
+	public enum TRANSPORT {
+		BLOCKING,
+		NIO
+	}
+	
 	/*
 	 * Some private variables.
 	 */
@@ -51,7 +78,7 @@ public class Server extends Thread {
 	
 	private LinkedBlockingDeque<Socket> incomingConnections;
 	
-	private IOThread ioThread;
+	private Thread ioThread;
 	
 	private String welcome;
 	
@@ -59,15 +86,37 @@ public class Server extends Thread {
 	
 	private ITerminalLogger logger;
 	
+	/**
+	 * The pool of worker threads, or null if requests are processed on the server thread.
+	 */
+	private ExecutorService workers;
+	
+	/**
+	 * The cache of search replies, or null if they are not cached.
+	 */
+	private SearchCache searchCache;
+	
+	/**
+	 * The thread dropping shares whose lease has expired, or null if shares do not expire.
+	 */
+	private LeaseThread leaseThread;
+	
 	/**
 	 * The Server thread must be explicitly started after creating an instance. The
-	 * Server starts an independent IOThread to accept connections.
+	 * Server starts an independent IOThread, or SelectorThread, to accept connections.
 	 * @param port
 	 * @param address
 	 * @param welcome
 	 * @param dir
 	 * @param secret
 	 * @param socketTimeout
+	 * @param searchMode
+	 * @param rankedSearch true to return search results best first, see {@link RankedHits}
+	 * @param searchCacheSize the number of search replies to cache, or 0 to not cache them
+	 * @param numWorkers the number of worker threads, or 0 to process requests on the server thread, or on a single worker for the nio transport
+	 * @param transport how connections are accepted and read
+	 * @param dataDir the directory to persist the index in, or null to keep the index only in memory
+	 * @param leaseTime the time in seconds after which a share expires unless renewed, or 0 for shares to never expire
 	 * @param logger
 	 * @throws IOException
 	 */
@@ -77,13 +126,46 @@ public class Server extends Thread {
 			String dir,
 			String secret,
 			int socketTimeout,
+			IndexMgr.SEARCHMODE searchMode,
+			boolean rankedSearch,
+			int searchCacheSize,
+			int numWorkers,
+			TRANSPORT transport,
+			String dataDir,
+			int leaseTime,
 			ITerminalLogger logger) throws IOException {
 		this.welcome=welcome;
 		this.secret=secret;
 		this.logger=logger;
-		indexMgr = new IndexMgr();
+		if(dataDir!=null) {
+			indexMgr = new IndexMgr(searchMode,new IndexStore(dataDir,logger));
+		} else {
+			indexMgr = new IndexMgr(searchMode);
+		}
+		indexMgr.setRanked(rankedSearch);
+		if(searchCacheSize>0) {
+			searchCache = new SearchCache(searchCacheSize,searchMode);
+			indexMgr.setSearchCache(searchCache);
+		}
+		if(leaseTime>0) {
+			// expire leases to within a sixtieth of the lease time, but at most once a second
+			long tickTime = Math.max(1000, leaseTime*1000L/60);
+			indexMgr.enableLeases(leaseTime*1000L, tickTime);
+			leaseThread = new LeaseThread(indexMgr,tickTime,logger);
+			leaseThread.start();
+		}
+		if(numWorkers>0) {
+			workers = Executors.newFixedThreadPool(numWorkers);
+		} else if(transport==TRANSPORT.NIO) {
+			// keep requests, and the syncs of a persisted index, off the selector thread
+			workers = Executors.newSingleThreadExecutor();
+		}
 		incomingConnections=new LinkedBlockingDeque<Socket>();
-		ioThread = new IOThread(port,incomingConnections,socketTimeout,logger);
+		if(transport==TRANSPORT.NIO) {
+			ioThread = new SelectorThread(port,this,socketTimeout,workers,logger);
+		} else {
+			ioThread = new IOThread(port,incomingConnections,socketTimeout,logger);
+		}
 		ioThread.start();
 	}
 	
@@ -93,13 +175,23 @@ public class Server extends Thread {
 		while(!isInterrupted()) {
 			try {
 				Socket socket = incomingConnections.take();
-				processRequest(socket);
-				socket.close();
+				if(workers!=null) {
+					workers.execute(() -> serve(socket));
+				} else {
+					serve(socket);
+				}
 			} catch (InterruptedException e) {
 				logger.logWarn("Server interrupted.");
 				break;
-			} catch (IOException e) {
-				logger.logWarn("Server received io exception on socket.");
+			}
+		}
+		if(workers!=null) {
+			logger.logInfo("Server thread waiting for workers to stop...");
+			workers.shutdown();
+			try {
+				workers.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				logger.logWarn("Interrupted while waiting for workers.");
 			}
 		}
 		logger.logInfo("Server thread waiting for IO thread to stop...");
@@ -109,14 +201,37 @@ public class Server extends Thread {
 		} catch (InterruptedException e) {
 			logger.logWarn("Interrupted while joining with IO thread.");
 		}
+		if(leaseThread!=null) {
+			leaseThread.interrupt();
+		}
+		indexMgr.close();
+		if(searchCache!=null) {
+			logger.logInfo("Search cache hits ["+searchCache.getHits()+"] misses ["+searchCache.getMisses()+
+					"] invalidations ["+searchCache.getInvalidations()+"]");
+		}
 		logger.logInfo("Server thread completed.");
 	}
 	
 	
+	/**
+	 * Process the request on the socket and then close the socket.
+	 * @param socket
+	 */
+	private void serve(Socket socket) {
+		try {
+			processRequest(socket);
+			socket.close();
+		} catch (IOException e) {
+			logger.logWarn("Server received io exception on socket.");
+		}
+	}
+	
 	/**
 	 * This method is essentially the "Session Layer" logic, where the session is
 	 * short since it consists of exactly one request on the socket, then the socket
-	 * is closed.
+	 * is closed. A {@link SessionRequest} is refused, because an idle session would
+	 * hold the thread serving it until the socket times out, stalling every other
+	 * connection waiting for that thread; sessions are served by the {@link SelectorThread}.
 	 * @param socket
 	 * @throws IOException
 	 */
@@ -134,7 +249,7 @@ public class Server extends Thread {
 		 */
 		
 		// write the welcome
-		writeMsg(bufferedWriter,new WelcomeMsg(welcome));
+		writeMsg(bufferedWriter,welcomeMsg());
 		
 		// get a message
 		Message msg;
@@ -146,22 +261,15 @@ public class Server extends Thread {
 		}
 		
 		// check it is an authenticate request
-		if(msg.getClass().getName()==AuthenticateRequest.class.getName()) {
-			AuthenticateRequest ar = (AuthenticateRequest) msg;
-			if(!ar.secret.equals(this.secret)) {
-				writeMsg(bufferedWriter,new AuthenticateReply(false));
-				return;
-			} else {
-				writeMsg(bufferedWriter,new AuthenticateReply(true));
-			}
-		} else {
-			writeMsg(bufferedWriter,new ErrorMsg("Expecting AuthenticateRequest"));
+		Message reply = authenticate(msg);
+		writeMsg(bufferedWriter,reply);
+		if(!isAuthenticated(reply)) {
 			return;
 		}
 		
 		/*
 		 * Now get the request and process it. This is a single-request-per-connection
-		 * protocol.
+		 * protocol, unless the peer asks for a session.
 		 */
 		
 		// get the request message
@@ -172,18 +280,18 @@ public class Server extends Thread {
 			return;
 		}
 		
-		// process the request message
-		String msgname = msg.getClass().getName();
-		if(msgname==ShareRequest.class.getName()) {
-			processShareCmd(bufferedWriter,(ShareRequest) msg,ip,port);
-		} else if(msgname==DropShareRequest.class.getName()) {
-			processDropCmd(bufferedWriter,(DropShareRequest) msg,ip,port);
-		} else if(msgname==SearchRequest.class.getName()) {
-			processSearchCmd(bufferedWriter,(SearchRequest) msg,ip,port);
-		} else if(msgname==LookupRequest.class.getName()) {
-			processLookupCmd(bufferedWriter,(LookupRequest) msg,ip,port);
+		// process the request message, the peer falls back to a connection per request if it asked for a session
+		if(isSessionRequest(msg)) {
+			writeMsg(bufferedWriter,new SessionReply(false));
 		} else {
-			writeMsg(bufferedWriter,new ErrorMsg("Expecting a request message"));
+			Message requestReply;
+			try {
+				requestReply = processRequestMsg(msg,ip,port);
+			} catch (RuntimeException e) {
+				logger.logWarn("Server failed to process request: "+e);
+				requestReply = new ErrorMsg("Invalid request");
+			}
+			writeMsg(bufferedWriter,requestReply);
 		}
 		
 		// close the streams
@@ -191,45 +299,178 @@ public class Server extends Thread {
 		bufferedWriter.close();
 	}
 	
+	/*
+	 * The steps of the session protocol, independent of how messages are
+	 * transported. These are also driven by the non-blocking {@link SelectorThread}.
+	 */
+	
+	/**
+	 * @return the welcome message that starts every session
+	 */
+	WelcomeMsg welcomeMsg() {
+		return new WelcomeMsg(welcome);
+	}
+	
+	/**
+	 * Check the first message of a session, which must be an authenticate request.
+	 * @param msg the message received after the welcome
+	 * @return the reply to send, see {@link isAuthenticated}
+	 */
+	Message authenticate(Message msg) {
+		if(msg.getClass().getName()==AuthenticateRequest.class.getName()) {
+			AuthenticateRequest ar = (AuthenticateRequest) msg;
+			return new AuthenticateReply(ar.secret.equals(this.secret));
+		} else {
+			return new ErrorMsg("Expecting AuthenticateRequest");
+		}
+	}
+	
+	/**
+	 * @param reply the reply returned by {@link authenticate}
+	 * @return true if the session may continue with a request, false if it must be closed
+	 */
+	boolean isAuthenticated(Message reply) {
+		return reply.getClass().getName()==AuthenticateReply.class.getName() &&
+				((AuthenticateReply) reply).success;
+	}
+	
+	/**
+	 * @param msg the message received after authenticating
+	 * @return true if the message asks for a multi-request session
+	 */
+	boolean isSessionRequest(Message msg) {
+		return msg.getClass().getName()==SessionRequest.class.getName();
+	}
+	
+	/**
+	 * @param msg a message received during a session
+	 * @return true if the message ends the session
+	 */
+	boolean isGoodbye(Message msg) {
+		return msg.getClass().getName()==Goodbye.class.getName();
+	}
+	
+	/**
+	 * Process a request message.
+	 * @param msg the request message
+	 * @param ip the ip address of the requesting peer
+	 * @param port the port of the requesting peer's connection
+	 * @return the reply to send
+	 */
+	Message processRequestMsg(Message msg,String ip,int port) {
+		String msgname = msg.getClass().getName();
+		try {
+			if(msgname==ShareRequest.class.getName()) {
+				return processShareCmd((ShareRequest) msg,ip,port);
+			} else if(msgname==DropShareRequest.class.getName()) {
+				return processDropCmd((DropShareRequest) msg,ip,port);
+			} else if(msgname==SearchRequest.class.getName()) {
+				return processSearchCmd((SearchRequest) msg,ip,port);
+			} else if(msgname==LookupRequest.class.getName()) {
+				return processLookupCmd((LookupRequest) msg,ip,port);
+			} else if(msgname==BatchShareRequest.class.getName()) {
+				return processBatchShareCmd((BatchShareRequest) msg,ip,port);
+			} else if(msgname==BatchDropRequest.class.getName()) {
+				return processBatchDropCmd((BatchDropRequest) msg,ip,port);
+			} else if(msgname==RenewRequest.class.getName()) {
+				return processRenewCmd((RenewRequest) msg,ip,port);
+			} else {
+				return new ErrorMsg("Expecting a request message");
+			}
+		} catch (IOException e) {
+			// the change is in the index, but may not survive a restart
+			logger.logError("Server could not persist the index.");
+			return new ErrorMsg("Index could not be saved");
+		}
+	}
+	
 	/*
 	 * Methods to process each of the possible requests.
 	 */
 	
-	private void processShareCmd(BufferedWriter bufferedWriter,ShareRequest msg,String ip, int port) throws IOException {
+	private Message processShareCmd(ShareRequest msg,String ip, int port) throws IOException {
 		if(indexMgr.share(ip, msg.port, msg.fileDescr, msg.filename, msg.sharingSecret)==RETCODE.FAILEDSECRET) {
-			writeMsg(bufferedWriter,new ErrorMsg("Failed sharing secret"));
+			return new ErrorMsg("Failed sharing secret");
 		} else {
-			Integer numSharers = indexMgr.lookup(msg.filename,msg.fileDescr.getFileMd5()).size();
-			writeMsg(bufferedWriter,new ShareReply(numSharers));
+			Integer numSharers = indexMgr.numSharers(msg.filename,msg.fileDescr.getFileMd5());
+			return new ShareReply(numSharers);
 		}			
 	}
 	
-	private void processDropCmd(BufferedWriter bufferedWriter,DropShareRequest msg,String ip, int port) throws IOException {
+	private Message processDropCmd(DropShareRequest msg,String ip, int port) throws IOException {
 		RETCODE retcode = indexMgr.drop(ip, msg.port, msg.filename, msg.fileMd5, msg.sharingSecret);
 		if(retcode==RETCODE.FAILEDSECRET) {
-			writeMsg(bufferedWriter,new ErrorMsg("Failed secret"));
+			return new ErrorMsg("Failed secret");
 		} else if(retcode==RETCODE.INVALID) {
-			writeMsg(bufferedWriter,new ErrorMsg("Not found"));
+			return new ErrorMsg("Not found");
 		} else {
-			writeMsg(bufferedWriter,new DropShareReply(true));
+			return new DropShareReply(true);
 		}			
 	}
 	
-	private void processSearchCmd(BufferedWriter bufferedWriter,SearchRequest msg,String ip,int port) throws IOException {
+	private Message processSearchCmd(SearchRequest msg,String ip,int port) {
 		for(int i=0;i<msg.keywords.length;i++) {
 			msg.keywords[i]=msg.keywords[i].toLowerCase();
 		}
+		String key=null;
+		long version=0;
+		if(searchCache!=null) {
+			key = searchCache.key(msg.keywords, msg.maxhits);
+			String cached = searchCache.get(key);
+			if(cached!=null) {
+				return new SerializedMessage(cached);
+			}
+			version = searchCache.version();
+		}
 		ArrayList<IndexElement> hits = indexMgr.search(msg.keywords, msg.maxhits);
-		Integer[] seedCounts = new Integer[hits.size()];
-		for(int i=0;i<hits.size();i++) {
-			seedCounts[i]=indexMgr.lookup(hits.get(i).filename,hits.get(i).fileDescr.getFileMd5()).size();
+		Integer[] seedCounts = indexMgr.numSharers(hits);
+		SearchReply reply = new SearchReply(hits,seedCounts);
+		if(searchCache!=null) {
+			String json = reply.toString();
+			searchCache.put(key, msg.keywords, json, version);
+			return new SerializedMessage(json);
 		}
-		writeMsg(bufferedWriter,new SearchReply(hits,seedCounts));
+		return reply;
+	}
+	
+	private Message processLookupCmd(LookupRequest msg,String ip,int port) {
+		return new LookupReply(indexMgr.lookup(msg.filename,msg.fileMd5));
 	}
 	
-	private void processLookupCmd(BufferedWriter bufferedWriter,LookupRequest msg,String ip,int port) throws IOException {
-		HashSet<IndexElement> hits = indexMgr.lookup(msg.filename,msg.fileMd5);
-		writeMsg(bufferedWriter,new LookupReply(new ArrayList<IndexElement>(hits)));
+	private Message processBatchShareCmd(BatchShareRequest msg,String ip,int port) throws IOException {
+		if(msg.fileDescrs.length!=msg.filenames.length || msg.filenames.length!=msg.sharingSecrets.length) {
+			return new ErrorMsg("Batch share arrays must be of equal length");
+		}
+		RETCODE[] retcodes = indexMgr.share(ip, msg.port, msg.fileDescrs, msg.filenames, msg.sharingSecrets);
+		Integer[] numSharers = new Integer[retcodes.length];
+		for(int i=0;i<retcodes.length;i++) {
+			if(retcodes[i]==RETCODE.FAILEDSECRET) {
+				numSharers[i]=-1;
+			} else {
+				numSharers[i]=indexMgr.numSharers(msg.filenames[i],msg.fileDescrs[i].getFileMd5());
+			}
+		}
+		return new BatchShareReply(numSharers);
+	}
+	
+	private Message processBatchDropCmd(BatchDropRequest msg,String ip,int port) throws IOException {
+		if(msg.filenames.length!=msg.fileMd5s.length || msg.filenames.length!=msg.sharingSecrets.length) {
+			return new ErrorMsg("Batch drop arrays must be of equal length");
+		}
+		RETCODE[] retcodes = indexMgr.drop(ip, msg.port, msg.filenames, msg.fileMd5s, msg.sharingSecrets);
+		Boolean[] success = new Boolean[retcodes.length];
+		for(int i=0;i<retcodes.length;i++) {
+			success[i]=retcodes[i]==RETCODE.SUCCESS;
+		}
+		return new BatchDropReply(success);
+	}
+	
+	private Message processRenewCmd(RenewRequest msg,String ip,int port) {
+		if(msg.filenames.length!=msg.fileMd5s.length || msg.filenames.length!=msg.sharingSecrets.length) {
+			return new ErrorMsg("Renew arrays must be of equal length");
+		}
+		Boolean[] renewed = indexMgr.renew(ip, msg.port, msg.filenames, msg.fileMd5s, msg.sharingSecrets);
+		return new RenewReply(renewed,(int) (indexMgr.getLeaseTime()/1000));
 	}
 	
 	/*
@@ -0,0 +1,123 @@
+package comp90015.idxsrv.server;
+
+import java.util.ArrayList;
+
+/**
+ * A hierarchical timing wheel, that holds items until their deadline. Adding an item
+ * and advancing by one tick take constant time however many items are held, and
+ * advancing only visits the items that are due or that cascade down a level.
+ * <p>
+ * Level 0 has a slot per tick, level 1 a slot per {@link SLOTS} ticks, and so on.
+ * An item is held in the lowest level whose span covers its deadline, and moves
+ * down a level each time the level below wraps around. Items beyond the span of
+ * the top level are held in its furthest slot, and re-added when it comes round.
+ * <p>
+ * Not thread safe, the caller must synchronize.
+ * @author aaron
+ *
+ */
+public class TimingWheel<T> {
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+
+	private static class Entry<T> {
+		final T item;
+		final long tick;
+
+		Entry(T item, long tick) {
+			this.item=item;
+			this.tick=tick;
+		}
+	}
+
+	private final ArrayList<ArrayList<Entry<T>>> slots;
+
+	private final long tickMillis;
+
+	/**
+	 * The last tick that has been advanced over.
+	 */
+	private long currentTick;
+
+	private int size;
+
+	/**
+	 * @param tickMillis the resolution of the wheel in milliseconds
+	 * @param nowMillis the current time in milliseconds
+	 */
+	public TimingWheel(long tickMillis, long nowMillis) {
+		this.tickMillis=tickMillis;
+		currentTick=nowMillis/tickMillis;
+		slots=new ArrayList<ArrayList<Entry<T>>>(LEVELS*SLOTS);
+		for(int i=0;i<LEVELS*SLOTS;i++) {
+			slots.add(new ArrayList<Entry<T>>());
+		}
+	}
+
+	/**
+	 * Add an item, to be returned by {@link advance} once its deadline has passed.
+	 * An item whose deadline has already passed is returned by the next advance.
+	 * @param item the item to add
+	 * @param deadlineMillis the deadline in milliseconds
+	 */
+	public void add(T item, long deadlineMillis) {
+		insert(new Entry<T>(item, Math.max(deadlineMillis/tickMillis, currentTick+1)));
+		size++;
+	}
+
+	/**
+	 * Advance the wheel to the given time, returning the items whose deadline
+	 * has passed. The items are removed from the wheel.
+	 * @param nowMillis the current time in milliseconds
+	 * @return the expired items, possibly empty
+	 */
+	public ArrayList<T> advance(long nowMillis) {
+		ArrayList<T> expired = new ArrayList<T>();
+		long nowTick = nowMillis/tickMillis;
+		while(currentTick<nowTick) {
+			currentTick++;
+			// cascade each higher level whose slot comes round as the level below wraps
+			for(int level=1;level<LEVELS && (currentTick & ((1L<<(BITS*level))-1))==0;level++) {
+				ArrayList<Entry<T>> slot = slot(level, currentTick);
+				ArrayList<Entry<T>> cascading = new ArrayList<Entry<T>>(slot);
+				slot.clear();
+				for(Entry<T> entry : cascading) {
+					insert(entry);
+				}
+			}
+			ArrayList<Entry<T>> slot = slot(0, currentTick);
+			for(Entry<T> entry : slot) {
+				expired.add(entry.item);
+			}
+			size-=slot.size();
+			slot.clear();
+		}
+		return expired;
+	}
+
+	/**
+	 * @return the number of items in the wheel
+	 */
+	public int size() {
+		return size;
+	}
+
+	private void insert(Entry<T> entry) {
+		long delta = entry.tick-currentTick;
+		for(int level=0;level<LEVELS;level++) {
+			if(delta<(1L<<(BITS*(level+1)))) {
+				slot(level, entry.tick).add(entry);
+				return;
+			}
+		}
+		// beyond the span of the wheel, hold it in the furthest top level slot
+		slot(LEVELS-1, currentTick-(1L<<(BITS*(LEVELS-1)))).add(entry);
+	}
+
+	private ArrayList<Entry<T>> slot(int level, long tick) {
+		return slots.get(level*SLOTS+(int)((tick>>>(BITS*level)) & MASK));
+	}
+}
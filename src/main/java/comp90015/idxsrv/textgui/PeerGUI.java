@@ -554,7 +554,7 @@ public class PeerGUI implements ISharerGUI {
 			sharingTableModel.addRow(
 					relativePathname,
 					formatNumber((long)shareRecord.numSharers,""),
-					shareRecord.status,createBlocks(shareRecord.fileMgr.getBlockAvailability(),availabilityResolution));
+					shareRecord.status,createBlocks(shareRecord.getBlockAvailability(),availabilityResolution));
 			sharingTable.updateColumnMax();
 			sharingTable.updateTableColumnPreferredSizes(ts.getColumns());
 			sharingTable.setEnabled(true);
@@ -569,7 +569,7 @@ public class PeerGUI implements ISharerGUI {
 				if(tm.getCell(0, i).equals(relativePathname)){
 					tm.setCell(1, i, formatNumber((long)shareRecord.numSharers,""));
 					tm.setCell(2, i, shareRecord.status);
-					tm.setCell(3, i, createBlocks(shareRecord.fileMgr.getBlockAvailability(),availabilityResolution));
+					tm.setCell(3, i, createBlocks(shareRecord.getBlockAvailability(),availabilityResolution));
 					shareRecords.put(relativePathname,shareRecord);
 					sharingTable.recomputeColumnMax();
 					sharingTable.updateTableColumnPreferredSizes(ts.getColumns());
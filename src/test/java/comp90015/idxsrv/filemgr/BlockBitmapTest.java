@@ -0,0 +1,96 @@
+package comp90015.idxsrv.filemgr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class BlockBitmapTest {
+
+	@Test
+	public void setAndClearAreCounted() {
+		BlockBitmap bitmap = new BlockBitmap(130);
+		assertEquals(130, bitmap.size());
+		assertEquals(130, bitmap.countMissing());
+		assertTrue(bitmap.set(0));
+		assertTrue(bitmap.set(64));
+		assertTrue(bitmap.set(129));
+		assertFalse("already set", bitmap.set(64));
+		assertEquals(3, bitmap.count());
+		assertTrue(bitmap.get(129));
+		assertFalse(bitmap.get(128));
+		assertFalse("out of range", bitmap.get(130));
+		assertFalse(bitmap.get(-1));
+		assertTrue(bitmap.clear(64));
+		assertFalse("already clear", bitmap.clear(64));
+		assertEquals(2, bitmap.count());
+		assertEquals(128, bitmap.countMissing());
+	}
+
+	@Test(expected=InvalidBlockIndexException.class)
+	public void settingOutOfRangeFails() {
+		new BlockBitmap(64).set(64);
+	}
+
+	@Test
+	public void nextMissingCrossesWords() {
+		BlockBitmap bitmap = new BlockBitmap(200);
+		for(int b=0;b<150;b++) bitmap.set(b);
+		assertEquals(150, bitmap.nextMissing(0));
+		assertEquals(150, bitmap.nextMissing(-5));
+		assertEquals(199, bitmap.nextMissing(199));
+		assertEquals(-1, bitmap.nextMissing(200));
+		for(int b=150;b<200;b++) bitmap.set(b);
+		assertEquals(-1, bitmap.nextMissing(0));
+
+		// the bits of the last word beyond the number of blocks are never missing blocks
+		BlockBitmap partial = new BlockBitmap(70);
+		for(int b=0;b<70;b++) partial.set(b);
+		assertEquals(-1, partial.nextMissing(64));
+	}
+
+	@Test
+	public void snapshotsRoundTrip() {
+		BlockBitmap bitmap = new BlockBitmap(100);
+		bitmap.set(3);
+		bitmap.set(99);
+		long[] words = bitmap.snapshot();
+		assertArrayEquals(new long[] {1L<<3, 1L<<(99-64)}, words);
+		BlockBitmap copy = new BlockBitmap(100, words);
+		assertEquals(2, copy.count());
+		assertTrue(copy.get(3));
+		assertTrue(copy.get(99));
+
+		// bits beyond the number of blocks, and words beyond the bitmap, are ignored
+		BlockBitmap smaller = new BlockBitmap(68, new long[] {-1L, -1L, -1L});
+		assertEquals(68, smaller.count());
+		assertEquals(0, smaller.countMissing());
+		assertArrayEquals(new long[] {-1L, 0xfL}, smaller.snapshot());
+	}
+
+	@Test
+	public void concurrentSetsAreEachCountedOnce() throws Exception {
+		BlockBitmap bitmap = new BlockBitmap(10000);
+		int[] added = new int[4];
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int t=0;t<added.length;t++) {
+			final int thread = t;
+			threads.add(new Thread(() -> {
+				for(int b=0;b<bitmap.size();b++) {
+					if(bitmap.set(b)) added[thread]++;
+				}
+			}));
+		}
+		for(Thread thread : threads) thread.start();
+		for(Thread thread : threads) thread.join();
+		int total = 0;
+		for(int a : added) total+=a;
+		assertEquals(10000, total);
+		assertEquals(10000, bitmap.count());
+		assertEquals(-1, bitmap.nextMissing(0));
+	}
+}
@@ -0,0 +1,89 @@
+package comp90015.idxsrv.filemgr;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Compares {@link FileMgr.IOMODE#POSITIONAL} with {@link FileMgr.IOMODE#MAPPED}: the time
+ * to write every block of a file of a given size in megabytes (256 by default) in a random
+ * order, as a download does, then to read each block into an array and to copy it to a
+ * stream a number of times (8 by default), as uploads of a popular file do. Blocks are
+ * 256KB, so the reads are not dominated by copying. Run with
+ * <code>java -cp target/classes:target/test-classes:&lt;deps&gt;
+ * comp90015.idxsrv.filemgr.BlockIoBenchmark [megabytes] [reads]</code>.
+ * @author aaron
+ *
+ */
+public class BlockIoBenchmark {
+
+	private static final int BLOCK_LENGTH = 256*1024;
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length>0 ? Integer.parseInt(args[0]) : 256;
+		int reads = args.length>1 ? Integer.parseInt(args[1]) : 8;
+		File dir = Files.createTempDirectory("blockio-bench").toFile();
+		File source = new File(dir, "source.bin");
+		byte[] chunk = new byte[1024*1024];
+		Random random = new Random(1);
+		try(RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+			for(int m=0;m<megabytes;m++) {
+				random.nextBytes(chunk);
+				raf.write(chunk);
+			}
+		}
+		FileDescr fileDescr;
+		try(RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+			fileDescr = new FileDescr(raf, BLOCK_LENGTH);
+		}
+		FileMgr sourceMgr = new FileMgr(source.getPath(), fileDescr);
+		byte[][] blocks = new byte[fileDescr.getNumBlocks()][];
+		for(int b=0;b<blocks.length;b++) {
+			blocks[b] = sourceMgr.readBlock(b);
+		}
+		sourceMgr.closeFile();
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int b=0;b<blocks.length;b++) order.add(b);
+		Collections.shuffle(order, random);
+		OutputStream discard = OutputStream.nullOutputStream();
+
+		for(int round=0;round<2;round++) { // the first round warms up
+			for(FileMgr.IOMODE ioMode : FileMgr.IOMODE.values()) {
+				File target = new File(dir, ioMode.name().toLowerCase()+".bin");
+				FileMgr fileMgr = new FileMgr(target.getPath(), fileDescr);
+				fileMgr.setIoMode(ioMode);
+				long start = System.nanoTime();
+				for(int b : order) {
+					fileMgr.writeBlock(b, blocks[b]);
+				}
+				long written = System.nanoTime();
+				long sum = 0;
+				for(int r=0;r<reads;r++) {
+					for(int b : order) {
+						sum += fileMgr.readBlock(b).length;
+					}
+				}
+				long read = System.nanoTime();
+				for(int r=0;r<reads;r++) {
+					for(int b : order) {
+						fileMgr.readBlock(b, discard);
+					}
+				}
+				long copied = System.nanoTime();
+				fileMgr.closeFile();
+				if(round>0) {
+					System.out.printf("%-10s %d MB written in %5d ms, read %d times in %5d ms (%d MB), copied in %5d ms%n",
+							ioMode.name().toLowerCase(), megabytes, (written-start)/1000000, reads,
+							(read-written)/1000000, sum/(1024*1024), (copied-read)/1000000);
+				}
+				target.delete();
+			}
+		}
+		source.delete();
+		dir.delete();
+	}
+}
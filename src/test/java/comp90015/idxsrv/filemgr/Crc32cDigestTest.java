@@ -0,0 +1,41 @@
+package comp90015.idxsrv.filemgr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Crc32cDigestTest {
+
+	@Test
+	public void checkValueOfTheStandardInput() throws Exception {
+		MessageDigest digest = FileDescr.HASHALGORITHM.CRC32C.newDigest();
+		assertEquals(4, digest.getDigestLength());
+		byte[] value = digest.digest("123456789".getBytes(StandardCharsets.US_ASCII));
+		assertEquals("E3069283", FileDescr.bytesToHex(value));
+		// and the digest starts again afterwards
+		assertArrayEquals(value, digest.digest("123456789".getBytes(StandardCharsets.US_ASCII)));
+		assertEquals("00000000", FileDescr.bytesToHex(digest.digest()));
+	}
+
+	@Test
+	public void chunkedUpdatesMatchASingleOne() throws Exception {
+		byte[] bytes = new byte[3*FileDescr.HASH_CHUNK+17];
+		new Random(1).nextBytes(bytes);
+		MessageDigest digest = FileDescr.HASHALGORITHM.CRC32C.newDigest();
+		byte[] whole = digest.digest(bytes);
+
+		digest.update(bytes[0]);
+		digest.update(bytes, 1, 1000);
+		digest.update(ByteBuffer.wrap(bytes, 1001, FileDescr.HASH_CHUNK));
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length-1001-FileDescr.HASH_CHUNK);
+		direct.put(bytes, 1001+FileDescr.HASH_CHUNK, direct.capacity()).flip();
+		digest.update(direct);
+		assertArrayEquals(whole, digest.digest());
+	}
+}
@@ -0,0 +1,70 @@
+package comp90015.idxsrv.filemgr;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how fast a descriptor of a large file is created, hashing on the calling thread
+ * only and then with blocks hashed in parallel, for a file of a given size in megabytes
+ * (4096 by default) with 16MB blocks. The file is hashed once first, so that every run reads
+ * it from the page cache as far as memory allows. Run with
+ * <code>java -cp target/classes:target/test-classes:&lt;deps&gt;
+ * comp90015.idxsrv.filemgr.FileDescrBenchmark [megabytes] [parallelism...]</code>.
+ * @author aaron
+ *
+ */
+public class FileDescrBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length>0 ? Integer.parseInt(args[0]) : 4096;
+		int[] parallelisms;
+		if(args.length>1) {
+			parallelisms = new int[args.length-1];
+			for(int a=1;a<args.length;a++) parallelisms[a-1]=Integer.parseInt(args[a]);
+		} else {
+			int processors = Runtime.getRuntime().availableProcessors();
+			parallelisms = new int[] {2, processors, 2*processors};
+		}
+		File file = Files.createTempFile("filedescr-bench", ".bin").toFile();
+		byte[] chunk = new byte[1024*1024];
+		Random random = new Random(1);
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			for(int m=0;m<megabytes;m++) {
+				random.nextBytes(chunk);
+				raf.write(chunk);
+			}
+		}
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileDescr sequential = time(raf, 1, megabytes, "warm up");
+			sequential = time(raf, 1, megabytes, "sequential");
+			for(int parallelism : parallelisms) {
+				FileDescr parallel = time(raf, parallelism, megabytes, "parallel "+parallelism);
+				if(!sequential.getFileMd5().equals(parallel.getFileMd5())
+						|| !Arrays.equals(blockMd5s(sequential), blockMd5s(parallel))) {
+					throw new IllegalStateException("the descriptors differ");
+				}
+			}
+		}
+		file.delete();
+	}
+
+	private static FileDescr time(RandomAccessFile raf, int parallelism, int megabytes, String name) throws Exception {
+		long start = System.nanoTime();
+		FileDescr fileDescr = new FileDescr(raf, FileDescr.DEFAULT_BLOCK_LENGTH, parallelism);
+		long elapsed = System.nanoTime()-start;
+		System.out.printf("%-12s %d MB in %6d ms, %6.1f MB/s%n", name, megabytes, elapsed/1000000,
+				megabytes/(elapsed/1e9));
+		return fileDescr;
+	}
+
+	private static String[] blockMd5s(FileDescr fileDescr) {
+		String[] blockMd5s = new String[fileDescr.getNumBlocks()];
+		for(int b=0;b<blockMd5s.length;b++) {
+			blockMd5s[b]=fileDescr.getBlockMd5(b);
+		}
+		return blockMd5s;
+	}
+}
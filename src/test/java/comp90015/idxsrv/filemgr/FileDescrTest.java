@@ -0,0 +1,120 @@
+package comp90015.idxsrv.filemgr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.message.MessageFactory;
+
+public class FileDescrTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file(int length) throws Exception {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		File file = folder.newFile();
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	private static String[] blockMd5s(FileDescr fileDescr) {
+		String[] blockMd5s = new String[fileDescr.getNumBlocks()];
+		for(int b=0;b<blockMd5s.length;b++) {
+			blockMd5s[b]=fileDescr.getBlockMd5(b);
+		}
+		return blockMd5s;
+	}
+
+	@Test
+	public void parallelHashingMatchesSequential() throws Exception {
+		// a last partial block, and blocks shorter and longer than a hash chunk
+		File file = file(12*FileDescr.HASH_CHUNK+12345);
+		for(int blockLength : new int[] {2*FileDescr.HASH_CHUNK/3, 5*FileDescr.HASH_CHUNK/2}) {
+			try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				FileDescr sequential = new FileDescr(raf, blockLength);
+				for(int parallelism : new int[] {2, 3, 16}) {
+					FileDescr parallel = new FileDescr(raf, blockLength, parallelism);
+					assertEquals(sequential.getNumBlocks(), parallel.getNumBlocks());
+					assertEquals(sequential.getFileMd5(), parallel.getFileMd5());
+					assertArrayEquals(blockMd5s(sequential), blockMd5s(parallel));
+				}
+				FileDescr sha = new FileDescr(raf, blockLength, FileDescr.HASHMODE.FLAT,
+						FileDescr.HASHALGORITHM.SHA256, 1);
+				FileDescr parallelSha = new FileDescr(raf, blockLength, FileDescr.HASHMODE.FLAT,
+						FileDescr.HASHALGORITHM.SHA256, 4);
+				assertEquals(sha.getFileMd5(), parallelSha.getFileMd5());
+				assertArrayEquals(blockMd5s(sha), blockMd5s(parallelSha));
+			}
+		}
+	}
+
+	@Test(timeout=10000)
+	public void parallelHashingFailsWhenABlockCannotBeRead() throws Exception {
+		File file = file(4*FileDescr.HASH_CHUNK);
+		// the file seems longer than it is, so the last block ends early
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r") {
+			@Override
+			public long length() {
+				return 10L*FileDescr.HASH_CHUNK;
+			}
+		}) {
+			new FileDescr(raf, FileDescr.HASH_CHUNK, 3);
+			fail("expected the read to fail");
+		} catch(EOFException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void descriptorsOfEachAlgorithmRoundTrip() throws Exception {
+		File file = file(5*64*1024+999);
+		for(FileDescr.HASHMODE hashMode : FileDescr.HASHMODE.values()) {
+			for(FileDescr.HASHALGORITHM hashAlgorithm : FileDescr.HASHALGORITHM.values()) {
+				FileDescr fileDescr;
+				try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+					fileDescr = new FileDescr(raf, 64*1024, hashMode, hashAlgorithm, 2);
+				}
+				FileDescr received = (FileDescr) MessageFactory.deserialize(MessageFactory.serialize(fileDescr));
+				String name = hashMode+" "+hashAlgorithm;
+				assertEquals(name, hashMode, received.getHashMode());
+				assertEquals(name, hashAlgorithm, received.getHashAlgorithm());
+				assertEquals(name, 2*hashAlgorithm.newDigest().getDigestLength(), received.getFileMd5().length());
+				assertEquals(name, fileDescr.getFileMd5(), received.getFileMd5());
+				if(hashMode==FileDescr.HASHMODE.MERKLE) {
+					continue; // block roots are not sent, so a receiving peer needs proofs to check blocks
+				}
+				assertArrayEquals(name, blockMd5s(fileDescr), blockMd5s(received));
+				// a peer with the received descriptor finds the file complete, and its hash correct
+				File copy = new File(folder.getRoot(), hashMode+"-"+hashAlgorithm+".bin");
+				Files.copy(file.toPath(), copy.toPath());
+				FileMgr fileMgr = new FileMgr(copy.getPath(), received);
+				assertTrue(name, fileMgr.isComplete());
+				fileMgr.setVerifyPolicy(FileMgr.VERIFYPOLICY.FULL);
+				assertTrue(name, fileMgr.checkFileHash());
+				fileMgr.closeFile();
+			}
+		}
+	}
+
+	@Test
+	public void emptyFileHasEmptyHashes() throws Exception {
+		try(RandomAccessFile raf = new RandomAccessFile(file(0), "r")) {
+			FileDescr fileDescr = new FileDescr(raf, 1024, 4);
+			assertEquals(0, fileDescr.getNumBlocks());
+			assertEquals("", fileDescr.getFileMd5());
+		}
+	}
+}
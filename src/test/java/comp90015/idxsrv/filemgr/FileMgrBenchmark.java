@@ -0,0 +1,111 @@
+package comp90015.idxsrv.filemgr;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Measures how long a downloaded file takes to verify once its last block is written,
+ * under each {@link FileMgr.VERIFYPOLICY}, for a file of a given size in megabytes
+ * (256 by default) with 16MB blocks written in order. Then measures what writing a block
+ * costs the writer, with the resume state saved in the background, against hashing and
+ * writing the same 1MB blocks to a plain file. Run with
+ * <code>java -cp target/classes:target/test-classes:&lt;deps&gt;
+ * comp90015.idxsrv.filemgr.FileMgrBenchmark [megabytes]</code>.
+ * @author aaron
+ *
+ */
+public class FileMgrBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length>0 ? Integer.parseInt(args[0]) : 256;
+		File dir = Files.createTempDirectory("filemgr-bench").toFile();
+		File source = new File(dir, "source.bin");
+		byte[] chunk = new byte[1024*1024];
+		Random random = new Random(1);
+		try(RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+			for(int m=0;m<megabytes;m++) {
+				random.nextBytes(chunk);
+				raf.write(chunk);
+			}
+		}
+		FileDescr fileDescr;
+		FileMgr sourceMgr;
+		try(RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+			fileDescr = new FileDescr(raf);
+		}
+		sourceMgr = new FileMgr(source.getPath(), fileDescr);
+
+		for(FileMgr.VERIFYPOLICY policy : FileMgr.VERIFYPOLICY.values()) {
+			File target = new File(dir, policy.name().toLowerCase()+".bin");
+			FileMgr fileMgr = new FileMgr(target.getPath(), fileDescr);
+			fileMgr.setVerifyPolicy(policy);
+			long start = System.nanoTime();
+			for(int b=0;b<fileDescr.getNumBlocks();b++) {
+				fileMgr.writeBlock(b, sourceMgr.readBlock(b));
+			}
+			long written = System.nanoTime();
+			boolean correct = fileMgr.checkFileHash();
+			long verified = System.nanoTime();
+			fileMgr.closeFile();
+			System.out.printf("%-12s %d MB written in %5d ms, verified (%b) in %5d ms%n", policy.name().toLowerCase(),
+					megabytes, (written-start)/1000000, correct, (verified-written)/1000000);
+			target.delete();
+		}
+
+		FileDescr smallBlocks;
+		try(RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+			smallBlocks = new FileDescr(raf, 1024*1024);
+		}
+		byte[][] blocks = new byte[smallBlocks.getNumBlocks()][];
+		try(RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+			for(int b=0;b<blocks.length;b++) {
+				blocks[b] = new byte[smallBlocks.getNumBlockBytes(b)];
+				raf.seek(smallBlocks.getBlockOffset(b));
+				raf.readFully(blocks[b]);
+			}
+		}
+		File plain = new File(dir, "plain.bin");
+		long plainNanos;
+		try(RandomAccessFile raf = new RandomAccessFile(plain, "rw")) {
+			FileChannel channel = raf.getChannel();
+			MessageDigest digest = smallBlocks.getHashAlgorithm().newDigest();
+			long start = System.nanoTime();
+			for(int b=0;b<blocks.length;b++) {
+				digest.update(blocks[b]);
+				digest.digest();
+				ByteBuffer buffer = ByteBuffer.wrap(blocks[b]);
+				while(buffer.hasRemaining()) {
+					channel.write(buffer, smallBlocks.getBlockOffset(b)+buffer.position());
+				}
+			}
+			plainNanos = System.nanoTime()-start;
+		}
+		plain.delete();
+		File target = new File(dir, "state.bin");
+		FileMgr fileMgr = new FileMgr(target.getPath(), smallBlocks);
+		fileMgr.setVerifyPolicy(FileMgr.VERIFYPOLICY.TRUST_BLOCKS);
+		long slowest = 0;
+		long start = System.nanoTime();
+		for(int b=0;b<blocks.length;b++) {
+			long before = System.nanoTime();
+			fileMgr.writeBlock(b, blocks[b]);
+			slowest = Math.max(slowest, System.nanoTime()-before);
+		}
+		long written = System.nanoTime();
+		fileMgr.closeFile();
+		long closed = System.nanoTime();
+		System.out.printf("plain file   %d x 1MB blocks written at %6d us each%n", blocks.length,
+				plainNanos/blocks.length/1000);
+		System.out.printf("resume state %d x 1MB blocks written at %6d us each, slowest %d us, closed in %d ms%n",
+				blocks.length, (written-start)/blocks.length/1000, slowest/1000, (closed-written)/1000000);
+		target.delete();
+		sourceMgr.closeFile();
+		source.delete();
+		dir.delete();
+	}
+}
@@ -0,0 +1,267 @@
+package comp90015.idxsrv.filemgr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileMgrTest {
+
+	private static final int BLOCK_LENGTH = 64*1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private byte[] content;
+
+	private FileDescr fileDescr;
+
+	private File target;
+
+	@Before
+	public void setUp() throws Exception {
+		content = new byte[10*BLOCK_LENGTH+1234];
+		new Random(1).nextBytes(content);
+		File source = folder.newFile("source.bin");
+		Files.write(source.toPath(), content);
+		try(RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+			fileDescr = new FileDescr(raf, BLOCK_LENGTH);
+		}
+		target = new File(folder.newFolder("download"), "target.bin");
+	}
+
+	private byte[] block(int blockIdx) {
+		int offset = blockIdx*BLOCK_LENGTH;
+		byte[] bytes = new byte[Math.min(BLOCK_LENGTH, content.length-offset)];
+		System.arraycopy(content, offset, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	private File stateFile() {
+		return new File(target.getPath()+FileMgr.STATE_SUFFIX);
+	}
+
+	private static ArrayList<Integer> shuffled(int numBlocks, long seed) {
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int b=0;b<numBlocks;b++) order.add(b);
+		Collections.shuffle(order, new Random(seed));
+		return order;
+	}
+
+	@Test
+	public void incrementalVerificationOfBlocksInAnyOrder() throws Exception {
+		for(FileMgr.VERIFYPOLICY policy : FileMgr.VERIFYPOLICY.values()) {
+			File file = new File(target.getParentFile(), policy+".bin");
+			FileMgr fileMgr = new FileMgr(file.getPath(), fileDescr);
+			fileMgr.setVerifyPolicy(policy);
+			for(int b : shuffled(fileDescr.getNumBlocks(), policy.ordinal())) {
+				assertTrue(fileMgr.writeBlock(b, block(b)));
+			}
+			assertTrue(fileMgr.isComplete());
+			assertTrue(policy.name(), fileMgr.checkFileHash());
+			fileMgr.closeFile();
+		}
+	}
+
+	@Test
+	public void wrongBlocksAreNotWritten() throws Exception {
+		FileMgr fileMgr = new FileMgr(target.getPath(), fileDescr);
+		byte[] wrong = block(3);
+		wrong[0]^=1;
+		assertFalse(fileMgr.writeBlock(3, wrong));
+		assertFalse(fileMgr.isBlockAvailable(3));
+		assertFalse(fileMgr.writeBlock(fileDescr.getNumBlocks(), block(0)));
+		assertTrue(fileMgr.writeBlock(3, block(3)));
+		assertFalse("written twice", fileMgr.writeBlock(3, block(3)));
+		fileMgr.closeFile();
+	}
+
+	@Test
+	public void resumeStateKeepsAvailableBlocks() throws Exception {
+		FileMgr fileMgr = new FileMgr(target.getPath(), fileDescr);
+		for(int b=0;b<fileDescr.getNumBlocks();b+=2) {
+			fileMgr.writeBlock(b, block(b));
+		}
+		fileMgr.closeFile();
+		assertTrue(stateFile().exists());
+
+		FileMgr resumed = new FileMgr(target.getPath(), fileDescr);
+		assertEquals(fileDescr.getNumBlocks()/2, resumed.getNumBlocksRequired());
+		for(int b=0;b<fileDescr.getNumBlocks();b++) {
+			assertEquals(b%2==0, resumed.isBlockAvailable(b));
+			if(b%2==1) assertTrue(resumed.writeBlock(b, block(b)));
+		}
+		assertTrue(resumed.isComplete());
+		assertTrue(resumed.checkFileHash());
+		resumed.closeFile();
+		assertFalse(stateFile().exists());
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+	}
+
+	@Test
+	public void resumeStateIsSavedInTheBackground() throws Exception {
+		FileMgr fileMgr = new FileMgr(target.getPath(), fileDescr);
+		byte[] initial = Files.readAllBytes(stateFile().toPath());
+		String state = new String(initial, StandardCharsets.ISO_8859_1);
+		assertFalse("only the descriptor's hash is kept", state.contains(fileDescr.getFileMd5()));
+		fileMgr.writeBlock(0, block(0));
+		fileMgr.writeBlock(5, block(5));
+		long deadline = System.currentTimeMillis()+5000;
+		while(Arrays.equals(initial, Files.readAllBytes(stateFile().toPath())) && System.currentTimeMillis()<deadline) {
+			Thread.sleep(20);
+		}
+		assertFalse("saved without closing", Arrays.equals(initial, Files.readAllBytes(stateFile().toPath())));
+
+		// as if the peer had stopped without closing the file
+		File crashed = new File(folder.newFolder("crashed"), "target.bin");
+		Files.copy(target.toPath(), crashed.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+		Files.copy(stateFile().toPath(), new File(crashed.getPath()+FileMgr.STATE_SUFFIX).toPath());
+		fileMgr.closeFile();
+		FileMgr resumed = new FileMgr(crashed.getPath(), fileDescr);
+		for(int b=0;b<fileDescr.getNumBlocks();b++) {
+			assertEquals(b==0 || b==5, resumed.isBlockAvailable(b));
+		}
+		resumed.closeFile();
+	}
+
+	@Test
+	public void resumeStateIsNotTrustedAfterTheFileChanges() throws Exception {
+		FileMgr fileMgr = new FileMgr(target.getPath(), fileDescr);
+		fileMgr.writeBlock(0, block(0));
+		fileMgr.writeBlock(1, block(1));
+		fileMgr.closeFile();
+		// another process overwrites block 1, which changes the modification time
+		try(RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+			raf.seek(BLOCK_LENGTH);
+			raf.write(new byte[16]);
+		}
+		target.setLastModified(target.lastModified()+2000);
+
+		FileMgr resumed = new FileMgr(target.getPath(), fileDescr);
+		assertTrue(resumed.isBlockAvailable(0));
+		assertFalse(resumed.isBlockAvailable(1));
+		resumed.closeFile();
+	}
+
+	@Test
+	public void corruptResumeStateIsIgnored() throws Exception {
+		FileMgr fileMgr = new FileMgr(target.getPath(), fileDescr);
+		fileMgr.writeBlock(2, block(2));
+		fileMgr.closeFile();
+		byte[] state = Files.readAllBytes(stateFile().toPath());
+		state[state.length/2]^=1;
+		Files.write(stateFile().toPath(), state);
+
+		// the blocks are found by hashing them instead
+		FileMgr resumed = new FileMgr(target.getPath(), fileDescr);
+		assertTrue(resumed.isBlockAvailable(2));
+		assertEquals(fileDescr.getNumBlocks()-1, resumed.getNumBlocksRequired());
+		resumed.closeFile();
+	}
+
+	@Test
+	public void closingWhileOtherThreadsWriteLeavesNoState() throws Exception {
+		for(int round=0;round<20;round++) {
+			File file = new File(target.getParentFile(), "race"+round+".bin");
+			FileMgr fileMgr = new FileMgr(file.getPath(), fileDescr);
+			AtomicBoolean finished = new AtomicBoolean(false);
+			AtomicBoolean verified = new AtomicBoolean(false);
+			ArrayList<Thread> writers = new ArrayList<Thread>();
+			for(int w=0;w<3;w++) {
+				final long seed = round*3+w;
+				writers.add(new Thread(() -> {
+					try {
+						for(int b : shuffled(fileDescr.getNumBlocks(), seed)) {
+							fileMgr.writeBlock(b, block(b));
+							if(fileMgr.isComplete() && finished.compareAndSet(false, true)) {
+								verified.set(fileMgr.checkFileHash());
+								fileMgr.closeFile();
+							}
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}));
+			}
+			for(Thread writer : writers) writer.start();
+			for(Thread writer : writers) writer.join();
+			assertTrue(verified.get());
+			assertFalse(new File(file.getPath()+FileMgr.STATE_SUFFIX).exists());
+			assertFalse(new File(file.getPath()+FileMgr.STATE_SUFFIX+".tmp").exists());
+		}
+	}
+
+	@Test
+	public void mappedBlocksAreWrittenAndReadBack() throws Exception {
+		FileMgr fileMgr = new FileMgr(target.getPath(), fileDescr);
+		fileMgr.setIoMode(FileMgr.IOMODE.MAPPED);
+		for(int b : shuffled(fileDescr.getNumBlocks(), 7)) {
+			assertTrue(fileMgr.writeBlock(b, block(b)));
+			assertArrayEquals(block(b), fileMgr.readBlock(b));
+		}
+		assertTrue(fileMgr.checkFileHash());
+		int last = fileDescr.getNumBlocks()-1;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		fileMgr.readBlock(last, out);
+		assertArrayEquals(block(last), out.toByteArray());
+		out.reset();
+		fileMgr.transferBlock(3, Channels.newChannel(out));
+		assertArrayEquals(block(3), out.toByteArray());
+		fileMgr.closeFile();
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+
+		// the same file read through positional I/O
+		FileMgr positional = new FileMgr(target.getPath(), fileDescr);
+		assertTrue(positional.isComplete());
+		assertArrayEquals(block(last), positional.readBlock(last));
+		positional.closeFile();
+	}
+
+	@Test
+	public void mappedWritesAreInTheResumeState() throws Exception {
+		FileMgr fileMgr = new FileMgr(target.getPath(), fileDescr);
+		fileMgr.setIoMode(FileMgr.IOMODE.MAPPED);
+		for(int b=1;b<fileDescr.getNumBlocks();b+=2) {
+			assertTrue(fileMgr.writeBlock(b, block(b)));
+		}
+		fileMgr.closeFile();
+		assertTrue(stateFile().exists());
+
+		// resumed from the state, and checked against the file's content by hashing it
+		for(boolean verify : new boolean[] {false, true}) {
+			FileMgr resumed = new FileMgr(target.getPath(), fileDescr, verify);
+			for(int b=0;b<fileDescr.getNumBlocks();b++) {
+				assertEquals(b%2==1, resumed.isBlockAvailable(b));
+			}
+			resumed.closeFile();
+		}
+		FileMgr resumed = new FileMgr(target.getPath(), fileDescr);
+		resumed.setIoMode(FileMgr.IOMODE.MAPPED);
+		for(int b=0;b<fileDescr.getNumBlocks();b+=2) {
+			assertTrue(resumed.writeBlock(b, block(b)));
+		}
+		resumed.setVerifyPolicy(FileMgr.VERIFYPOLICY.FULL);
+		assertTrue(resumed.checkFileHash());
+		resumed.closeFile();
+		assertFalse(stateFile().exists());
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+	}
+}
@@ -0,0 +1,55 @@
+package comp90015.idxsrv.filemgr;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Measures each {@link FileDescr.HASHALGORITHM} hashing a file of a given size in megabytes
+ * (1024 by default) through the chunked reads that descriptors and file managers use, and
+ * creating flat and Merkle descriptors of the file with 16MB blocks. The file is read once
+ * first, so that it is hashed from the page cache as far as memory allows. Run with
+ * <code>java -cp target/classes:target/test-classes:&lt;deps&gt;
+ * comp90015.idxsrv.filemgr.HashBenchmark [megabytes]</code>.
+ * @author aaron
+ *
+ */
+public class HashBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length>0 ? Integer.parseInt(args[0]) : 1024;
+		File file = Files.createTempFile("hash-bench", ".bin").toFile();
+		byte[] bytes = new byte[1024*1024];
+		Random random = new Random(1);
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			for(int m=0;m<megabytes;m++) {
+				random.nextBytes(bytes);
+				raf.write(bytes);
+			}
+		}
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer chunk = ByteBuffer.allocate(FileDescr.HASH_CHUNK);
+			FileDescr.digest(channel, 0, raf.length(), chunk, FileDescr.HASHALGORITHM.CRC32C.newDigest());
+			for(FileDescr.HASHALGORITHM hashAlgorithm : FileDescr.HASHALGORITHM.values()) {
+				MessageDigest digest = hashAlgorithm.newDigest();
+				long start = System.nanoTime();
+				FileDescr.digest(channel, 0, raf.length(), chunk, digest);
+				digest.digest();
+				long hashed = System.nanoTime();
+				new FileDescr(raf, FileDescr.DEFAULT_BLOCK_LENGTH, FileDescr.HASHMODE.FLAT, hashAlgorithm, 1);
+				long flat = System.nanoTime();
+				new FileDescr(raf, FileDescr.DEFAULT_BLOCK_LENGTH, FileDescr.HASHMODE.MERKLE, hashAlgorithm, 1);
+				long merkle = System.nanoTime();
+				System.out.printf("%-6s hashed at %7.1f MB/s, flat descriptor in %5d ms, Merkle descriptor in %5d ms%n",
+						hashAlgorithm.name().toLowerCase(), megabytes/((hashed-start)/1e9), (flat-hashed)/1000000,
+						(merkle-flat)/1000000);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,186 @@
+package comp90015.idxsrv.filemgr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.message.MessageFactory;
+
+public class MerkleTreeTest {
+
+	private static final int LEAF = MerkleTree.DEFAULT_LEAF_LENGTH;
+
+	private static final int BLOCK_LENGTH = 4*LEAF;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static MessageDigest sha256() throws Exception {
+		return MessageDigest.getInstance("SHA-256");
+	}
+
+	private static byte[][] hashes(int n) throws Exception {
+		byte[][] hashes = new byte[n][];
+		for(int i=0;i<n;i++) {
+			hashes[i]=MerkleTree.leafHash(sha256(), new byte[] {(byte) i}, 0, 1);
+		}
+		return hashes;
+	}
+
+	/**
+	 * A file manager for a complete file, described in Merkle mode with {@link #BLOCK_LENGTH}.
+	 */
+	private static FileMgr seeder(File source) throws Exception {
+		FileDescr fileDescr;
+		try(RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+			fileDescr = new FileDescr(raf, BLOCK_LENGTH, FileDescr.HASHMODE.MERKLE);
+		}
+		return new FileMgr(source.getPath(), fileDescr);
+	}
+
+	@Test
+	public void proofsVerifyForEveryIndexAndSize() throws Exception {
+		MessageDigest digest = sha256();
+		for(int n=1;n<=13;n++) {
+			byte[][] hashes = hashes(n);
+			byte[] root = MerkleTree.root(digest, hashes);
+			for(int i=0;i<n;i++) {
+				byte[][] proof = MerkleTree.proof(digest, hashes, i);
+				assertTrue(n+" "+i, MerkleTree.verify(digest, hashes[i], i, n, proof, root));
+				if(n>1) {
+					// the proof is for this index and this hash only
+					assertFalse(MerkleTree.verify(digest, hashes[i], (i+1)%n, n, proof, root));
+					assertFalse(MerkleTree.verify(digest, hashes[(i+1)%n], i, n, proof, root));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void proofsFromTheLevelsMatchComputedProofs() throws Exception {
+		MessageDigest digest = sha256();
+		for(int n=1;n<=40;n++) {
+			byte[][] hashes = hashes(n);
+			byte[][][] levels = MerkleTree.levels(digest, hashes);
+			byte[] root = MerkleTree.root(digest, hashes);
+			assertEquals(1, levels[levels.length-1].length);
+			assertArrayEquals(root, levels[levels.length-1][0]);
+			for(int i=0;i<n;i++) {
+				byte[][] proof = MerkleTree.proof(levels, i);
+				assertArrayEquals(n+" "+i, MerkleTree.proof(digest, hashes, i), proof);
+				assertTrue(MerkleTree.verify(digest, hashes[i], i, n, proof, root));
+			}
+		}
+	}
+
+	@Test
+	public void oddTreesSplitAtThePowerOfTwo() throws Exception {
+		MessageDigest digest = sha256();
+		byte[][] h = hashes(3);
+		byte[] expected = MerkleTree.nodeHash(digest, MerkleTree.nodeHash(digest, h[0], h[1]), h[2]);
+		assertArrayEquals(expected, MerkleTree.root(digest, h));
+		assertArrayEquals(h[0], MerkleTree.root(digest, new byte[][] {h[0]}));
+		assertEquals(0, MerkleTree.proof(digest, new byte[][] {h[0]}, 0).length);
+	}
+
+	@Test
+	public void lastLeafMayBeShort() throws Exception {
+		MessageDigest digest = sha256();
+		byte[] bytes = new byte[3*LEAF+100];
+		new Random(1).nextBytes(bytes);
+		byte[][] leaves = MerkleTree.leafHashes(digest, bytes, 0, bytes.length, LEAF);
+		assertEquals(4, leaves.length);
+		assertArrayEquals(MerkleTree.leafHash(digest, bytes, 3*LEAF, 100), leaves[3]);
+
+		File file = folder.newFile();
+		Files.write(file.toPath(), bytes);
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			byte[][] read = MerkleTree.leafHashes(digest, raf.getChannel(), 0, bytes.length, LEAF,
+					ByteBuffer.allocate(2*LEAF));
+			assertEquals(leaves.length, read.length);
+			for(int i=0;i<leaves.length;i++) assertArrayEquals(leaves[i], read[i]);
+		}
+	}
+
+	@Test
+	public void blocksOfAFileWithAPartialLastBlockCanBeProvenAndWritten() throws Exception {
+		// 5 blocks, the last of which has 2 leaves, the second one short
+		byte[] content = new byte[4*BLOCK_LENGTH+LEAF+10];
+		new Random(2).nextBytes(content);
+		File source = folder.newFile("source.bin");
+		Files.write(source.toPath(), content);
+		FileMgr seeder = seeder(source);
+		// descriptors from other peers carry no block roots
+		FileDescr received = (FileDescr) MessageFactory.deserialize(MessageFactory.serialize(seeder.getFileDescr()));
+		assertEquals(5, received.getNumBlocks());
+
+		File target = new File(folder.newFolder("download"), "target.bin");
+		FileMgr fileMgr = new FileMgr(target.getPath(), received);
+		for(int b=received.getNumBlocks()-1;b>=0;b--) {
+			byte[] bytes = seeder.readBlock(b);
+			assertFalse("written before its root is known", fileMgr.checkBlockHash(b, bytes));
+			byte[][] leafHashes = seeder.getLeafHashes(b);
+			byte[][] proof = seeder.getBlockProof(b);
+			assertFalse(fileMgr.addBlockProof(b, leafHashes, seeder.getBlockProof((b+1)%5)));
+			assertTrue(fileMgr.addBlockProof(b, leafHashes, proof));
+			assertTrue(fileMgr.writeBlock(b, bytes));
+		}
+		assertTrue(fileMgr.checkFileHash());
+		fileMgr.setVerifyPolicy(FileMgr.VERIFYPOLICY.FULL);
+		assertTrue(fileMgr.checkFileHash());
+		fileMgr.closeFile();
+		seeder.closeFile();
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+	}
+
+	@Test
+	public void blockRootsSurviveResume() throws Exception {
+		byte[] content = new byte[3*BLOCK_LENGTH+7];
+		new Random(3).nextBytes(content);
+		File source = folder.newFile("source.bin");
+		Files.write(source.toPath(), content);
+		FileMgr seeder = seeder(source);
+		FileDescr received = (FileDescr) MessageFactory.deserialize(MessageFactory.serialize(seeder.getFileDescr()));
+
+		File target = new File(folder.newFolder("download"), "target.bin");
+		FileMgr fileMgr = new FileMgr(target.getPath(), received);
+		for(int b=0;b<2;b++) {
+			assertTrue(fileMgr.addBlockProof(b, seeder.getLeafHashes(b), seeder.getBlockProof(b)));
+			assertTrue(fileMgr.writeBlock(b, seeder.readBlock(b)));
+		}
+		fileMgr.closeFile();
+
+		FileMgr resumed = new FileMgr(target.getPath(), received);
+		assertTrue(resumed.isBlockAvailable(0));
+		assertTrue(resumed.isBlockAvailable(1));
+		assertTrue(resumed.isBlockRootKnown(0));
+		assertTrue(resumed.isBlockRootKnown(1));
+		assertFalse(resumed.isBlockRootKnown(2));
+		// the resumed blocks can be served with their leaves
+		assertArrayEquals(seeder.getLeafHashes(1)[0], resumed.getLeafHashes(1)[0]);
+		for(int b=2;b<received.getNumBlocks();b++) {
+			assertTrue(resumed.addBlockProof(b, seeder.getLeafHashes(b), seeder.getBlockProof(b)));
+			assertTrue(resumed.writeBlock(b, seeder.readBlock(b)));
+		}
+		// with every root known, the resumed file can prove its blocks to others
+		for(int b=0;b<received.getNumBlocks();b++) {
+			assertArrayEquals(seeder.getBlockProof(b)[0], resumed.getBlockProof(b)[0]);
+		}
+		resumed.setVerifyPolicy(FileMgr.VERIFYPOLICY.FULL);
+		assertTrue(resumed.checkFileHash());
+		resumed.closeFile();
+		seeder.closeFile();
+	}
+}
@@ -0,0 +1,94 @@
+package comp90015.idxsrv.message;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.server.IndexElement;
+
+/**
+ * Compares {@link MessageFactory} with {@link ReflectiveMessageFactory}, the factory as it
+ * was before it cached its reflection, for a small message, a share request with a file
+ * descriptor of 64 blocks, and a search reply of 20 hits of single block files. Each is
+ * serialized and deserialized a number of times (20000 by default), after a warm up of as many. Run with
+ * <code>java -cp target/classes:target/test-classes:&lt;deps&gt;
+ * comp90015.idxsrv.message.MessageFactoryBenchmark [iterations]</code>.
+ * @author aaron
+ *
+ */
+public class MessageFactoryBenchmark {
+
+	private interface Codec {
+		String serialize(Object object) throws JsonSerializationException;
+		Object deserialize(String str) throws JsonSerializationException;
+	}
+
+	private static final Codec CACHED = new Codec() {
+		public String serialize(Object object) throws JsonSerializationException {
+			return MessageFactory.serialize(object);
+		}
+		public Object deserialize(String str) throws JsonSerializationException {
+			return MessageFactory.deserialize(str);
+		}
+	};
+
+	private static final Codec REFLECTIVE = new Codec() {
+		public String serialize(Object object) throws JsonSerializationException {
+			return ReflectiveMessageFactory.serialize(object);
+		}
+		public Object deserialize(String str) throws JsonSerializationException {
+			return ReflectiveMessageFactory.deserialize(str);
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length>0 ? Integer.parseInt(args[0]) : 20000;
+		File file = File.createTempFile("msgbench", ".bin");
+		byte[] content = new byte[64*16*1024];
+		new Random(1).nextBytes(content);
+		Files.write(file.toPath(), content);
+		FileDescr fileDescr;
+		FileDescr small;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			fileDescr = new FileDescr(raf, 16*1024);
+			small = new FileDescr(raf);
+		}
+		file.delete();
+		ArrayList<IndexElement> hits = new ArrayList<IndexElement>();
+		Integer[] seedCounts = new Integer[20];
+		for(int i=0;i<20;i++) {
+			hits.add(new IndexElement("10.0.0."+i, 3000+i, small, "holiday-photos-"+i+".zip", "secret"));
+			seedCounts[i]=i;
+		}
+		Object[] messages = {
+				new RawBlockRequest("holiday-photos.zip", fileDescr.getFileMd5(), 12),
+				new ShareRequest(fileDescr, "holiday-photos.zip", "secret", 3000),
+				new SearchReply(hits, seedCounts)};
+
+		for(Object message : messages) {
+			for(int round=0;round<2;round++) { // the first round warms up
+				for(Codec codec : new Codec[] {REFLECTIVE, CACHED}) {
+					String json = codec.serialize(message);
+					long start = System.nanoTime();
+					long length = 0;
+					for(int i=0;i<iterations;i++) {
+						length+=codec.serialize(message).length();
+					}
+					long serialized = System.nanoTime();
+					for(int i=0;i<iterations;i++) {
+						length+=codec.deserialize(json).getClass().getName().length();
+					}
+					long deserialized = System.nanoTime();
+					if(round>0) {
+						System.out.printf("%-16s %-10s serialize %6d ns, deserialize %6d ns (%d)%n",
+								message.getClass().getSimpleName(), codec==CACHED ? "cached" : "reflective",
+								(serialized-start)/iterations, (deserialized-serialized)/iterations, length%10);
+					}
+				}
+			}
+		}
+	}
+}
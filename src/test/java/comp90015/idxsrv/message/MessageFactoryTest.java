@@ -0,0 +1,147 @@
+package comp90015.idxsrv.message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.server.IndexElement;
+
+public class MessageFactoryTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		byte[] content = new byte[100000];
+		new Random(1).nextBytes(content);
+		file = folder.newFile("a.bin");
+		Files.write(file.toPath(), content);
+	}
+
+	private FileDescr roundTrip(FileDescr fileDescr) throws Exception {
+		return (FileDescr) MessageFactory.deserialize(MessageFactory.serialize(fileDescr));
+	}
+
+	private static void assertSameDescr(FileDescr expected, FileDescr actual) throws Exception {
+		assertEquals(expected.getFileMd5(), actual.getFileMd5());
+		assertEquals(expected.getFileLength(), actual.getFileLength());
+		assertEquals(expected.getBlockLength(), actual.getBlockLength());
+		assertEquals(expected.getNumBlocks(), actual.getNumBlocks());
+		assertEquals(expected.getHashMode(), actual.getHashMode());
+		assertEquals(expected.getHashAlgorithm(), actual.getHashAlgorithm());
+		for(int b=0;b<expected.getNumBlocks();b++) {
+			assertEquals(expected.getBlockMd5(b), actual.getBlockMd5(b));
+		}
+	}
+
+	@Test
+	public void nullOptionalFieldsAreLeftOut() throws Exception {
+		FileDescr flat;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			flat = new FileDescr(raf, 16*1024);
+		}
+		String json = MessageFactory.serialize(flat);
+		// the same as before the fields were added, so older peers still read it
+		assertFalse(json.contains("leafLength"));
+		assertFalse(json.contains("hashAlgorithm"));
+		assertSameDescr(flat, roundTrip(flat));
+	}
+
+	@Test
+	public void optionalFieldsRoundTrip() throws Exception {
+		FileDescr merkle;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			merkle = new FileDescr(raf, 32*1024, FileDescr.HASHMODE.MERKLE, FileDescr.HASHALGORITHM.CRC32C, 1);
+		}
+		String json = MessageFactory.serialize(merkle);
+		assertTrue(json.contains("leafLength"));
+		assertTrue(json.contains("hashAlgorithm"));
+		FileDescr received = roundTrip(merkle);
+		assertSameDescr(merkle, received);
+		assertEquals(merkle.getLeafLength(), received.getLeafLength());
+	}
+
+	@Test
+	public void nestedObjectsAndArraysRoundTrip() throws Exception {
+		FileDescr fileDescr;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			fileDescr = new FileDescr(raf);
+		}
+		ArrayList<IndexElement> hits = new ArrayList<IndexElement>();
+		hits.add(new IndexElement("1.2.3.4", 1234, fileDescr, "a \"quoted\" é name\n", "s"));
+		hits.add(new IndexElement("5.6.7.8", 5678, fileDescr, "b.bin", "t"));
+		SearchReply reply = (SearchReply) MessageFactory.deserialize(
+				MessageFactory.serialize(new SearchReply(hits, new Integer[] {3, 1})));
+		assertEquals(2, reply.hits.length);
+		assertEquals("a \"quoted\" é name\n", reply.hits[0].filename);
+		assertEquals(Integer.valueOf(5678), reply.hits[1].port);
+		assertSameDescr(fileDescr, reply.hits[1].fileDescr);
+		assertArrayEquals(new Integer[] {3, 1}, reply.seedCounts);
+
+		SearchRequest request = (SearchRequest) MessageFactory.deserialize(
+				new SearchRequest(5, new String[] {"x", "y"}).toString());
+		assertEquals(Integer.valueOf(5), request.maxhits);
+		assertEquals(Arrays.asList("x", "y"), Arrays.asList(request.keywords));
+	}
+
+	@Test
+	public void nullRequiredFieldsAreRejected() throws Exception {
+		String json = MessageFactory.serialize(new ErrorMsg(null));
+		try {
+			MessageFactory.deserialize(json);
+			fail("expected a missing field to be rejected");
+		} catch(JsonSerializationException e) {
+			assertTrue(e.getMessage().contains("msg"));
+		}
+		try {
+			MessageFactory.deserialize(MessageFactory.serialize(new ErrorMsg("x")).replace("\"x\"", "null"));
+			fail("expected an explicit null to be rejected");
+		} catch(JsonSerializationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void invalidMessagesAreRejected() {
+		String[] invalid = {
+				"not json",
+				"{\"msg\":\"no class\"}",
+				"{\"_class\":\"comp90015.idxsrv.message.Missing\"}",
+				"{\"_class\":\"java.lang.String\"}",
+				"{\"_class\":\"comp90015.idxsrv.message.ErrorMsg\",\"msg\":5}",
+				"{\"_class\":\"comp90015.idxsrv.message.SearchRequest\",\"maxhits\":1,\"keywords\":[1]}",
+		};
+		for(String json : invalid) {
+			try {
+				MessageFactory.deserialize(json);
+				fail("expected to be rejected: "+json);
+			} catch(JsonSerializationException e) {
+				// expected
+			}
+		}
+		try {
+			MessageFactory.serialize("not serializable");
+			fail("expected a class that is not JsonSerializable to be rejected");
+		} catch(JsonSerializationException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package comp90015.idxsrv.peer;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the hit rate of {@link BlockCache} with that of a plain LRU cache of the same
+ * capacity, for block requests drawn from a Zipf distribution over a number of blocks
+ * (20000 by default), alone and with every other request a block of a sequential scan,
+ * as when a peer downloads a large file once. Blocks are 256KB and the capacity is
+ * {@link BlockCache#DEFAULT_CAPACITY}. Run with
+ * <code>java -cp target/classes:target/test-classes:&lt;deps&gt;
+ * comp90015.idxsrv.peer.BlockCacheBenchmark [blocks] [requests]</code>.
+ */
+public class BlockCacheBenchmark {
+
+    private static final int BLOCK_LENGTH = 256 * 1024;
+
+    private static final double SKEW = 0.9;
+
+    public static void main(String[] args) {
+        int blocks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+        double[] cumulative = new double[blocks];
+        double sum = 0;
+        for (int b = 0; b < blocks; b++) {
+            sum += 1 / Math.pow(b + 1, SKEW);
+            cumulative[b] = sum;
+        }
+        int[] zipf = new int[requests];
+        Random random = new Random(1);
+        for (int r = 0; r < requests; r++) {
+            int b = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            zipf[r] = b < 0 ? -b - 1 : b;
+        }
+        int[] scan = new int[requests];
+        for (int r = 0; r < requests; r++) {
+            // the scan is of other blocks than the popular ones
+            scan[r] = r % 2 == 0 ? zipf[r] : blocks + r / 2;
+        }
+        byte[] frame = new byte[BLOCK_LENGTH];
+        for (int round = 0; round < 2; round++) { // the first round warms up
+            for (String workload : new String[]{"zipf", "zipf+scan"}) {
+                int[] trace = workload.equals("zipf") ? zipf : scan;
+                BlockCache cache = new BlockCache(BlockCache.DEFAULT_CAPACITY);
+                long start = System.nanoTime();
+                for (int blockIdx : trace) {
+                    if (cache.getFrame("f", "md5", blockIdx) == null) {
+                        cache.putFrame("f", "md5", blockIdx, frame);
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                double lru = lruHitRate(trace, (int) (BlockCache.DEFAULT_CAPACITY / BLOCK_LENGTH));
+                if (round > 0) {
+                    System.out.printf("%-10s block cache hit rate %5.1f%% (%4d ns a request), LRU %5.1f%%%n",
+                            workload, 100 * cache.getHitRate(), elapsed / trace.length, 100 * lru);
+                }
+            }
+        }
+    }
+
+    private static double lruHitRate(int[] trace, int entries) {
+        LinkedHashMap<Integer, Boolean> lru = new LinkedHashMap<Integer, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+                return size() > entries;
+            }
+        };
+        long hits = 0;
+        for (int blockIdx : trace) {
+            if (lru.get(blockIdx) != null) hits++;
+            else lru.put(blockIdx, Boolean.TRUE);
+        }
+        return (double) hits / trace.length;
+    }
+}
@@ -0,0 +1,181 @@
+package comp90015.idxsrv.peer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockCacheTest {
+
+	private static final long CAPACITY = 16*1024*1024;
+
+	private static final int FRAME = 64*1024;
+
+	private static final String MD5 = "0123456789abcdef0123456789abcdef";
+
+	private BlockCache cache;
+
+	@Before
+	public void setUp() {
+		cache = new BlockCache(CAPACITY, FRAME);
+	}
+
+	/**
+	 * Request a frame as an upload does: offer it if it was not cached.
+	 * @return true if it was a hit
+	 */
+	private boolean request(int blockIdx) {
+		if(cache.getFrame("f", MD5, blockIdx)!=null) {
+			return true;
+		}
+		cache.putFrame("f", MD5, blockIdx, new byte[FRAME]);
+		return false;
+	}
+
+	private boolean isCached(int blockIdx) {
+		// counts as a request, so only use once an entry's fate is settled
+		return cache.getFrame("f", MD5, blockIdx)!=null;
+	}
+
+	@Test
+	public void framesAreCachedByFilenameAndBlock() {
+		byte[] frame = new byte[FRAME];
+		frame[0]=1;
+		assertNull(cache.getFrame("f", MD5, 0));
+		cache.putFrame("f", MD5, 0, frame);
+		assertArrayEquals(frame, cache.getFrame("f", MD5, 0));
+		assertNull(cache.getFrame("g", MD5, 0));
+		assertNull(cache.getFrame("f", MD5, 1));
+		assertNull("raw bytes are cached apart", cache.getBlock("f", MD5, 0));
+		assertEquals(1, cache.getHits());
+		assertEquals(4, cache.getMisses());
+		assertEquals(FRAME, cache.getSize());
+	}
+
+	@Test
+	public void blocksAreOnlyReadInOnceTheyAreHot() {
+		assertFalse(cache.isHotBlock("f", MD5, 0, FRAME));
+		assertNull(cache.getBlock("f", MD5, 0));
+		assertFalse(cache.isHotBlock("f", MD5, 0, FRAME));
+		assertNull(cache.getBlock("f", MD5, 0));
+		assertTrue(cache.isHotBlock("f", MD5, 0, FRAME));
+		assertFalse("larger than the main cache", cache.isHotBlock("f", MD5, 0, (int) CAPACITY));
+
+		byte[] bytes = new byte[FRAME];
+		bytes[1]=7;
+		cache.putBlock("f", MD5, 0, bytes);
+		bytes[1]=8;
+		ByteBuffer first = cache.getBlock("f", MD5, 0);
+		assertTrue(first.isReadOnly());
+		assertEquals(7, first.get(1));
+		first.position(FRAME);
+		assertEquals("each caller gets its own position", 0, cache.getBlock("f", MD5, 0).position());
+	}
+
+	@Test
+	public void blocksOfFilesWithTheSameHashAreKeptApart() {
+		// e.g. two files whose CRC32C descriptors hash alike
+		byte[] f = new byte[FRAME];
+		f[0]=1;
+		byte[] g = new byte[FRAME];
+		g[0]=2;
+		cache.putBlock("f", MD5, 0, f);
+		cache.putBlock("g", MD5, 0, g);
+		assertEquals(1, cache.getBlock("f", MD5, 0).get(0));
+		assertEquals(2, cache.getBlock("g", MD5, 0).get(0));
+		assertEquals(2*FRAME, cache.getSize());
+	}
+
+	@Test
+	public void theWindowHoldsANewBlockUntilItIsRequestedAgain() {
+		// a window of 1% of the capacity would be smaller than a block
+		cache = new BlockCache(100*FRAME, 4*FRAME);
+		byte[] block = new byte[4*FRAME];
+		for(int b=0;b<30;b++) {
+			for(int r=0;r<3;r++) {
+				if(cache.getFrame("f", MD5, b)==null) cache.putFrame("f", MD5, b, block);
+			}
+		}
+		assertNull(cache.getFrame("f", MD5, 1000));
+		cache.putFrame("f", MD5, 1000, block);
+		assertNotNull("a block requested once more is still cached", cache.getFrame("f", MD5, 1000));
+		assertTrue(cache.getSize()<=100*FRAME);
+	}
+
+	@Test
+	public void aScanDoesNotPushOutPopularBlocks() {
+		for(int b=0;b<200;b++) {
+			for(int r=0;r<3;r++) request(b);
+		}
+		// blocks each downloaded once, e.g. by a peer working through a large file
+		for(int b=1000;b<3000;b++) {
+			assertFalse(request(b));
+			assertTrue(cache.getSize()<=CAPACITY);
+		}
+		assertTrue(cache.getRejections()>0);
+		for(int b=0;b<200;b++) {
+			assertTrue("block "+b, isCached(b));
+		}
+	}
+
+	@Test
+	public void frequentBlocksReplaceRareOnes() {
+		for(int b=0;b<300;b++) {
+			request(b);
+		}
+		assertEquals(0, cache.getEvictions());
+		for(int r=0;r<3;r++) request(5000);
+		// push it out of the window
+		for(int b=300;b<303;b++) {
+			request(b);
+		}
+		assertTrue(cache.getEvictions()>0);
+		assertTrue(isCached(5000));
+		assertTrue(cache.getSize()<=CAPACITY);
+	}
+
+	@Test
+	public void aSecondHitProtectsAnEntry() {
+		for(int b=0;b<300;b++) {
+			request(b);
+		}
+		// block 0 is hit in probation, so is protected
+		assertTrue(request(0));
+		// blocks more frequent than block 0 take the place of every other entry on probation
+		for(int b=1000;b<1300;b++) {
+			for(int r=0;r<3;r++) request(b);
+		}
+		assertTrue(cache.getEvictions()>=250);
+		assertFalse(isCached(1));
+		assertTrue(isCached(0));
+	}
+
+	@Test
+	public void nothingIsCachedWithNoCapacity() {
+		cache = new BlockCache(0, FRAME);
+		for(int r=0;r<3;r++) {
+			assertFalse(request(0));
+			cache.putBlock("f", MD5, 0, new byte[1]);
+			assertNull(cache.getBlock("f", MD5, 0));
+		}
+		assertFalse(cache.isHotBlock("f", MD5, 0, 1));
+		assertEquals(0, cache.getSize());
+		assertEquals(0, cache.getHits());
+	}
+
+	@Test
+	public void entriesLargerThanTheMainCacheAreIgnored() {
+		cache = new BlockCache(10*FRAME, FRAME);
+		cache.putFrame("f", MD5, 0, new byte[10*FRAME]);
+		cache.putBlock("f", MD5, 0, new byte[10*FRAME]);
+		assertEquals(0, cache.getSize());
+		assertNotNull(cache.toString());
+	}
+}
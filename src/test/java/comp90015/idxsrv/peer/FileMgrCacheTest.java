@@ -0,0 +1,74 @@
+package comp90015.idxsrv.peer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.filemgr.FileMgr;
+
+public class FileMgrCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileMgrCache fileMgrs;
+
+	private FileDescr flat;
+
+	private FileDescr merkle;
+
+	@Before
+	public void setUp() throws Exception {
+		byte[] content = new byte[100000];
+		new Random(1).nextBytes(content);
+		File file = new File(folder.getRoot(), "a.bin");
+		Files.write(file.toPath(), content);
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			flat = new FileDescr(raf);
+			merkle = new FileDescr(raf, FileDescr.DEFAULT_BLOCK_LENGTH, FileDescr.HASHMODE.MERKLE,
+					FileDescr.HASHALGORITHM.CRC32C, 1);
+		}
+		fileMgrs = new FileMgrCache(folder.getRoot().getPath(), 4, new IdxSrvConnectionPoolTest.QuietGUI());
+	}
+
+	@Test
+	public void registeredFilesAreHashedAsTheyWereShared() throws Exception {
+		fileMgrs.register("a.bin", merkle);
+		FileMgr fileMgr = fileMgrs.acquire("a.bin", merkle.getFileMd5());
+		assertEquals(FileDescr.HASHMODE.MERKLE, fileMgr.getFileDescr().getHashMode());
+		assertEquals(FileDescr.HASHALGORITHM.CRC32C, fileMgr.getFileDescr().getHashAlgorithm());
+		assertEquals(merkle.getFileMd5(), fileMgr.getFileDescr().getFileMd5());
+		assertSame(fileMgr, fileMgrs.acquire("a.bin", merkle.getFileMd5()));
+		fileMgrs.release(fileMgr);
+		fileMgrs.release(fileMgr);
+
+		// the same file asked for by another descriptor is hashed with the defaults, and cached apart
+		FileMgr defaults = fileMgrs.acquire("a.bin", flat.getFileMd5());
+		assertNotSame(fileMgr, defaults);
+		assertEquals(flat.getFileMd5(), defaults.getFileDescr().getFileMd5());
+		fileMgrs.release(defaults);
+		fileMgrs.close();
+	}
+
+	@Test
+	public void unregisteredFilesAreHashedWithTheDefaults() throws Exception {
+		fileMgrs.register("a.bin", merkle);
+		fileMgrs.unregister("a.bin", merkle.getFileMd5());
+		FileMgr fileMgr = fileMgrs.acquire("a.bin", merkle.getFileMd5());
+		assertEquals(FileDescr.HASHMODE.FLAT, fileMgr.getFileDescr().getHashMode());
+		assertEquals(flat.getFileMd5(), fileMgr.getFileDescr().getFileMd5());
+		fileMgrs.release(fileMgr);
+		fileMgrs.close();
+	}
+}
@@ -0,0 +1,168 @@
+package comp90015.idxsrv.peer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.AuthenticateReply;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.SessionReply;
+import comp90015.idxsrv.message.ShareReply;
+import comp90015.idxsrv.message.ShareRequest;
+import comp90015.idxsrv.message.WelcomeMsg;
+import comp90015.idxsrv.server.IndexMgr;
+import comp90015.idxsrv.server.Server;
+import comp90015.idxsrv.textgui.ISharerGUI;
+
+public class IdxSrvConnectionPoolTest {
+
+	private static final int TIMEOUT = 3000;
+
+	private Server server;
+
+	private int port;
+
+	private FileDescr fileDescr;
+
+	@Before
+	public void setUp() throws Exception {
+		File file = File.createTempFile("pooltest", ".bin");
+		file.deleteOnExit();
+		Files.write(file.toPath(), new byte[1000]);
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			fileDescr = new FileDescr(raf);
+		}
+		try(ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if(server!=null) {
+			server.interrupt();
+			server.join();
+		}
+	}
+
+	@Test
+	public void consecutivePeersDoNotWaitForIdleSessionOnDefaultServer() throws Exception {
+		server = new Server(port, InetAddress.getLoopbackAddress(), "welcome", ".", "server123", TIMEOUT,
+				IndexMgr.SEARCHMODE.SUBSTRING, false, 0, 0, Server.TRANSPORT.BLOCKING, null, 0, new QuietGUI());
+		server.start();
+		IdxSrvConnectionPool first = new IdxSrvConnectionPool(TIMEOUT, new QuietGUI());
+		IdxSrvConnectionPool second = new IdxSrvConnectionPool(TIMEOUT, new QuietGUI());
+		try {
+			share(first, "a.bin", 1);
+			long start = System.currentTimeMillis();
+			share(second, "b.bin", 2);
+			long elapsed = System.currentTimeMillis()-start;
+			assertTrue("second share waited "+elapsed+"ms", elapsed < TIMEOUT/2);
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void sessionsAreReusedOnNioServer() throws Exception {
+		server = new Server(port, InetAddress.getLoopbackAddress(), "welcome", ".", "server123", TIMEOUT,
+				IndexMgr.SEARCHMODE.SUBSTRING, false, 0, 0, Server.TRANSPORT.NIO, null, 0, new QuietGUI());
+		server.start();
+		IdxSrvConnectionPool first = new IdxSrvConnectionPool(TIMEOUT, new QuietGUI());
+		IdxSrvConnectionPool second = new IdxSrvConnectionPool(TIMEOUT, new QuietGUI());
+		try {
+			share(first, "a.bin", 1);
+			share(second, "a.bin", 2);
+			share(first, "b.bin", 1);
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void requestsThatWereSentAreNotRetried() throws Exception {
+		AtomicInteger connections = new AtomicInteger();
+		AtomicInteger requests = new AtomicInteger();
+		ServerSocket listener = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		Thread fake = new Thread(() -> {
+			// a server that grants a session, answers the first request, and fails on the next
+			while(!listener.isClosed()) {
+				try(Socket socket = listener.accept()) {
+					connections.incrementAndGet();
+					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+					Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+					out.write(new WelcomeMsg("welcome")+"\n");
+					out.flush();
+					in.readLine();
+					out.write(new AuthenticateReply(true)+"\n");
+					out.flush();
+					in.readLine();
+					out.write(new SessionReply(true)+"\n");
+					out.flush();
+					while(in.readLine()!=null && requests.incrementAndGet()==1) {
+						out.write(new ShareReply(1)+"\n");
+						out.flush();
+					}
+				} catch(IOException e) {
+					// closed
+				}
+			}
+		});
+		fake.start();
+		IdxSrvConnectionPool pool = new IdxSrvConnectionPool(TIMEOUT, new QuietGUI());
+		try {
+			share(pool, "a.bin", 1);
+			try {
+				share(pool, "b.bin", 1);
+				fail("expected the failed request to be reported");
+			} catch(IOException e) {
+				// the server may have acted on the request
+			}
+			assertEquals(2, requests.get());
+			assertEquals(1, connections.get());
+		} finally {
+			pool.close();
+			listener.close();
+			fake.join();
+		}
+	}
+
+	private void share(IdxSrvConnectionPool pool, String filename, int peerPort) throws Exception {
+		Message reply = pool.request(InetAddress.getLoopbackAddress(), port, "server123",
+				new ShareRequest(fileDescr, filename, "secret", peerPort));
+		assertEquals(ShareReply.class, reply.getClass());
+	}
+
+	static class QuietGUI implements ISharerGUI {
+		public void logInfo(String msg) {}
+		public void logWarn(String msg) {}
+		public void logError(String msg) {}
+		public void logDebug(String msg) {}
+		public void clearSearchHits() {}
+		public void clearShareRecords() {}
+		public void addSearchHit(String filename, SearchRecord searchRecord) {}
+		public void addShareRecord(String relativePathname, ShareRecord shareRecord) {}
+		public void updateShareRecord(String relativePathname, ShareRecord shareRecord) {}
+	}
+}
@@ -0,0 +1,133 @@
+package comp90015.idxsrv.peer;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.message.BlockReply;
+import comp90015.idxsrv.message.BlockRequest;
+import comp90015.idxsrv.message.Goodbye;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.RawBlockReply;
+import comp90015.idxsrv.message.RawBlockRequest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Compares the throughput of sending a file's blocks over a loopback connection as raw
+ * blocks copied through the heap ({@link Upload.UPLOADMODE#COPY}), as raw blocks sent with
+ * transferTo ({@link Upload.UPLOADMODE#ZEROCOPY}), and as Base64 {@link BlockReply}
+ * messages, for a file of a given size in megabytes (256 by default) with 16MB blocks.
+ * The block cache is off, so every block is read from the file. For each, the garbage
+ * collections and the collectors' time, from {@link GarbageCollectorMXBean}, are printed
+ * with the megabytes per second. Run with
+ * <code>java -cp target/classes:target/test-classes:&lt;deps&gt;
+ * comp90015.idxsrv.peer.UploadBenchmark [megabytes] [rounds]</code>.
+ */
+public class UploadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        File dir = Files.createTempDirectory("upload-bench").toFile();
+        File source = new File(dir, "source.bin");
+        byte[] chunk = new byte[1024 * 1024];
+        Random random = new Random(1);
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            for (int m = 0; m < megabytes; m++) {
+                random.nextBytes(chunk);
+                raf.write(chunk);
+            }
+        }
+        FileDescr fileDescr;
+        try (RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+            fileDescr = new FileDescr(raf);
+        }
+
+        for (String mode : new String[]{"copy", "zerocopy", "base64"}) {
+            Upload.UPLOADMODE uploadMode = mode.equals("zerocopy") ? Upload.UPLOADMODE.ZEROCOPY : Upload.UPLOADMODE.COPY;
+            LinkedBlockingDeque<Socket> incomingConnections = new LinkedBlockingDeque<Socket>();
+            FileMgrCache fileMgrs = new FileMgrCache(dir.getPath(), 4, new IdxSrvConnectionPoolTest.QuietGUI());
+            Upload upload = new Upload(incomingConnections, fileMgrs, uploadMode, new BlockCache(0),
+                    new IdxSrvConnectionPoolTest.QuietGUI());
+            upload.start();
+            // a server socket channel, as IOThread binds, so that accepted sockets have a channel to transfer to
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                for (int round = 0; round <= rounds; round++) { // the first round warms up
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort())) {
+                        incomingConnections.add(server.accept().socket());
+                        BlockStream stream = new BlockStream(socket);
+                        long collections = collections();
+                        long collectionMillis = collectionMillis();
+                        long start = System.nanoTime();
+                        long bytes = download(stream, source.getName(), fileDescr, mode.equals("base64"));
+                        long elapsed = System.nanoTime() - start;
+                        stream.writeMsg(new Goodbye());
+                        if (round > 0) {
+                            System.out.printf("%-8s %5d MB in %5d ms, %6.1f MB/s, %3d collections in %4d ms%n", mode,
+                                    bytes >> 20, elapsed / 1000000, bytes / (elapsed / 1e9) / (1 << 20),
+                                    collections() - collections, collectionMillis() - collectionMillis);
+                        }
+                    }
+                }
+            }
+            upload.interrupt();
+            upload.join();
+            fileMgrs.close();
+        }
+        source.delete();
+        dir.delete();
+    }
+
+    /**
+     * Request every block of the file in turn, as a downloading peer does.
+     * @return the number of block bytes received
+     */
+    private static long download(BlockStream stream, String filename, FileDescr fileDescr, boolean base64)
+            throws Exception {
+        byte[] raw = new byte[fileDescr.getBlockLength()];
+        long bytes = 0;
+        for (int b = 0; b < fileDescr.getNumBlocks(); b++) {
+            if (base64) {
+                stream.writeMsg(new BlockRequest(filename, fileDescr.getFileMd5(), b));
+                Message msg = stream.readMsg();
+                if (!(msg instanceof BlockReply)) throw new IOException("Unexpected reply " + msg);
+                bytes += Base64.getDecoder().decode(((BlockReply) msg).bytes).length;
+            } else {
+                stream.writeMsg(new RawBlockRequest(filename, fileDescr.getFileMd5(), b));
+                Message msg = stream.readMsg();
+                if (!(msg instanceof RawBlockReply)) throw new IOException("Unexpected reply " + msg);
+                int length = ((RawBlockReply) msg).length;
+                stream.readFully(raw, 0, length);
+                bytes += length;
+            }
+        }
+        return bytes;
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
@@ -0,0 +1,170 @@
+package comp90015.idxsrv.peer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.filemgr.FileMgr;
+import comp90015.idxsrv.message.BlockProofRequest;
+import comp90015.idxsrv.message.BlockRequest;
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.Goodbye;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.RawBlockReply;
+import comp90015.idxsrv.message.RawBlockRequest;
+
+public class UploadTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LinkedBlockingDeque<Socket> incomingConnections;
+
+	private ServerSocket serverSocket;
+
+	private FileMgrCache fileMgrs;
+
+	private Upload upload;
+
+	private byte[] content;
+
+	@Before
+	public void setUp() throws Exception {
+		content = new byte[100000];
+		new Random(1).nextBytes(content);
+		Files.write(new File(folder.getRoot(), "a.bin").toPath(), content);
+		incomingConnections = new LinkedBlockingDeque<Socket>();
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		fileMgrs = new FileMgrCache(folder.getRoot().getPath(), 4, new IdxSrvConnectionPoolTest.QuietGUI());
+		upload = new Upload(incomingConnections, fileMgrs, new IdxSrvConnectionPoolTest.QuietGUI());
+		upload.start();
+		Thread acceptor = new Thread(() -> {
+			try {
+				while(true) incomingConnections.add(serverSocket.accept());
+			} catch (Exception e) {
+				// closed
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		serverSocket.close();
+		upload.interrupt();
+		upload.join();
+		fileMgrs.close();
+	}
+
+	private BlockStream connect() throws Exception {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+		socket.setSoTimeout(5000);
+		return new BlockStream(socket);
+	}
+
+	@Test
+	public void unavailableBlocksAreRefusedWithAnError() throws Exception {
+		String fileMd5;
+		try(RandomAccessFile raf = new RandomAccessFile(new File(folder.getRoot(), "a.bin"), "r")) {
+			fileMd5 = new FileDescr(raf).getFileMd5();
+		}
+		BlockStream stream = connect();
+		try {
+			stream.writeMsg(new RawBlockRequest("a.bin", "0123", 0));
+			Message msg = stream.readMsg();
+			assertEquals(ErrorMsg.class, msg.getClass());
+			assertEquals(Upload.BLOCK_UNAVAILABLE, ((ErrorMsg) msg).msg);
+
+			stream.writeMsg(new BlockRequest("a.bin", "0123", 0));
+			msg = stream.readMsg();
+			assertEquals(ErrorMsg.class, msg.getClass());
+			assertEquals(Upload.BLOCK_UNAVAILABLE, ((ErrorMsg) msg).msg);
+
+			// the connection is still usable for blocks that are available
+			stream.writeMsg(new RawBlockRequest("a.bin", fileMd5, 0));
+			msg = stream.readMsg();
+			assertEquals(RawBlockReply.class, msg.getClass());
+			byte[] bytes = new byte[((RawBlockReply) msg).length];
+			stream.readFully(bytes);
+			assertArrayEquals(content, bytes);
+			stream.writeMsg(new Goodbye());
+		} finally {
+			stream.close();
+		}
+	}
+
+	@Test
+	public void missingFilesAreRefusedWithAnError() throws Exception {
+		BlockStream stream = connect();
+		try {
+			Message[] requests = {
+					new RawBlockRequest("missing.bin", "0123", 0),
+					new BlockRequest("missing.bin", "0123", 0),
+					new BlockProofRequest("missing.bin", "0123", 0),
+					new RawBlockRequest("../a.bin", "0123", 0)
+			};
+			for(Message request : requests) {
+				stream.writeMsg(request);
+				Message msg = stream.readMsg();
+				assertEquals(ErrorMsg.class, msg.getClass());
+				assertEquals(Upload.BLOCK_UNAVAILABLE, ((ErrorMsg) msg).msg);
+			}
+
+			// the connection is still usable for files the uploader has
+			String fileMd5;
+			try(RandomAccessFile raf = new RandomAccessFile(new File(folder.getRoot(), "a.bin"), "r")) {
+				fileMd5 = new FileDescr(raf).getFileMd5();
+			}
+			stream.writeMsg(new RawBlockRequest("a.bin", fileMd5, 0));
+			Message msg = stream.readMsg();
+			assertEquals(RawBlockReply.class, msg.getClass());
+			byte[] bytes = new byte[((RawBlockReply) msg).length];
+			stream.readFully(bytes);
+			assertArrayEquals(content, bytes);
+			stream.writeMsg(new Goodbye());
+		} finally {
+			stream.close();
+		}
+	}
+
+	@Test
+	public void downloadLeavesUploaderWithoutTheFile() throws Exception {
+		// a descriptor of other content under the same name, which the uploader does not have
+		File other = folder.newFile("other.bin");
+		byte[] otherContent = new byte[1000];
+		new Random(2).nextBytes(otherContent);
+		Files.write(other.toPath(), otherContent);
+		FileDescr fileDescr;
+		try(RandomAccessFile raf = new RandomAccessFile(other, "r")) {
+			fileDescr = new FileDescr(raf);
+		}
+		File target = new File(folder.newFolder("download"), "a.bin");
+		FileMgr fileMgr = new FileMgr(target.getPath(), fileDescr);
+		Download download = new Download(InetAddress.getLoopbackAddress().getHostAddress(),
+				serverSocket.getLocalPort(), "a.bin", new int[] {0}, fileMgr, new AtomicBoolean(false),
+				new IdxSrvConnectionPoolTest.QuietGUI(), 5000);
+		download.start();
+		download.join(5000);
+		assertFalse("download kept asking for an unavailable block", download.isAlive());
+		assertFalse(fileMgr.isComplete());
+		fileMgr.closeFile();
+	}
+}
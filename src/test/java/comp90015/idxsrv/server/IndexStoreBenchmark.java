@@ -0,0 +1,101 @@
+package comp90015.idxsrv.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+/**
+ * Measures how long the index takes to recover from its store, after a
+ * given number of shares (1M by default) have been logged and checkpointed.
+ * Run with <code>java -Xmx4g -cp target/classes:target/test-classes:&lt;deps&gt;
+ * comp90015.idxsrv.server.IndexStoreBenchmark [entries]</code>; with a smaller
+ * heap, recovery of 1M entries is dominated by garbage collection.
+ * @author aaron
+ *
+ */
+public class IndexStoreBenchmark {
+
+	private static final int BATCH = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int entries = args.length>0 ? Integer.parseInt(args[0]) : 1000000;
+		Path dir = Files.createTempDirectory("index-bench");
+		File file = File.createTempFile("index-bench", ".bin");
+		Files.write(file.toPath(), new byte[1024]);
+		FileDescr fileDescr;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			fileDescr = new FileDescr(raf);
+		}
+
+		IndexMgr indexMgr = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store(dir));
+		long start = System.nanoTime();
+		FileDescr[] fileDescrs = new FileDescr[BATCH];
+		String[] filenames = new String[BATCH];
+		String[] secrets = new String[BATCH];
+		for(int i=0;i<entries;i+=BATCH) {
+			int n = Math.min(BATCH, entries-i);
+			if(n<BATCH) {
+				fileDescrs = new FileDescr[n];
+				filenames = new String[n];
+				secrets = new String[n];
+			}
+			for(int j=0;j<n;j++) {
+				fileDescrs[j]=fileDescr;
+				filenames[j]="file-"+(i+j)+".bin";
+				secrets[j]="secret";
+			}
+			indexMgr.share("10.0.0.1", 3200, fileDescrs, filenames, secrets);
+		}
+		System.out.printf("logged %d shares in %d ms%n", entries, (System.nanoTime()-start)/1000000);
+		awaitSnapshot(dir);
+		indexMgr.close();
+		System.out.printf("store is %d KB: %s%n", size(dir)/1024, list(dir));
+
+		System.gc();
+		start = System.nanoTime();
+		IndexMgr recovered = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store(dir));
+		long elapsed = System.nanoTime()-start;
+		int found=0;
+		for(int i=0;i<entries;i++) {
+			found+=recovered.numSharers("file-"+i+".bin", fileDescr.getFileMd5());
+		}
+		System.out.printf("recovered %d entries in %d ms%n", found, elapsed/1000000);
+		recovered.close();
+
+		try(Stream<Path> files = Files.list(dir)) {
+			for(Path path : (Iterable<Path>) files::iterator) Files.delete(path);
+		}
+		Files.delete(dir);
+		file.delete();
+	}
+
+	private static IndexStore store(Path dir) throws IOException {
+		return new IndexStore(dir.toString(), new IndexStoreTest.QuietLogger());
+	}
+
+	/**
+	 * Wait for a snapshot being written in the background to be renamed into place.
+	 */
+	private static void awaitSnapshot(Path dir) throws Exception {
+		while(list(dir).contains(".tmp")) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static String list(Path dir) throws IOException {
+		try(Stream<Path> files = Files.list(dir)) {
+			return files.map(p -> p.getFileName().toString()).sorted().reduce((a, b) -> a+" "+b).orElse("");
+		}
+	}
+
+	private static long size(Path dir) throws IOException {
+		try(Stream<Path> files = Files.list(dir)) {
+			return files.mapToLong(p -> p.toFile().length()).sum();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+public class IndexStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	private FileDescr a;
+
+	private FileDescr b;
+
+	private FileDescr c;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.newFolder("index").toPath();
+		a = descr("a");
+		b = descr("b");
+		c = descr("c");
+	}
+
+	private FileDescr descr(String content) throws Exception {
+		File file = folder.newFile(content+".bin");
+		Files.write(file.toPath(), content.getBytes());
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			return new FileDescr(raf);
+		}
+	}
+
+	private IndexStore store() throws IOException {
+		return new IndexStore(dir.toString(), new QuietLogger());
+	}
+
+	private static boolean shared(IndexMgr indexMgr, String filename, FileDescr fileDescr) {
+		return indexMgr.numSharers(filename, fileDescr.getFileMd5())==1;
+	}
+
+	@Test
+	public void sharesAndDropsSurviveRestart() throws Exception {
+		IndexMgr indexMgr = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store());
+		indexMgr.share("1.1.1.1", 1, a, "a.bin", "s");
+		indexMgr.share("1.1.1.1", 1, b, "b.bin", "s");
+		indexMgr.drop("1.1.1.1", 1, "a.bin", a.getFileMd5(), "s");
+		indexMgr.close();
+
+		IndexMgr recovered = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store());
+		assertFalse(shared(recovered, "a.bin", a));
+		assertTrue(shared(recovered, "b.bin", b));
+		assertEquals(1, recovered.search(new String[] {"bin"}, 10).size());
+		recovered.close();
+	}
+
+	@Test
+	public void tornTailOfLastLogIsTruncated() throws Exception {
+		IndexMgr indexMgr = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store());
+		indexMgr.share("1.1.1.1", 1, a, "a.bin", "s");
+		indexMgr.close();
+		Path log = dir.resolve("index-0.log");
+		long length = Files.size(log);
+		// a record header promising more bytes than were written
+		Files.write(log, new byte[] {0, 0, 1, 0, 1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+
+		IndexMgr recovered = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store());
+		assertTrue(shared(recovered, "a.bin", a));
+		assertEquals(length, Files.size(log));
+		recovered.share("1.1.1.1", 1, b, "b.bin", "s");
+		recovered.close();
+
+		IndexMgr again = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store());
+		assertTrue(shared(again, "a.bin", a));
+		assertTrue(shared(again, "b.bin", b));
+		again.close();
+	}
+
+	@Test
+	public void crcMismatchAtEndOfLastLogDropsOnlyThatRecord() throws Exception {
+		IndexMgr indexMgr = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store());
+		indexMgr.share("1.1.1.1", 1, a, "a.bin", "s");
+		indexMgr.share("1.1.1.1", 1, b, "b.bin", "s");
+		indexMgr.close();
+		flipLastByte(dir.resolve("index-0.log"));
+
+		IndexMgr recovered = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store());
+		assertTrue(shared(recovered, "a.bin", a));
+		assertFalse(shared(recovered, "b.bin", b));
+		recovered.close();
+	}
+
+	@Test
+	public void corruptEarlierLogFailsRecovery() throws Exception {
+		IndexStore store = store();
+		IndexMgr indexMgr = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store);
+		indexMgr.share("1.1.1.1", 1, a, "a.bin", "s");
+		indexMgr.share("1.1.1.1", 1, b, "b.bin", "s");
+		assertTrue(store.rollLog());
+		indexMgr.share("1.1.1.1", 1, c, "c.bin", "s");
+		indexMgr.close();
+		flipLastByte(dir.resolve("index-0.log"));
+
+		try {
+			new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store());
+			fail("recovered over a gap in the log");
+		} catch (IOException e) {
+			// expected
+		}
+		// the earlier log is left as it was, for inspection
+		assertTrue(Files.size(dir.resolve("index-0.log"))>0);
+	}
+
+	@Test
+	public void snapshotPlusLogsRecoverTheIndex() throws Exception {
+		IndexStore store = store();
+		IndexMgr indexMgr = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store);
+		indexMgr.share("1.1.1.1", 1, a, "a.bin", "s");
+		indexMgr.share("1.1.1.1", 1, b, "b.bin", "s");
+		assertTrue(store.rollLog());
+		ArrayList<IndexElement> elements = new ArrayList<IndexElement>();
+		elements.addAll(indexMgr.lookup("a.bin", a.getFileMd5()));
+		elements.addAll(indexMgr.lookup("b.bin", b.getFileMd5()));
+		store.writeSnapshot(elements);
+		indexMgr.share("1.1.1.1", 1, c, "c.bin", "s");
+		indexMgr.drop("1.1.1.1", 1, "a.bin", a.getFileMd5(), "s");
+		indexMgr.close();
+		assertFalse(Files.exists(dir.resolve("index-0.log")));
+		assertTrue(Files.exists(dir.resolve("index-1.snapshot")));
+
+		IndexMgr recovered = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store());
+		assertFalse(shared(recovered, "a.bin", a));
+		assertTrue(shared(recovered, "b.bin", b));
+		assertTrue(shared(recovered, "c.bin", c));
+		recovered.close();
+	}
+
+	@Test
+	public void failedSyncIsReportedAndSticks() throws Exception {
+		IndexStore store = store();
+		IndexMgr indexMgr = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN, store);
+		indexMgr.share("1.1.1.1", 1, a, "a.bin", "s");
+		store.close(); // the log channel is closed, so the next write fails
+		try {
+			indexMgr.share("1.1.1.1", 1, b, "b.bin", "s");
+			fail("share acknowledged without being durable");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			indexMgr.drop("1.1.1.1", 1, "a.bin", a.getFileMd5(), "s");
+			fail("drop acknowledged after the log failed");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static void flipLastByte(Path file) throws IOException {
+		byte[] bytes = Files.readAllBytes(file);
+		bytes[bytes.length-1]^=0xFF;
+		Files.write(file, bytes);
+	}
+
+	static class QuietLogger implements ITerminalLogger {
+		public void logInfo(String msg) {}
+		public void logWarn(String msg) {}
+		public void logError(String msg) {}
+		public void logDebug(String msg) {}
+	}
+}
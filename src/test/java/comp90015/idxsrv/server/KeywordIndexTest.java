@@ -0,0 +1,99 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+public class KeywordIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private IndexElement element(String filename, String content) throws Exception {
+		File file = folder.newFile();
+		Files.write(file.toPath(), content.getBytes());
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			return new IndexElement("1.1.1.1", 1, new FileDescr(raf), filename, "s");
+		}
+	}
+
+	@Test
+	public void tokenizeSplitsOnNonAlphanumericsAndLowerCases() {
+		assertArrayEquals(new String[] {"holiday", "photos", "beach", "01", "jpg"},
+				KeywordIndex.tokenize("Holiday-Photos/beach_01.JPG"));
+		assertArrayEquals(new String[] {"a", "b"}, KeywordIndex.tokenize("a.A.b"));
+		assertArrayEquals(new String[] {"café", "2"}, KeywordIndex.tokenize("Café 2"));
+		assertEquals(0, KeywordIndex.tokenize("-_. ").length);
+		assertArrayEquals(new String[] {"beach", "photo"},
+				KeywordIndex.tokenize(new String[] {"beach", "photo.beach", "--"}));
+	}
+
+	@Test
+	public void searchIntersectsPostingLists() throws Exception {
+		KeywordIndex index = new KeywordIndex();
+		IndexElement both = element("beach-photo.jpg", "1");
+		IndexElement beach = element("beach.txt", "2");
+		IndexElement photo = element("photo.jpg", "3");
+		index.add(both);
+		index.add(beach);
+		index.add(photo);
+
+		ArrayList<IndexElement> hits = index.search(new String[] {"photo", "beach"}, 10);
+		assertEquals(1, hits.size());
+		assertTrue(hits.contains(both));
+		assertEquals(2, index.search(new String[] {"jpg"}, 10).size());
+		assertEquals(0, index.search(new String[] {"beach", "missing"}, 10).size());
+		// tokens match whole, not part of a token
+		assertEquals(0, index.search(new String[] {"eac"}, 10).size());
+	}
+
+	@Test
+	public void searchReturnsOneElementPerFileUpToMaxhits() throws Exception {
+		KeywordIndex index = new KeywordIndex();
+		IndexElement first = element("song.mp3", "same");
+		IndexElement copy = element("song-copy.mp3", "same");
+		index.add(first);
+		index.add(copy);
+		index.add(element("other-song.mp3", "different"));
+		assertEquals(2, index.search(new String[] {"song"}, 10).size());
+		assertEquals(1, index.search(new String[] {"song"}, 1).size());
+	}
+
+	@Test
+	public void removedElementsAreNotFound() throws Exception {
+		KeywordIndex index = new KeywordIndex();
+		IndexElement a = element("a-b.txt", "1");
+		IndexElement b = element("b.txt", "2");
+		index.add(a);
+		index.add(b);
+		index.remove(a);
+		assertEquals(0, index.search(new String[] {"a"}, 10).size());
+		ArrayList<IndexElement> hits = index.search(new String[] {"b", "txt"}, 10);
+		assertEquals(1, hits.size());
+		assertTrue(hits.contains(b));
+	}
+
+	@Test
+	public void indexMgrSearchesSubstringsByDefault() throws Exception {
+		IndexMgr indexMgr = new IndexMgr();
+		IndexElement beach = element("beach.jpg", "1");
+		indexMgr.share(beach.ip, beach.port, beach.fileDescr, beach.filename, beach.secret);
+		assertEquals(1, indexMgr.search(new String[] {"eac"}, 10).size());
+
+		IndexMgr tokenMgr = new IndexMgr(IndexMgr.SEARCHMODE.TOKEN);
+		tokenMgr.share(beach.ip, beach.port, beach.fileDescr, beach.filename, beach.secret);
+		assertEquals(0, tokenMgr.search(new String[] {"eac"}, 10).size());
+		assertEquals(1, tokenMgr.search(new String[] {"beach"}, 10).size());
+	}
+}
@@ -0,0 +1,78 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+public class RankedHitsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private IndexElement element(String filename, String content) throws Exception {
+		File file = folder.newFile();
+		Files.write(file.toPath(), content.getBytes());
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			return new IndexElement("1.1.1.1", 1, new FileDescr(raf), filename, "s");
+		}
+	}
+
+	private static ArrayList<String> filenames(ArrayList<IndexElement> hits) {
+		ArrayList<String> filenames = new ArrayList<String>();
+		for(IndexElement hit : hits) filenames.add(hit.filename);
+		return filenames;
+	}
+
+	@Test
+	public void moreSpecificFilenamesRankFirst() throws Exception {
+		RankedHits ranked = new RankedHits(new String[] {"beach"}, 0);
+		ranked.offer(element("beach-holiday-2019-photos.zip", "1"));
+		ranked.offer(element("beach.jpg", "2"));
+		ranked.offer(element("beach-photos.zip", "3"));
+		assertEquals(Arrays.asList("beach.jpg", "beach-photos.zip", "beach-holiday-2019-photos.zip"),
+				filenames(ranked.hits()));
+	}
+
+	@Test
+	public void betterSeededFilesRankFirst() throws Exception {
+		IndexElement seeded = element("beach-a.jpg", "1");
+		IndexElement single = element("beach-b.jpg", "2");
+		seeded.sharers = new HashSet<IndexElement>(Arrays.asList(seeded, element("x", "1"), element("y", "1")));
+		RankedHits ranked = new RankedHits(new String[] {"beach"}, 0);
+		ranked.offer(single);
+		ranked.offer(seeded);
+		assertEquals(Arrays.asList("beach-a.jpg", "beach-b.jpg"), filenames(ranked.hits()));
+	}
+
+	@Test
+	public void oneHitPerFileWithItsBestFilename() throws Exception {
+		RankedHits ranked = new RankedHits(new String[] {"beach"}, 0);
+		ranked.offer(element("old-beach-copy.jpg", "same"));
+		ranked.offer(element("beach.jpg", "same"));
+		ranked.offer(element("beach-backup.jpg", "same"));
+		assertEquals(Arrays.asList("beach.jpg"), filenames(ranked.hits()));
+	}
+
+	@Test
+	public void onlyTheBestMaxhitsAreKept() throws Exception {
+		RankedHits ranked = new RankedHits(new String[] {"a"}, 2);
+		for(int i=1;i<=6;i++) {
+			// longer names score less
+			ranked.offer(element("a"+"-".repeat(i), Integer.toString(i)));
+		}
+		// a file that drops out of the heap may come back under a better name
+		ranked.offer(element("a", "6"));
+		assertEquals(Arrays.asList("a", "a-"), filenames(ranked.hits()));
+	}
+}
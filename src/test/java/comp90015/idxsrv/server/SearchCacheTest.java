@@ -0,0 +1,86 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class SearchCacheTest {
+
+	private static String[] kw(String... keywords) {
+		return keywords;
+	}
+
+	private static String cache(SearchCache cache, String[] keywords, String reply) {
+		String key = cache.key(keywords, 10);
+		cache.put(key, keywords, reply, cache.version());
+		return key;
+	}
+
+	@Test
+	public void tokenEntryIsInvalidatedByMatchingFilenameOnly() {
+		SearchCache cache = new SearchCache(10, IndexMgr.SEARCHMODE.TOKEN);
+		String key = cache(cache, kw("beach", "photo"), "r");
+		cache.invalidate("Holiday-beach.jpg");
+		assertEquals("r", cache.get(key));
+		cache.invalidate("photo_of_the_Beach.png");
+		assertNull(cache.get(key));
+		assertEquals(1, cache.getInvalidations());
+	}
+
+	@Test
+	public void keywordOrderAndCaseShareAnEntry() {
+		SearchCache cache = new SearchCache(10, IndexMgr.SEARCHMODE.TOKEN);
+		cache(cache, kw("beach", "photo"), "r");
+		assertEquals("r", cache.get(cache.key(kw("photo", "beach"), 10)));
+		assertNull(cache.get(cache.key(kw("photo", "beach"), 11)));
+	}
+
+	@Test
+	public void keywordsWithoutTokensAreInvalidatedAsSubstrings() {
+		SearchCache cache = new SearchCache(10, IndexMgr.SEARCHMODE.TOKEN);
+		String dash = cache(cache, kw("-"), "dash");
+		String underscore = cache(cache, kw("_"), "underscore");
+		cache.invalidate("holiday-beach.jpg");
+		assertNull(cache.get(dash));
+		assertEquals("underscore", cache.get(underscore));
+		cache.invalidate("beach_01.jpg");
+		assertNull(cache.get(underscore));
+	}
+
+	@Test
+	public void substringEntryIsInvalidatedByAnyContainingFilename() {
+		SearchCache cache = new SearchCache(10, IndexMgr.SEARCHMODE.SUBSTRING);
+		String key = cache(cache, kw("eac"), "r");
+		cache.invalidate("other.txt");
+		assertEquals("r", cache.get(key));
+		cache.invalidate("beach.jpg");
+		assertNull(cache.get(key));
+	}
+
+	@Test
+	public void replyComputedDuringChangeIsNotCached() {
+		SearchCache cache = new SearchCache(10, IndexMgr.SEARCHMODE.TOKEN);
+		String[] keywords = kw("beach");
+		String key = cache.key(keywords, 10);
+		long version = cache.version();
+		cache.invalidate("unrelated.txt");
+		cache.put(key, keywords, "stale", version);
+		assertNull(cache.get(key));
+	}
+
+	@Test
+	public void leastRecentlyUsedEntryIsEvicted() {
+		SearchCache cache = new SearchCache(2, IndexMgr.SEARCHMODE.TOKEN);
+		String a = cache(cache, kw("a"), "a");
+		String b = cache(cache, kw("b"), "b");
+		cache.get(a);
+		String c = cache(cache, kw("c"), "c");
+		assertEquals("a", cache.get(a));
+		assertNull(cache.get(b));
+		assertEquals("c", cache.get(c));
+		// the evicted entry is no longer registered for invalidation
+		cache.invalidate("b.txt");
+		assertEquals(0, cache.getInvalidations());
+	}
+}
@@ -0,0 +1,174 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import comp90015.idxsrv.message.AuthenticateRequest;
+import comp90015.idxsrv.message.ErrorMsg;
+import comp90015.idxsrv.message.Message;
+import comp90015.idxsrv.message.MessageFactory;
+import comp90015.idxsrv.message.SearchReply;
+import comp90015.idxsrv.message.SearchRequest;
+import comp90015.idxsrv.message.SessionReply;
+import comp90015.idxsrv.message.SessionRequest;
+import comp90015.idxsrv.textgui.ITerminalLogger;
+
+public class SelectorThreadTest {
+
+	private Server server;
+
+	private int port;
+
+	@Before
+	public void setUp() throws Exception {
+		try(ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		server = new Server(port, InetAddress.getLoopbackAddress(), "welcome", ".", "server123", 5000,
+				IndexMgr.SEARCHMODE.SUBSTRING, false, 0, 0, Server.TRANSPORT.NIO, null, 0, new QuietLogger());
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.interrupt();
+		server.join();
+	}
+
+	@Test
+	public void failedRequestClosesOnlyItsConnection() throws Exception {
+		try(Client bad = new Client(); Client good = new Client()) {
+			bad.send("{\"_class\":\"comp90015.idxsrv.message.SearchRequest\",\"maxhits\":5}");
+			assertEquals(ErrorMsg.class, bad.receive().getClass());
+			assertNull(bad.in.readLine());
+
+			good.send(new SearchRequest(5, new String[] {"x"}).toString());
+			assertEquals(SearchReply.class, good.receive().getClass());
+		}
+	}
+
+	@Test
+	public void pipelinedSessionRequestsAreRepliedInOrder() throws Exception {
+		try(Client client = new Client()) {
+			client.send(new SessionRequest().toString());
+			assertTrue(((SessionReply) client.receive()).success);
+			StringBuilder requests = new StringBuilder();
+			for(int i=1;i<=20;i++) {
+				requests.append(new SearchRequest(i, new String[] {"x"+i}).toString()).append('\n');
+			}
+			client.out.write(requests.toString().getBytes(StandardCharsets.UTF_8));
+			client.out.flush();
+			for(int i=1;i<=20;i++) {
+				assertEquals(SearchReply.class, client.receive().getClass());
+			}
+		}
+	}
+
+	@Test
+	public void overlongLineIsRefused() throws Exception {
+		try(Client client = new Client()) {
+			byte[] line = new byte[17*1024*1024];
+			Arrays.fill(line, (byte) 'x');
+			try {
+				client.out.write(line);
+				client.out.flush();
+			} catch (IOException e) {
+				// the server may close the connection before everything is written
+			}
+			assertEquals(ErrorMsg.class, client.receive().getClass());
+		}
+	}
+
+	@Test
+	public void failedAcceptsKeepTheServerSocketOpen() throws Exception {
+		int otherPort;
+		try(ServerSocket socket = new ServerSocket(0)) {
+			otherPort = socket.getLocalPort();
+		}
+		AtomicInteger failures = new AtomicInteger();
+		SelectorThread selector = new SelectorThread(otherPort, server, 5000, Runnable::run, new QuietLogger()) {
+			@Override
+			SocketChannel acceptChannel() throws IOException {
+				if(failures.incrementAndGet()<=3) {
+					throw new IOException("Too many open files");
+				}
+				return super.acceptChannel();
+			}
+		};
+		selector.start();
+		try {
+			// the connection waits in the backlog until an accept succeeds
+			try(Client client = new Client(otherPort)) {
+				client.send(new SearchRequest(5, new String[] {"x"}).toString());
+				assertEquals(SearchReply.class, client.receive().getClass());
+			}
+			assertTrue(failures.get()>3);
+			try(Client client = new Client(otherPort)) {
+				client.send(new SearchRequest(5, new String[] {"y"}).toString());
+				assertEquals(SearchReply.class, client.receive().getClass());
+			}
+		} finally {
+			selector.interrupt();
+			selector.shutdown();
+			selector.join();
+		}
+	}
+
+	private class Client implements AutoCloseable {
+		final Socket socket;
+		final BufferedReader in;
+		final OutputStream out;
+
+		Client() throws Exception {
+			this(port);
+		}
+
+		Client(int port) throws Exception {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = socket.getOutputStream();
+			socket.setSoTimeout(5000);
+			receive(); // welcome
+			send(new AuthenticateRequest("server123").toString());
+			receive();
+		}
+
+		void send(String line) throws Exception {
+			out.write((line+"\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+
+		Message receive() throws Exception {
+			return (Message) MessageFactory.deserialize(in.readLine());
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	static class QuietLogger implements ITerminalLogger {
+		public void logInfo(String msg) {}
+		public void logWarn(String msg) {}
+		public void logError(String msg) {}
+		public void logDebug(String msg) {}
+	}
+}
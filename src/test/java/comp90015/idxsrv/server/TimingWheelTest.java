@@ -0,0 +1,136 @@
+package comp90015.idxsrv.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import comp90015.idxsrv.filemgr.FileDescr;
+
+public class TimingWheelTest {
+
+	private static final long TICK = 10;
+
+	/**
+	 * The span of each level in ticks, from level 0 up, and beyond the top level.
+	 */
+	private static final long[] SPANS = {64, 64*64, 64*64*64, 64L*64*64*64};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Advance a tick at a time until the item comes out, as the lease thread does.
+	 * @return the tick it came out on
+	 */
+	private static long expiryTick(TimingWheel<String> wheel, long startTick, long limitTick) {
+		for(long tick=startTick+1;tick<=limitTick;tick++) {
+			ArrayList<String> expired = wheel.advance(tick*TICK);
+			if(!expired.isEmpty()) {
+				return tick;
+			}
+		}
+		return -1;
+	}
+
+	@Test
+	public void itemsExpireOnTheirTickAtEveryLevelBoundary() {
+		for(long span : SPANS) {
+			for(long delta : new long[] {span-1, span, span+1}) {
+				// start part way through the levels, so the boundaries are not aligned with zero
+				long start = 1000003;
+				TimingWheel<String> wheel = new TimingWheel<String>(TICK, start*TICK);
+				wheel.add("item", (start+delta)*TICK);
+				assertEquals(1, wheel.size());
+				if(delta>(1<<20)) {
+					// too far to step a tick at a time, but must not come out early
+					assertTrue(wheel.advance((start+delta-1)*TICK).isEmpty());
+					assertEquals(Arrays.asList("item"), wheel.advance((start+delta)*TICK));
+				} else {
+					assertEquals("delta "+delta, start+delta, expiryTick(wheel, start, start+delta+1));
+				}
+				assertEquals(0, wheel.size());
+			}
+		}
+	}
+
+	@Test
+	public void itemsAtTheSameDeadlineExpireTogether() {
+		TimingWheel<String> wheel = new TimingWheel<String>(TICK, 0);
+		wheel.add("a", 64*TICK);
+		wheel.add("b", 64*TICK+TICK-1); // within the same tick
+		wheel.add("c", 65*TICK);
+		assertTrue(wheel.advance(63*TICK).isEmpty());
+		List<String> expired = wheel.advance(64*TICK);
+		assertEquals(2, expired.size());
+		assertTrue(expired.containsAll(Arrays.asList("a", "b")));
+		assertEquals(Arrays.asList("c"), wheel.advance(1000*TICK));
+	}
+
+	@Test
+	public void pastDeadlinesExpireOnTheNextAdvance() {
+		TimingWheel<String> wheel = new TimingWheel<String>(TICK, 100*TICK);
+		wheel.add("late", 50*TICK);
+		assertEquals(Arrays.asList("late"), wheel.advance(101*TICK));
+	}
+
+	@Test
+	public void renewedItemsArePutBackUntilTheirNewDeadline() {
+		// as the index manager does: renewing moves the expiry forward, and an item that
+		// comes out of the wheel before its expiry is put back with it
+		long expiry = 100*TICK;
+		TimingWheel<String> wheel = new TimingWheel<String>(TICK, 0);
+		wheel.add("lease", expiry);
+		long dropped = -1;
+		for(long tick=1;tick<=1000 && dropped<0;tick++) {
+			long now = tick*TICK;
+			if(tick==90) {
+				expiry = now+300*TICK;
+			}
+			for(String item : wheel.advance(now)) {
+				if(expiry>now) {
+					wheel.add(item, expiry);
+				} else {
+					dropped = tick;
+				}
+			}
+		}
+		assertEquals(390, dropped);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void renewedLeasesAreNotExpired() throws Exception {
+		File file = folder.newFile();
+		Files.write(file.toPath(), new byte[10]);
+		FileDescr fileDescr;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			fileDescr = new FileDescr(raf);
+		}
+		IndexMgr indexMgr = new IndexMgr();
+		indexMgr.enableLeases(600, 10);
+		indexMgr.share("1.1.1.1", 1, fileDescr, "renewed.bin", "s");
+		indexMgr.share("1.1.1.1", 1, fileDescr, "dropped.bin", "s");
+		Thread.sleep(300);
+		Boolean[] renewed = indexMgr.renew("1.1.1.1", 1, new String[] {"renewed.bin"},
+				new String[] {fileDescr.getFileMd5()}, new String[] {"s"});
+		assertTrue(renewed[0]);
+		Thread.sleep(500);
+		// the first lease of both has run out, but only one was renewed
+		assertEquals(1, indexMgr.expireLeases());
+		assertEquals(1, indexMgr.lookup("renewed.bin", fileDescr.getFileMd5()).size());
+		assertEquals(0, indexMgr.lookup("dropped.bin", fileDescr.getFileMd5()).size());
+		Thread.sleep(600);
+		assertEquals(1, indexMgr.expireLeases());
+		assertEquals(0, indexMgr.lookup("renewed.bin", fileDescr.getFileMd5()).size());
+	}
+}